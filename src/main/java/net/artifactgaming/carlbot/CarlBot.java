@@ -1,6 +1,7 @@
 package net.artifactgaming.carlbot;
 
 import net.artifactgaming.carlbot.listeners.OnCarlBotReady;
+import net.artifactgaming.carlbot.listeners.OnGuildLeave;
 import net.artifactgaming.carlbot.listeners.OnGuildMember;
 import net.artifactgaming.carlbot.listeners.OnMessageReaction;
 import net.artifactgaming.carlbot.modules.Echo;
@@ -11,6 +12,7 @@ import net.artifactgaming.carlbot.modules.purge.Purge;
 import net.artifactgaming.carlbot.modules.quotes.Quotes;
 import net.artifactgaming.carlbot.modules.authority.AuthorityManagement;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
+import net.artifactgaming.carlbot.modules.persistence.PersistenceConfig;
 import net.artifactgaming.carlbot.modules.schedule.Schedules;
 import net.artifactgaming.carlbot.modules.selfdocumentation.SelfDocumentation;
 import net.artifactgaming.carlbot.modules.statistics.Statistics;
@@ -18,6 +20,7 @@ import net.dv8tion.jda.core.AccountType;
 import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.ReadyEvent;
+import net.dv8tion.jda.core.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.core.events.guild.member.*;
 import net.dv8tion.jda.core.events.message.MessageDeleteEvent;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
@@ -51,6 +54,7 @@ public class CarlBot extends ListenerAdapter implements Runnable {
     private ArrayList<OnMessageReaction> onMessageReactionListeners = new ArrayList<>();
     private ArrayList<MessageReader> onMessageReceivedListeners = new ArrayList<>();
     private ArrayList<OnGuildMember> onGuildMemberListeners = new ArrayList<>();
+    private ArrayList<OnGuildLeave> onGuildLeaveListeners = new ArrayList<>();
 
     ArrayList<CommandPermissionChecker> permissionCheckers = new ArrayList<>();
 
@@ -66,6 +70,9 @@ public class CarlBot extends ListenerAdapter implements Runnable {
     private String callsign = Utils.CALLSIGN;
     private List<String> ownerIDs = new ArrayList<>();
 
+    // The "database" section of the config, if it has one.
+    private JSONObject databaseConfig = null;
+
     private static List<OnCarlBotReady> onCarlBotReadyList = new ArrayList<OnCarlBotReady>();
 
     public static void main(String[] args) throws Exception {
@@ -76,7 +83,7 @@ public class CarlBot extends ListenerAdapter implements Runnable {
         bot.addModule(new Echo());
         bot.addModule(new Quotes());
         bot.addModule(new AuthorityManagement());
-        bot.addModule(new Persistence());
+        bot.addModule(new Persistence(new PersistenceConfig(bot.databaseConfig)));
         bot.addModule(new SelfDocumentation());
         bot.addModule(new Schedules());
         bot.addModule(new Pelt());
@@ -95,6 +102,10 @@ public class CarlBot extends ListenerAdapter implements Runnable {
         onGuildMemberListeners.add(onGuildMember);
     }
 
+    public void addOnGuildLeaveListener(OnGuildLeave onGuildLeave){
+        onGuildLeaveListeners.add(onGuildLeave);
+    }
+
     public void addOnMessageReactionListener(OnMessageReaction onMessageReaction){
         onMessageReactionListeners.add(onMessageReaction);
     }
@@ -115,6 +126,8 @@ public class CarlBot extends ListenerAdapter implements Runnable {
         for (int i = 0; i < owners.size(); i++) {
             ownerIDs.add(owners.getString(i));
         }
+
+        databaseConfig = json.optJSONObject("database");
     }
 
     public void addModule(Module module) {
@@ -241,6 +254,13 @@ public class CarlBot extends ListenerAdapter implements Runnable {
         }
     }
 
+    @Override
+    public void onGuildLeave(GuildLeaveEvent event) {
+        for (OnGuildLeave listener: onGuildLeaveListeners) {
+            listener.onGuildLeave(event);
+        }
+    }
+
     @Override
     public void onGuildMemberJoin(GuildMemberJoinEvent event) {
         for (OnGuildMember listener: onGuildMemberListeners) {
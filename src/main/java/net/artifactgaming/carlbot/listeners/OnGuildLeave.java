@@ -0,0 +1,11 @@
+package net.artifactgaming.carlbot.listeners;
+
+import net.dv8tion.jda.core.events.guild.GuildLeaveEvent;
+
+/**
+ * Invoked when the bot leaves a guild, or is kicked from it.
+ * Make sure to add this event-listener to the CarlBot.
+ */
+public interface OnGuildLeave {
+    void onGuildLeave(GuildLeaveEvent event);
+}
@@ -33,6 +33,11 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
     private Persistence persistence;
     private AuthorityManagement manager = this;
 
+    /**
+     * Authority is checked on every command, by member or role ID.
+     */
+    private static final TableIndex DISCORD_ID_INDEX = new TableIndex("authority_bindings", true, "discord_id");
+
     @Override
     public Authority[] getRequiredAuthority() {
         return new Authority[] { new AuthorityToManipulate() };
@@ -143,8 +148,8 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
             for (int i = 1; i <= rsmd.getColumnCount(); i++) {
                 String column = rsmd.getColumnName(i);
 
-                // Don't count the discord_id.
-                if (column.equals("DISCORD_ID")) {
+                // Don't count the discord_id, or the guild_id of a shared table.
+                if (column.equals("DISCORD_ID") || column.equalsIgnoreCase(Table.PARTITION_COLUMN)) {
                     continue;
                 }
 
@@ -221,15 +226,10 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
                         table.alter().add().pushValue("\"" + authorityName + "\" varchar").execute();
                     }
 
-                    // Check if our row exists. If not, make it exist.
-                    ResultSet resultSet = table.select().where("discord_id", "=", discordId)
-                            .execute();
-                    if (!resultSet.next()) {
-                        table.insert().set("discord_id", discordId).execute();
-                    }
-
-                    table.update().set("\"" + authorityName + "\"", value)
-                            .where("discord_id", "=", discordId).execute();
+                    // Set it, making our row first if it doesn't exist yet.
+                    table.merge().set("discord_id", discordId)
+                            .set("\"" + authorityName + "\"", value)
+                            .key("discord_id").execute();
                     event.getChannel().sendMessage("Authority status set.").queue();
 
                 } else {
@@ -345,7 +345,9 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
         logger.debug("Authority name: " + authorityName);
 
         Table table = getAuthorityTable(guild);
-        ResultSet resultSet = table.select().where("discord_id", "=", id).execute();
+        ResultSet resultSet = table
+                .compile("selectByDiscordId", (authorityTable) -> authorityTable.select().where("discord_id", "=", null))
+                .bind(id).execute();
 
         // We need to check if the column exists.
         boolean exists = false;
@@ -383,16 +385,7 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
     }
 
     private Table getAuthorityTable(Guild guild) throws SQLException {
-        Table table = persistence.getGuildTable(guild, manager);
-        Table authorityTable = new Table(table, "authority_bindings");
-
-        if (!authorityTable.exists()) {
-            authorityTable.create(); // Make sure it exists.
-
-            authorityTable.alter().add().pushValue("discord_id varchar").execute();
-        }
-
-        return authorityTable;
+        return persistence.getGuildTable(guild, manager, DISCORD_ID_INDEX.getSubTable());
     }
 
     /**
@@ -593,6 +586,28 @@ public class AuthorityManagement implements AuthorityRequiring, Module, Persiste
         return "This module does things that are related to server authority.";
     }
 
+    @Override
+    public TableIndex[] getTableIndexes() {
+        return new TableIndex[] { DISCORD_ID_INDEX };
+    }
+
+    @Override
+    public SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[] {
+                // 1: The authority bindings table. Authorities are added to it as columns when they're first set.
+                (guildTable) -> {
+                    Table authorityTable = new Table(guildTable, DISCORD_ID_INDEX.getSubTable());
+
+                    if (!authorityTable.exists()) {
+                        authorityTable.create();
+
+                        authorityTable.alter().add().pushValue("discord_id varchar").execute();
+                        authorityTable.createIndex(DISCORD_ID_INDEX);
+                    }
+                }
+        };
+    }
+
     @Override
     public String getDocumentationCallsign() {
         return "authority";
@@ -8,9 +8,13 @@ import net.artifactgaming.carlbot.modules.authority.AuthorityManagement;
 import net.artifactgaming.carlbot.modules.authority.AuthorityRequiring;
 import net.artifactgaming.carlbot.modules.pelt.authority.AllPelt;
 import net.artifactgaming.carlbot.modules.pelt.authority.SelfPelt;
+import net.artifactgaming.carlbot.modules.persistence.MergeBuilder;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
+import net.artifactgaming.carlbot.modules.persistence.PersistentCache;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
 import net.artifactgaming.carlbot.modules.persistence.Table;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
 import net.artifactgaming.carlbot.modules.selfdocumentation.Documented;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.User;
@@ -35,9 +39,19 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
      */
     private static final String PELTED_PERSON_NAME = "pelted_person_name";
 
+    /**
+     * Every message is checked against this table, by the author's ID.
+     */
+    private static final TableIndex PELTED_PERSON_INDEX = new TableIndex("pelt", true, PELTED_PERSON_ID);
+
     Logger logger = LoggerFactory.getLogger(Pelt.class);
     private Persistence persistence;
 
+    /**
+     * Whether a user is pelted, by guild and user ID. Every message checks it, but it rarely changes.
+     */
+    private PersistentCache<String, Boolean> peltedUsersCache;
+
     private AuthorityManagement authorityManagement;
     private PeltMessageReceivedListener peltMessageReceivedListener;
 
@@ -79,21 +93,34 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
         private boolean ToggleUserPeltStatus(Guild guildToPeltOn, User user) throws SQLException {
             Table guildPeltTable = getPeltTableByGuild(guildToPeltOn);
 
-            ResultSet resultSet = guildPeltTable.select().where(PELTED_PERSON_ID, "=", user.getId()).execute();
+            // If there was nothing to delete, the user wasn't pelted yet. A delete that matches nothing takes no
+            // lock, so two toggles at once can both get here; the unique index lets only one of them insert.
+            boolean nowPelted;
+            try {
+                nowPelted = persistence.inTransaction(() -> {
+                    int unpelted = guildPeltTable.delete()
+                            .where(PELTED_PERSON_ID, "=", user.getId()).executeUpdate();
+
+                    if (unpelted == 0) {
+                        guildPeltTable.insert()
+                                .set(PELTED_PERSON_ID, user.getId())
+                                .set(PELTED_PERSON_NAME, user.getName())
+                                .execute();
+                        return true;
+                    }
+                    return false;
+                });
+            } catch (SQLException e) {
+                if (!Persistence.isDuplicateKey(e)) {
+                    throw e;
+                }
 
-            boolean pelted = false;
-            if (resultSet.next()){
-                guildPeltTable.delete()
-                        .where(PELTED_PERSON_ID, "=", user.getId()).execute();
-            } else {
-                guildPeltTable.insert()
-                        .set(PELTED_PERSON_ID, user.getId())
-                        .set(PELTED_PERSON_NAME, user.getName())
-                        .execute();
-                pelted = true;
+                // The other toggle pelted them first.
+                nowPelted = true;
             }
-            resultSet.close();
-            return pelted;
+
+            peltedUsersCache.invalidate(guildToPeltOn.getId(), user.getId());
+            return nowPelted;
         }
 
         @Override
@@ -143,12 +170,11 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
             for (User userToPelt: users) {
                 if (userToPelt.isBot()){ continue; }
 
-                ResultSet resultSet = guildPeltTable.select().where(PELTED_PERSON_ID, "=", userToPelt.getId()).execute();
+                // Deleting a user who isn't pelted just deletes nothing.
+                guildPeltTable.delete()
+                        .where(PELTED_PERSON_ID, "=", userToPelt.getId()).execute();
 
-                if (resultSet.next()){
-                    guildPeltTable.delete()
-                            .where(PELTED_PERSON_ID, "=", userToPelt.getId()).execute();
-                }
+                peltedUsersCache.invalidate(guildToPeltOn.getId(), userToPelt.getId());
             }
         }
 
@@ -193,17 +219,21 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
 
         private void addUsersToPelt(Guild guildToPeltOn, List<User> users) throws SQLException {
             Table guildPeltTable = getPeltTableByGuild(guildToPeltOn);
+            MergeBuilder usersToMerge = guildPeltTable.merge().key(PELTED_PERSON_ID);
 
+            // Users who are already pelted just get their name refreshed.
             for (User userToPelt: users) {
                 if (userToPelt.isBot()){ continue; }
 
-                ResultSet resultSet = guildPeltTable.select().where(PELTED_PERSON_ID, "=", userToPelt.getId()).execute();
+                usersToMerge.set(PELTED_PERSON_ID, userToPelt.getId())
+                        .set(PELTED_PERSON_NAME, userToPelt.getName())
+                        .addBatch();
+            }
 
-                if (!resultSet.next()){
-                    guildPeltTable.insert()
-                            .set(PELTED_PERSON_ID, userToPelt.getId())
-                            .set(PELTED_PERSON_NAME, userToPelt.getName()).execute();
-                }
+            usersToMerge.executeBatch();
+
+            for (User userToPelt: users) {
+                peltedUsersCache.invalidate(guildToPeltOn.getId(), userToPelt.getId());
             }
         }
 
@@ -243,26 +273,28 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
     }
 
     private Table getPeltTableByGuild(Guild guild) throws SQLException {
+        return getPeltTableByGuildID(guild.getId());
+    }
 
-        Table table = persistence.getGuildTable(guild, this);
-        Table guildTable = new Table(table, "pelt");
-
-        if (!guildTable.exists()) {
-            guildTable.create();
-
-            guildTable.alter().add()
-                    .pushValue("pelted_person_id varchar").pushValue("pelted_person_name varchar")
-                    .execute();
-        }
+    private Table getPeltTableByGuildID(String guildID) throws SQLException {
+        return persistence.getGuildTable(guildID, this, PELTED_PERSON_INDEX.getSubTable());
+    }
 
-        return guildTable;
+    Persistence getPersistence() {
+        return persistence;
     }
 
     boolean userIsPeltedInGuild(String userId, Guild guild) throws SQLException {
-        Table peltGuildTable = getPeltTableByGuild(guild);
+        return peltedUsersCache.get(guild.getId(), userId);
+    }
+
+    private boolean loadUserIsPeltedInGuild(String guildID, String userId) throws SQLException {
+        Table peltGuildTable = getPeltTableByGuildID(guildID);
 
         boolean userIsPeltedInGuild = false;
-        ResultSet resultSet = peltGuildTable.select().where(PELTED_PERSON_ID, "=", userId).execute();
+        ResultSet resultSet = peltGuildTable
+                .compile("selectByPeltedPerson", (table) -> table.select().where(PELTED_PERSON_ID, "=", null))
+                .bind(userId).execute();
         if (resultSet.next()){
             userIsPeltedInGuild = true;
         }
@@ -288,6 +320,9 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
             carlbot.crash();
         }
 
+        // The commands write to the table themselves, and clear the cache for who they changed.
+        peltedUsersCache = persistence.createCache(this, "peltedUsers", this::loadUserIsPeltedInGuild, null);
+
         peltMessageReceivedListener = new PeltMessageReceivedListener(this);
         carlbot.addOnMessageReceivedListener(peltMessageReceivedListener);
     }
@@ -301,6 +336,31 @@ public class Pelt implements Module, Documented, PersistentModule, AuthorityRequ
         };
     }
 
+    @Override
+    public TableIndex[] getTableIndexes() {
+        return new TableIndex[] { PELTED_PERSON_INDEX };
+    }
+
+    @Override
+    public SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[] {
+                // 1: The pelt table.
+                (guildTable) -> {
+                    Table peltTable = new Table(guildTable, PELTED_PERSON_INDEX.getSubTable());
+
+                    if (!peltTable.exists()) {
+                        peltTable.create();
+
+                        peltTable.alter().add()
+                                .pushValue("pelted_person_id varchar").pushValue("pelted_person_name varchar")
+                                .execute();
+
+                        peltTable.createIndex(PELTED_PERSON_INDEX);
+                    }
+                }
+        };
+    }
+
     @Override
     public String getDocumentation() {
         return "This module allows you to pelt anyone with a peanut." + Utils.NEWLINE + "Use `selfPelt`, `pelt`, or `unpelt` for your needs.";
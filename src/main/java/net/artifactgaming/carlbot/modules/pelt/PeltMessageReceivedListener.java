@@ -3,7 +3,6 @@ package net.artifactgaming.carlbot.modules.pelt;
 import net.artifactgaming.carlbot.listeners.MessageReader;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
 
-import java.sql.SQLException;
 import java.util.Random;
 import java.util.function.Supplier;
 
@@ -50,13 +49,16 @@ public class PeltMessageReceivedListener implements MessageReader {
         if (event.getGuild() == null || event.getAuthor().isBot()){
             return;
         }
-        try {
-            if (peltModule.userIsPeltedInGuild(event.getAuthor().getId(), event.getGuild())) {
-                event.getMessage().addReaction(randomlyPickEmoteUnicodeToPeltWith()).queue();
-            }
-        } catch (SQLException e){
-            peltModule.logger.error(e.getMessage());
-        }
+        // Look the user up on the database thread, then react once we know.
+        peltModule.getPersistence()
+                .submit(() -> peltModule.userIsPeltedInGuild(event.getAuthor().getId(), event.getGuild()))
+                .whenComplete((isPelted, error) -> {
+                    if (error != null) {
+                        peltModule.logger.error(error.getMessage());
+                    } else if (isPelted) {
+                        event.getMessage().addReaction(randomlyPickEmoteUnicodeToPeltWith()).queue();
+                    }
+                });
     }
 
     private String randomlyPickEmoteUnicodeToPeltWith(){
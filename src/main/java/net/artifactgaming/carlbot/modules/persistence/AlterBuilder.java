@@ -1,10 +1,10 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class AlterBuilder implements SQLBuilder {
@@ -43,6 +43,13 @@ public class AlterBuilder implements SQLBuilder {
         return this;
     }
 
+    /**
+     * Push a column definition with a native type, such as {@code pushColumn("interval_hours", ColumnType.INT)}.
+     */
+    public AlterBuilder pushColumn(String name, ColumnType type) {
+        return pushValue(name + " " + type.getSQL());
+    }
+
     public String toString() {
 
         StringBuilder sql = new StringBuilder("alter table ").append(table.getName())
@@ -65,13 +72,48 @@ public class AlterBuilder implements SQLBuilder {
 
     @Override
     public ResultSet execute() throws SQLException {
-        Connection connection = table.server.getConnection();
-        PreparedStatement statement = connection.prepareStatement(toString());
+        String sql = toString();
+
+        table.database.measure(sql, Collections.emptyList(), counts -> table.database.withConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+
+            table.database.changeLog.record(connection, table, ChangeLog.Kind.Alter, null);
+            return null;
+        }));
 
-        table.logger.debug("Run sql: " + this.toString());
-        statement.execute();
+        updateSchemaCatalog();
 
         // Result is non-applicable.
         return null;
     }
+
+    /**
+     * Reflect the change we just made in the schema catalog, so it never has to be reloaded.
+     */
+    private void updateSchemaCatalog() {
+        SchemaCatalog catalog = table.database.schemaCatalog;
+        String tableName = table.getNameSQLForm();
+
+        for (String value : values) {
+            switch (mode) {
+                case "add":
+                    catalog.addColumn(tableName, SchemaCatalog.identifierName(value));
+                    break;
+                case "drop column":
+                    catalog.removeColumn(tableName, SchemaCatalog.identifierName(value));
+                    break;
+                case "rename column":
+                    // Written as "old_name to new_name".
+                    String[] names = value.split("(?i)\\s+to\\s+");
+                    catalog.removeColumn(tableName, SchemaCatalog.identifierName(names[0]));
+                    catalog.addColumn(tableName, SchemaCatalog.identifierName(names[1]));
+                    break;
+                default:
+                    // Modifying a column doesn't change its name.
+                    break;
+            }
+        }
+    }
 }
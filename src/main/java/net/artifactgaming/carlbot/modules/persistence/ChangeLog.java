@@ -0,0 +1,547 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells bots sharing one database (see {@link PersistenceConfig.Mode}) when another one has changed a module's rows,
+ * so their caches don't keep serving what they loaded before.
+ *
+ * Every insert, update, delete, merge and alter a module runs through the builders adds an entry to an append-only
+ * table: the guild, module and table that changed, the key of the row if the builder knows it, and which bot made
+ * the change. Each bot polls the table for the other bots' entries and hands them to its listeners. Persistence
+ * listens itself: it drops what the module's caches hold for the guild (a cache doesn't know how its keys map to
+ * rows, so the key is only a hint for other listeners), and after an alter it reloads the table's columns into the
+ * schema catalog. Entries are deleted once they're older than the retention.
+ *
+ * An entry is written on the same connection straight after its change, so inside a transaction they commit
+ * together. Outside one, a bot that dies between the two leaves the other bots' caches stale until their time to
+ * live runs out.
+ *
+ * Entries are numbered in the order they were written, but a transaction can commit after one that started later,
+ * so a poll may see a number skipped. Skipped numbers are looked for again on every poll, until the gap timeout.
+ */
+public class ChangeLog {
+
+    /**
+     * How often the other bots' changes are looked for, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 1000;
+
+    /**
+     * How long entries are kept, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_RETENTION = 10 * 60 * 1000;
+
+    static final String TABLE_NAME = "CARLBOT_CHANGE_LOG";
+
+    /**
+     * What a change did.
+     */
+    public enum Kind {
+        Insert,
+        Update,
+        Delete,
+        Merge,
+        /**
+         * The table's columns changed.
+         */
+        Alter
+    }
+
+    /**
+     * Hears about changes other bots made. It's called on the change log's thread, so it should be quick.
+     */
+    public interface Listener {
+        void onChange(Change change);
+    }
+
+    // How long to keep looking for a skipped entry before deciding its transaction was rolled back.
+    private static final long GAP_TIMEOUT = 60 * 1000;
+
+    // How many skipped entries to look for at once. Past this, the oldest are given up on.
+    private static final int MAX_GAPS = 100;
+
+    // How many entries one poll reads at most. The rest wait for the next one.
+    private static final int POLL_LIMIT = 1000;
+
+    // How often old entries are deleted.
+    private static final long PRUNE_INTERVAL = 60 * 1000;
+
+    // How long the throughput is averaged over.
+    private static final long RATE_WINDOW = 60 * 1000;
+
+    private static final String INSERT_SQL = "insert into " + TABLE_NAME
+            + " (instance, guild_id, module, table_name, row_key, kind, logged_at) values (?,?,?,?,?,?,?)";
+
+    private static final String POLL_SQL = "select * from " + TABLE_NAME + " where id > ? order by id limit "
+            + POLL_LIMIT;
+
+    private static final String PRUNE_SQL = "delete from " + TABLE_NAME + " where logged_at < ?";
+
+    private final Persistence database;
+    private final Logger logger;
+    private final boolean enabled;
+    private final long pollInterval;
+    private final long retention;
+
+    // Tells our own entries apart from the other bots'.
+    private final String instance = UUID.randomUUID().toString();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "carlbot-change-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Nothing is logged until the table is there.
+    private volatile boolean started = false;
+
+    // Only used by the poller.
+    private long lastSeen = 0;
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+    private long lastPrune = 0;
+    private long windowStart = System.currentTimeMillis();
+    private long windowDelivered = 0;
+
+    ///region Metrics
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failedPolls = new AtomicLong();
+    private final AtomicLong pruned = new AtomicLong();
+    private final AtomicLong gapsGivenUp = new AtomicLong();
+    private final AtomicLong totalLag = new AtomicLong();
+    private volatile long lastLag = 0;
+    private volatile long maxLag = 0;
+    private volatile double deliveredPerSecond = 0;
+    ///endregion
+
+    ChangeLog(Persistence database, boolean enabled, long pollInterval, long retention) {
+        this.database = database;
+        this.logger = database.logger;
+        this.enabled = enabled;
+        this.pollInterval = pollInterval;
+        this.retention = retention;
+    }
+
+    /**
+     * Make the table if it isn't there, then start logging changes and looking for the other bots'.
+     * Changes made before now are never delivered; there's nothing cached from before.
+     */
+    void start() throws SQLException {
+        if (!enabled) {
+            return;
+        }
+
+        runDDL("create table if not exists " + TABLE_NAME + " (id bigint auto_increment primary key, "
+                + "instance varchar, guild_id varchar, module varchar, table_name varchar, row_key varchar, "
+                + "kind varchar, logged_at bigint)");
+        runDDL("create index if not exists " + TABLE_NAME + "_LOGGED_AT on " + TABLE_NAME + " (logged_at)");
+
+        String sql = "select max(id) from " + TABLE_NAME;
+        lastSeen = database.measure(sql, Collections.emptyList(), counts -> database.withConnection(connection -> {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(sql)) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }));
+
+        started = true;
+
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (SQLException | RuntimeException e) {
+                failedPolls.incrementAndGet();
+                logger.error("Polling the change log failed", e);
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+
+        logger.info("Logging changes for other bots, and looking for theirs every " + pollInterval + "ms.");
+    }
+
+    private void runDDL(String sql) throws SQLException {
+        database.measure(sql, Collections.emptyList(), counts -> database.withConnection(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Log a change to a module's table, on the connection that made it. Tables that aren't a module's are left out.
+     * @param key The key of the changed row, or null if it isn't known or several rows changed.
+     */
+    void record(Connection connection, Table table, Kind kind, Object key) throws SQLException {
+        if (!started || table.moduleName == null) {
+            return;
+        }
+
+        List<Object> values = Arrays.asList(instance, table.guildID, table.moduleName, table.getNameSQLForm(),
+                (key == null) ? null : key.toString(), kind.name(), System.currentTimeMillis());
+
+        database.measure(INSERT_SQL, values, counts -> {
+            PreparedStatement statement = database.connectionPool.prepare(connection, INSERT_SQL);
+
+            int i = 1;
+            for (Object value : values) {
+                SQLBuilder.bind(statement, i, value);
+                i++;
+            }
+
+            counts.rowsAffected = statement.executeUpdate();
+            return null;
+        });
+
+        logged.incrementAndGet();
+    }
+
+    /**
+     * @return The value compared with {@code =} in the first where expression, which is usually the row's key; or
+     * null if there isn't one. The guild column of a shared table doesn't count.
+     */
+    static Object findKey(List<String> wheres, List<Object> whereValues) {
+        for (int i = 0; i < wheres.size(); i++) {
+            Object value = whereValues.get(i);
+
+            if (!(value instanceof GuildPartition) && wheres.get(i).replace(" ", "").endsWith("=?")) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Deliver the other bots' new entries, look again for skipped ones, and delete old ones now and then.
+     */
+    void poll() throws SQLException {
+        polls.incrementAndGet();
+
+        List<Change> changes = database.withConnection(connection -> {
+            List<Change> found = readChanges(connection, POLL_SQL, Collections.singletonList(lastSeen));
+
+            if (!gaps.isEmpty()) {
+                found.addAll(readChanges(connection, getGapSQL(), new ArrayList<>(gaps.keySet())));
+            }
+
+            return found;
+        });
+
+        long now = System.currentTimeMillis();
+
+        for (Change change : changes) {
+            if (gaps.remove(change.id) == null) {
+                if (change.id <= lastSeen) {
+                    continue;
+                }
+
+                // Anything between here and the last one we saw may still be on its way.
+                for (long id = Math.max(lastSeen + 1, change.id - MAX_GAPS); id < change.id; id++) {
+                    gaps.put(id, now);
+                }
+                lastSeen = change.id;
+            }
+
+            if (!change.instance.equals(instance)) {
+                deliver(change, now);
+            }
+        }
+
+        forgetOldGaps(now);
+        updateRate(now);
+
+        if (now - lastPrune >= PRUNE_INTERVAL) {
+            prune(now);
+            lastPrune = now;
+        }
+    }
+
+    private String getGapSQL() {
+        StringBuilder sql = new StringBuilder("select * from ").append(TABLE_NAME).append(" where id in (");
+
+        for (int i = 0; i < gaps.size(); i++) {
+            sql.append("?,");
+        }
+
+        // Pop off that extra comma.
+        sql.deleteCharAt(sql.length() - 1);
+
+        return sql.append(")").toString();
+    }
+
+    private List<Change> readChanges(Connection connection, String sql, List<Object> values) throws SQLException {
+        return database.measure(sql, values, counts -> {
+            // The gap query changes with the gaps, so it isn't worth caching.
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int i = 1;
+                for (Object value : values) {
+                    SQLBuilder.bind(statement, i, value);
+                    i++;
+                }
+
+                List<Change> changes = new ArrayList<>();
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        changes.add(new Change(resultSet));
+                    }
+                }
+
+                counts.rowsReturned = changes.size();
+                return changes;
+            }
+        });
+    }
+
+    private void deliver(Change change, long now) {
+        long lag = Math.max(0, now - change.loggedAt);
+        lastLag = lag;
+        maxLag = Math.max(maxLag, lag);
+        totalLag.addAndGet(lag);
+        delivered.incrementAndGet();
+        windowDelivered++;
+
+        for (Listener listener : listeners) {
+            // One listener failing shouldn't keep the change from the rest.
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException e) {
+                logger.error("Error handling a change from another bot: " + change, e);
+            }
+        }
+    }
+
+    private void forgetOldGaps(long now) {
+        Iterator<Map.Entry<Long, Long>> oldest = gaps.entrySet().iterator();
+
+        while (oldest.hasNext()) {
+            Map.Entry<Long, Long> gap = oldest.next();
+
+            if (now - gap.getValue() >= GAP_TIMEOUT || gaps.size() > MAX_GAPS) {
+                oldest.remove();
+                gapsGivenUp.incrementAndGet();
+            }
+        }
+    }
+
+    private void updateRate(long now) {
+        if (now - windowStart >= RATE_WINDOW) {
+            deliveredPerSecond = windowDelivered * 1000.0 / (now - windowStart);
+            windowStart = now;
+            windowDelivered = 0;
+        }
+    }
+
+    private void prune(long now) throws SQLException {
+        List<Object> values = Collections.singletonList(now - retention);
+
+        int deleted = database.measure(PRUNE_SQL, values, counts -> database.withConnection(connection -> {
+            PreparedStatement statement = database.connectionPool.prepare(connection, PRUNE_SQL);
+            SQLBuilder.bind(statement, 1, values.get(0));
+
+            counts.rowsAffected = statement.executeUpdate();
+            return (int) counts.rowsAffected;
+        }));
+
+        pruned.addAndGet(deleted);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stop looking for changes.
+     */
+    void shutdown() {
+        poller.shutdownNow();
+    }
+
+    ///region Metrics
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return What this bot's entries are marked with.
+     */
+    public String getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return How many changes this bot has logged.
+     */
+    public long getLogged() {
+        return logged.get();
+    }
+
+    /**
+     * @return How many of the other bots' changes were handed to the listeners.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return How many changes a second were delivered, over the last minute or so.
+     */
+    public double getDeliveredPerSecond() {
+        return deliveredPerSecond;
+    }
+
+    public long getPolls() {
+        return polls.get();
+    }
+
+    public long getFailedPolls() {
+        return failedPolls.get();
+    }
+
+    /**
+     * @return How long the last change delivered took to get here, in milliseconds.
+     * This is by the clocks of two bots, so it's only as good as they agree.
+     */
+    public long getLastLag() {
+        return lastLag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    public long getAverageLag() {
+        long count = delivered.get();
+        return (count == 0) ? 0 : totalLag.get() / count;
+    }
+
+    /**
+     * @return How many skipped entries never turned up, most likely because their transactions were rolled back.
+     */
+    public long getGapsGivenUp() {
+        return gapsGivenUp.get();
+    }
+
+    /**
+     * @return How many old entries have been deleted.
+     */
+    public long getPruned() {
+        return pruned.get();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "Change log: off";
+        }
+
+        return String.format("Change log: %d logged, %d delivered (%.1f/s), lag %dms (avg %dms, max %dms), "
+                        + "%d polls (%d failed), %d gaps given up, %d pruned",
+                logged.get(), delivered.get(), deliveredPerSecond, lastLag, getAverageLag(), maxLag,
+                polls.get(), failedPolls.get(), gapsGivenUp.get(), pruned.get());
+    }
+
+    ///endregion
+
+    /**
+     * One entry in the change log.
+     */
+    public static final class Change {
+        private final long id;
+        private final String instance;
+        private final String guildID;
+        private final String module;
+        private final String table;
+        private final String key;
+        private final Kind kind;
+        private final long loggedAt;
+
+        private Change(ResultSet resultSet) throws SQLException {
+            this.id = resultSet.getLong("id");
+            this.instance = resultSet.getString("instance");
+            this.guildID = resultSet.getString("guild_id");
+            this.module = resultSet.getString("module");
+            this.table = resultSet.getString("table_name");
+            this.key = resultSet.getString("row_key");
+            this.kind = Kind.valueOf(resultSet.getString("kind"));
+            this.loggedAt = resultSet.getLong("logged_at");
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return The guild whose rows changed, or null if it was every guild's.
+         */
+        public String getGuildID() {
+            return guildID;
+        }
+
+        /**
+         * @return The canonical class name of the module whose table changed.
+         */
+        public String getModule() {
+            return module;
+        }
+
+        /**
+         * @return The table's name, the way the information schema has it.
+         */
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * @return The key of the changed row, or null if it isn't known or several rows changed.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return When the change was made, by the clock of the bot that made it.
+         */
+        public long getLoggedAt() {
+            return loggedAt;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " #" + id + " of " + table + (key != null ? " (" + key + ")" : "");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+/**
+ * The column types we create tables with, so values can be stored natively instead of as text.
+ * Use with {@link AlterBuilder#pushColumn(String, ColumnType)}.
+ */
+public enum ColumnType {
+    VARCHAR("varchar"),
+    INT("int"),
+    BIGINT("bigint"),
+    DOUBLE("double"),
+    BOOLEAN("boolean"),
+    TIMESTAMP("timestamp");
+
+    private final String sql;
+
+    ColumnType(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * @return The type as it is written in a column definition.
+     */
+    public String getSQL() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
@@ -0,0 +1,192 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import javax.sql.rowset.CachedRowSet;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A statement whose SQL has been built once and can be run many times with different values.
+ *
+ * Build one with {@link Table#compile(SQLBuilder)} (or the cached {@link Table#compile(String, TemplateFactory)}),
+ * giving the builder placeholder values. Then call {@link #bind(Object...)} with the real values, in the order
+ * their question marks appear in the SQL, and execute the result.
+ * The prepared statement behind it is cached per pooled connection, so H2 doesn't re-parse it every time.
+ *
+ * On a table in the shared layout, the guild values the builder added are not part of the bind; they are
+ * filled in with the guild of the table the query was compiled for.
+ */
+public class CompiledQuery {
+
+    private final Table table;
+    private final String sql;
+    private final boolean query;
+    // What running it does, for the change log. Null for a select.
+    private final ChangeLog.Kind changeKind;
+    // For each question mark, whether it takes the table's guild instead of a bound value.
+    private final boolean[] partitionSlots;
+
+    CompiledQuery(Table table, SQLBuilder template) {
+        this.table = table;
+        this.sql = template.toString();
+        this.query = template instanceof SelectBuilder;
+        this.changeKind = getChangeKind(template);
+
+        List<Object> parameters = getParameters(template);
+        this.partitionSlots = new boolean[parameters.size()];
+        for (int i = 0; i < partitionSlots.length; i++) {
+            partitionSlots[i] = parameters.get(i) instanceof GuildPartition;
+        }
+    }
+
+    private CompiledQuery(Table table, CompiledQuery other) {
+        this.table = table;
+        this.sql = other.sql;
+        this.query = other.query;
+        this.changeKind = other.changeKind;
+        this.partitionSlots = other.partitionSlots;
+    }
+
+    /**
+     * The same query, run against another guild's part of the same shared table.
+     */
+    CompiledQuery forTable(Table table) {
+        return (table == this.table) ? this : new CompiledQuery(table, this);
+    }
+
+    private static ChangeLog.Kind getChangeKind(SQLBuilder template) {
+        if (template instanceof InsertBuilder) {
+            return ChangeLog.Kind.Insert;
+        } else if (template instanceof MergeBuilder) {
+            return ChangeLog.Kind.Merge;
+        } else if (template instanceof UpdateBuilder) {
+            return ChangeLog.Kind.Update;
+        } else if (template instanceof DeleteBuilder) {
+            return ChangeLog.Kind.Delete;
+        }
+
+        return null;
+    }
+
+    private static List<Object> getParameters(SQLBuilder template) {
+        if (template instanceof SelectBuilder) {
+            return ((SelectBuilder) template).getParameters();
+        } else if (template instanceof InsertBuilder) {
+            return ((InsertBuilder) template).getParameters();
+        } else if (template instanceof MergeBuilder) {
+            return ((MergeBuilder) template).getParameters();
+        } else if (template instanceof UpdateBuilder) {
+            return ((UpdateBuilder) template).getParameters();
+        } else if (template instanceof DeleteBuilder) {
+            return ((DeleteBuilder) template).getParameters();
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Supply the values for this run of the statement.
+     * @param values One value per question mark in the SQL, in order.
+     */
+    public Binding bind(Object... values) {
+        return new Binding(values);
+    }
+
+    public String getSQL() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+    /**
+     * A compiled query with its values filled in, ready to execute.
+     */
+    public class Binding implements SQLBuilder {
+
+        private final Object[] values;
+
+        private Binding(Object[] values) {
+            this.values = values;
+        }
+
+        /**
+         * @return The rows for a select (detached from the connection, like {@link SelectBuilder#execute()}),
+         * or null for anything else.
+         */
+        @Override
+        public ResultSet execute() throws SQLException {
+            if (!query) {
+                executeUpdate();
+
+                // Result is non-applicable.
+                return null;
+            }
+
+            return table.database.measure(sql, Arrays.asList(values), counts ->
+                    table.database.withConnection(connection -> {
+                        try (ResultSet resultSet = bindTo(connection).executeQuery()) {
+                            CachedRowSet rows = SelectBuilder.detach(resultSet);
+                            counts.rowsReturned = rows.size();
+                            return table.database.leakDetector.track(rows);
+                        }
+                    }));
+        }
+
+        /**
+         * Runs anything but a select.
+         * @return How many rows were changed, like {@link UpdateBuilder#executeUpdate()}.
+         * @throws IllegalStateException If the query is a select.
+         */
+        public int executeUpdate() throws SQLException {
+            if (query) {
+                throw new IllegalStateException("A select has no row count; use execute() instead.");
+            }
+
+            return table.database.measureWrite(table, sql, Arrays.asList(values), counts ->
+                    table.database.withConnection(connection -> {
+                        int rowsChanged = bindTo(connection).executeUpdate();
+                        counts.rowsAffected = rowsChanged;
+
+                        // Which value is the key isn't known once it's compiled.
+                        if (rowsChanged > 0 && changeKind != null) {
+                            table.database.changeLog.record(connection, table, changeKind, null);
+                        }
+                        return rowsChanged;
+                    }));
+        }
+
+        private PreparedStatement bindTo(Connection connection) throws SQLException {
+            PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+
+            int next = 0;
+            for (int i = 0; i < partitionSlots.length || next < values.length; i++) {
+                if (i < partitionSlots.length && partitionSlots[i]) {
+                    SQLBuilder.bind(statement, i + 1, table.partition);
+                } else if (next < values.length) {
+                    SQLBuilder.bind(statement, i + 1, values[next++]);
+                }
+            }
+
+            return statement;
+        }
+
+        @Override
+        public String toString() {
+            return sql;
+        }
+    }
+
+    /**
+     * Builds the template for a compiled query against a specific table.
+     */
+    public interface TemplateFactory {
+        SQLBuilder build(Table table);
+    }
+}
@@ -0,0 +1,12 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A unit of database work that runs against a borrowed connection.
+ * The connection is given back to the pool once the callback returns, so don't hold on to it.
+ */
+interface ConnectionCallback<T> {
+    T run(Connection connection) throws SQLException;
+}
@@ -0,0 +1,421 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded pool of physical H2 connections.
+ *
+ * Connections are handed out with {@link #acquire()} and must be given back with {@link #release(Connection)}.
+ * All of the builders do this for you, so nothing outside of this package should need to touch it directly.
+ * Each connection also keeps a small cache of prepared statements, see {@link #prepare(Connection, String)}.
+ *
+ * When the database is on a server, connections can die while they sit in the pool, so each one is checked before
+ * it's handed out; and while the server can't be reached, opening a connection is retried until the acquire timeout.
+ */
+public class ConnectionPool {
+
+    /**
+     * How many physical connections (H2 sessions) we allow at once by default.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /**
+     * How long a caller may wait for a free connection before we give up, in milliseconds.
+     */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+    /**
+     * How many prepared statements we keep open per connection.
+     */
+    public static final int STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * How long to wait between attempts to reach a database server that isn't answering, in milliseconds.
+     */
+    public static final long RECONNECT_DELAY = 500;
+
+    // How long a pooled connection to a server gets to show it's still alive, in seconds.
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    private final JdbcDataSource dataSource;
+    private final Logger logger;
+    private final LeakDetector leakDetector;
+
+    private final int maxConnections;
+    private final long acquireTimeoutMillis;
+    // Whether the database is on a server, so connections can break.
+    private final boolean remote;
+
+    private final Semaphore permits;
+    private final Deque<Connection> idleConnections = new ArrayDeque<>();
+
+    // Prepared statements kept open on each physical connection, keyed by their SQL.
+    private final Map<Connection, Map<String, PreparedStatement>> statementCaches = new ConcurrentHashMap<>();
+
+    // Who borrowed each connection, when leak detection is on. Weak, so a connection that's never given back can
+    // still be collected, and reported.
+    private final Map<Connection, LeakDetector.Tracked> borrowedConnections =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private boolean closed = false;
+
+    ///region Metrics
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong deadConnections = new AtomicLong();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    ///endregion
+
+    ConnectionPool(JdbcDataSource dataSource, Logger logger, LeakDetector leakDetector, int maxConnections,
+                   long acquireTimeoutMillis, boolean remote) {
+        this.dataSource = dataSource;
+        this.logger = logger;
+        this.leakDetector = leakDetector;
+        this.maxConnections = maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.remote = remote;
+
+        permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if none are idle.
+     * Blocks while every connection is in use.
+     * @return A connection in auto-commit mode.
+     * @throws SQLException If no connection became free in time, or a new one could not be opened (in time, for a
+     * server).
+     */
+    Connection acquire() throws SQLException {
+        long waitStart = System.nanoTime();
+
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection (" + maxConnections
+                        + " in use).");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            Connection connection = pollLiveConnection();
+
+            if (connection == null) {
+                connection = openConnection(waitStart);
+                connectionsOpened.incrementAndGet();
+                logger.debug("Opened database connection #" + connectionsOpened.get());
+            }
+
+            if (leakDetector.isEnabled()) {
+                borrowedConnections.put(connection, leakDetector.track(connection, "connection"));
+            }
+
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool. Anything left uncommitted is rolled back.
+     * Connections that are broken are thrown away instead of being reused.
+     * @param connection The connection given out by {@link #acquire()}.
+     */
+    void release(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        LeakDetector.Tracked borrowed = borrowedConnections.remove(connection);
+        if (borrowed != null) {
+            borrowed.close();
+        }
+
+        boolean reusable;
+        try {
+            reusable = !connection.isClosed();
+
+            if (reusable && !connection.getAutoCommit()) {
+                rollback(connection);
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.warn("Discarding broken database connection: " + e.getMessage());
+            reusable = false;
+        }
+
+        synchronized (idleConnections) {
+            if (reusable && !closed) {
+                idleConnections.push(connection);
+                connection = null;
+            }
+        }
+
+        if (connection != null) {
+            discard(connection);
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Get a prepared statement for the SQL on this connection, reusing the one from last time if there is one.
+     * The statement belongs to the cache: set its parameters and run it, but don't close it.
+     * @param connection A connection given out by {@link #acquire()}.
+     * @param sql The SQL to prepare.
+     */
+    PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        // A connection is only ever used by one thread at a time, so its own cache doesn't need to be thread-safe.
+        Map<String, PreparedStatement> cache = statementCaches.computeIfAbsent(connection,
+                (key) -> new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                });
+
+        PreparedStatement statement = cache.get(sql);
+
+        if (statement == null || statement.isClosed()) {
+            statementCacheMisses.incrementAndGet();
+            statement = connection.prepareStatement(sql);
+            cache.put(sql, statement);
+        } else {
+            statementCacheHits.incrementAndGet();
+            statement.clearParameters();
+        }
+
+        return statement;
+    }
+
+    /**
+     * Roll back the connection's transaction.
+     * H2 may hand back the last result of a prepared query if it thinks nothing has changed since, and a rollback
+     * doesn't count as a change; so the connection's cached statements are thrown away as well.
+     * @param connection A connection given out by {@link #acquire()}.
+     */
+    void rollback(Connection connection) throws SQLException {
+        try {
+            connection.rollback();
+        } finally {
+            closeStatements(connection);
+        }
+    }
+
+    /**
+     * Close every idle connection and refuse to pool any more.
+     */
+    void close() {
+        synchronized (idleConnections) {
+            closed = true;
+
+            for (Connection connection : idleConnections) {
+                discard(connection);
+            }
+
+            idleConnections.clear();
+        }
+    }
+
+    private Connection pollIdleConnection() {
+        synchronized (idleConnections) {
+            return idleConnections.poll();
+        }
+    }
+
+    /**
+     * Take an idle connection, throwing away any that died while they were idle.
+     * @return The connection, or null if there are no live ones left.
+     */
+    private Connection pollLiveConnection() {
+        while (true) {
+            Connection connection = pollIdleConnection();
+
+            if (connection == null || !remote || isAlive(connection)) {
+                return connection;
+            }
+
+            deadConnections.incrementAndGet();
+            logger.warn("Discarding dead database connection.");
+            discard(connection);
+        }
+    }
+
+    private boolean isAlive(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a new connection. A server that can't be reached is tried again until the acquire timeout runs out,
+     * so a bot rides out the server restarting.
+     * @param waitStart When the caller started waiting for a connection, from {@link System#nanoTime()}.
+     */
+    private Connection openConnection(long waitStart) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Connection connection = dataSource.getConnection();
+
+                if (attempt > 1) {
+                    logger.info("Reconnected to the database after " + attempt + " attempts.");
+                }
+
+                return connection;
+            } catch (SQLException e) {
+                long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
+
+                if (!remote || waitedMillis + RECONNECT_DELAY > acquireTimeoutMillis) {
+                    throw e;
+                }
+
+                logger.warn("Couldn't reach the database (attempt " + attempt + "), retrying: " + e.getMessage());
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    private void discard(Connection connection) {
+        closeStatements(connection);
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Failed to close database connection: " + e.getMessage());
+        }
+    }
+
+    private void closeStatements(Connection connection) {
+        Map<String, PreparedStatement> cache = statementCaches.remove(connection);
+
+        if (cache != null) {
+            for (PreparedStatement statement : cache.values()) {
+                closeQuietly(statement);
+            }
+        }
+    }
+
+    private void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.warn("Failed to close prepared statement: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return How many connections are currently borrowed.
+     */
+    public int getActiveConnections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return How many open connections are sitting in the pool, ready to be borrowed.
+     */
+    public int getIdleConnections() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return How many physical connections have been opened since startup.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return How many pooled connections to a server were found dead and thrown away.
+     */
+    public long getDeadConnections() {
+        return deadConnections.get();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * @return The mean time callers spent waiting for a connection, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long count = acquireCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        return totalWaitNanos.get() / (double) count / 1000000.0;
+    }
+
+    /**
+     * @return The longest time a caller has spent waiting for a connection, in milliseconds.
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d idle=%d max=%d opened=%d dead=%d acquires=%d avgWait=%.3fms maxWait=%.3fms "
+                        + "statementCache=%d/%d",
+                getActiveConnections(), getIdleConnections(), maxConnections, getConnectionsOpened(),
+                getDeadConnections(),
+                getAcquireCount(), getAverageWaitMillis(), getMaxWaitMillis(),
+                getStatementCacheHits(), getStatementCacheHits() + getStatementCacheMisses());
+    }
+}
@@ -0,0 +1,335 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes snapshots of the database while the bot keeps running, on a schedule and when asked to.
+ *
+ * A snapshot is H2's SCRIPT output, taken a table at a time and written gzipped to the backup directory. Each
+ * table's script sees the table as it was when it started, so it's consistent even while modules keep writing, but
+ * tables are taken a moment apart. H2 reads a whole table before handing any of it over, so a table is copied at
+ * full speed with a pooled connection; then the connection goes back and the backup rests until it's within the
+ * rate limit, leaving the disk to the bot's own queries. Only the newest snapshots are kept.
+ *
+ * To restore one, stop the bot, move the old database out of the way and run:
+ * <pre>
+ * java -cp h2.jar org.h2.tools.RunScript -url jdbc:h2:./database -script backups/carlbot-....sql.gz
+ *     -options compression gzip
+ * </pre>
+ */
+public class DatabaseBackup {
+
+    public static final String DEFAULT_DIRECTORY = "backups";
+
+    /**
+     * How often a backup is taken, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * How many snapshots are kept, unless told otherwise.
+     */
+    public static final int DEFAULT_KEEP = 7;
+
+    /**
+     * How fast a snapshot is written, in KB per second before it's compressed, unless told otherwise.
+     */
+    public static final int DEFAULT_RATE_LIMIT = 2048;
+
+    private static final String FILE_PREFIX = "carlbot-";
+    private static final String FILE_SUFFIX = ".sql.gz";
+    private static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmssSSS");
+
+    private final Persistence database;
+    private final Logger logger;
+    private final File directory;
+    private final int keep;
+    // In bytes per second; 0 means as fast as it goes.
+    private final long rateLimit;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "carlbot-database-backup");
+        thread.setDaemon(true);
+        // Message handling comes first.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    ///region Metrics
+    private volatile long backups = 0;
+    private volatile long failures = 0;
+    private volatile File lastBackup;
+    private volatile long lastBackupMillis = 0;
+    ///endregion
+
+    DatabaseBackup(Persistence database, File directory, int keep, int rateLimit) {
+        this.database = database;
+        this.logger = database.logger;
+        this.directory = directory;
+        this.keep = keep;
+        this.rateLimit = rateLimit * 1024L;
+    }
+
+    /**
+     * Take a backup every interval, the first one an interval from now.
+     */
+    void schedule(long interval) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                backup();
+            } catch (IOException | SQLException | RuntimeException e) {
+                logger.error("Scheduled database backup failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        logger.info("Backing up the database to " + directory + " every " + TimeUnit.MILLISECONDS.toMinutes(interval)
+                + " minutes, keeping " + keep + ".");
+    }
+
+    /**
+     * Take a backup on the backup thread, as soon as it's free.
+     * @return The snapshot, once it's written.
+     */
+    public CompletableFuture<File> backupLater() {
+        CompletableFuture<File> future = new CompletableFuture<>();
+
+        scheduler.execute(() -> {
+            try {
+                future.complete(backup());
+            } catch (IOException | SQLException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Take a backup now, on this thread. This can take a while on a big database.
+     * @return The snapshot.
+     * @throws IllegalStateException If a backup is already running.
+     */
+    public File backup() throws IOException, SQLException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A backup is already running.");
+        }
+
+        String name = FILE_PREFIX + LocalDateTime.now().format(FILE_DATE_FORMAT) + FILE_SUFFIX;
+        File snapshot = new File(directory, name);
+        // Written under another name first, so a backup that dies part way never looks like a good one.
+        File partialSnapshot = new File(directory, name + ".partial");
+
+        try {
+            Files.createDirectories(directory.toPath());
+
+            long start = System.currentTimeMillis();
+            long bytesWritten = writeScript(partialSnapshot);
+            Files.move(partialSnapshot.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            lastBackupMillis = System.currentTimeMillis() - start;
+            lastBackup = snapshot;
+            backups++;
+
+            logger.info("Backed up the database to " + snapshot + ": " + bytesWritten / 1024 + " KB of script, "
+                    + snapshot.length() / 1024 + " KB compressed, in " + lastBackupMillis + "ms.");
+
+            deleteOldSnapshots();
+            return snapshot;
+        } catch (IOException | SQLException | RuntimeException e) {
+            failures++;
+            throw e;
+        } finally {
+            Files.deleteIfExists(partialSnapshot.toPath());
+            running.set(false);
+        }
+    }
+
+    /**
+     * @return How many bytes of script were written.
+     */
+    private long writeScript(File file) throws IOException, SQLException {
+        List<String> tables = findTables();
+        long start = System.currentTimeMillis();
+        long bytesWritten = 0;
+
+        try (Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8)) {
+            if (tables.isEmpty()) {
+                return copyScript("SCRIPT", writer);
+            }
+
+            for (int i = 0; i < tables.size(); i++) {
+                // Every table's script has the users and sequences too; dropping first lets the later ones win.
+                // The settings only have to be written once.
+                String table = "\"PUBLIC\".\"" + tables.get(i).replace("\"", "\"\"") + "\"";
+                bytesWritten += copyScript("SCRIPT " + (i == 0 ? "" : "NOSETTINGS ") + "DROP TABLE " + table, writer);
+
+                throttle(start, bytesWritten);
+            }
+        }
+
+        return bytesWritten;
+    }
+
+    /**
+     * @return The names of the database's own tables.
+     */
+    private List<String> findTables() throws SQLException {
+        return database.withConnection(connection -> {
+            List<String> tables = new ArrayList<>();
+
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select TABLE_NAME from INFORMATION_SCHEMA.TABLES"
+                         + " where TABLE_SCHEMA = 'PUBLIC' and TABLE_TYPE = 'TABLE' order by TABLE_NAME")) {
+                while (resultSet.next()) {
+                    tables.add(resultSet.getString(1));
+                }
+            }
+
+            return tables;
+        });
+    }
+
+    /**
+     * Run a SCRIPT statement and copy what it returns into the file. The connection is only held while copying.
+     * @return How many bytes of script were copied.
+     */
+    private long copyScript(String sql, Writer writer) throws IOException, SQLException {
+        try {
+            return database.withConnection(connection -> {
+                long bytesCopied = 0;
+
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery(sql)) {
+                    while (resultSet.next()) {
+                        String line = resultSet.getString(1);
+                        writer.write(line);
+                        writer.write('\n');
+
+                        bytesCopied += line.length() + 1;
+                    }
+                } catch (IOException e) {
+                    // The callback can only throw SQLExceptions.
+                    throw new UncheckedIOException(e);
+                }
+
+                return bytesCopied;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Wait, with no connection held, until writing this much has taken as long as the rate limit asks for.
+     */
+    private void throttle(long start, long bytesWritten) throws IOException {
+        if (rateLimit <= 0) {
+            return;
+        }
+
+        long wait = bytesWritten * 1000 / rateLimit - (System.currentTimeMillis() - start);
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing up the database.");
+            }
+        }
+    }
+
+    /**
+     * Keep only the newest snapshots.
+     */
+    private void deleteOldSnapshots() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        // The date in the name sorts them oldest first.
+        List<File> snapshots = new ArrayList<>(Arrays.asList(files));
+        snapshots.sort((first, second) -> first.getName().compareTo(second.getName()));
+
+        for (int i = 0; i < snapshots.size() - keep; i++) {
+            if (snapshots.get(i).delete()) {
+                logger.info("Deleted old database backup " + snapshots.get(i));
+            } else {
+                logger.warn("Couldn't delete old database backup " + snapshots.get(i));
+            }
+        }
+    }
+
+    /**
+     * Stop taking scheduled backups. A backup that's running is stopped too.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    ///region Metrics
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long getBackups() {
+        return backups;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return The newest snapshot taken since the bot started, or null if there hasn't been one.
+     */
+    public File getLastBackup() {
+        return lastBackup;
+    }
+
+    /**
+     * @return How long the newest snapshot took to take, in milliseconds.
+     */
+    public long getLastBackupMillis() {
+        return lastBackupMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Backups: " + backups + " taken, " + failures + " failed"
+                + (lastBackup != null ? ", last " + lastBackup.getName() + " in " + lastBackupMillis + "ms" : "")
+                + (running.get() ? ", one running" : "");
+    }
+
+    ///endregion
+}
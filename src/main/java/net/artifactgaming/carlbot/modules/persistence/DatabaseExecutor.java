@@ -0,0 +1,189 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs database work on its own small set of threads, so JDA's event thread never waits on H2.
+ *
+ * The queue is bounded; if it ever fills up, new work is refused (its future fails) rather than piling up forever.
+ * With the default single thread, work runs in the order it was submitted, so a read-modify-write from one message
+ * can't race with the next message's.
+ */
+public class DatabaseExecutor {
+
+    /**
+     * How many threads run database work by default.
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * How much work may be waiting before we start refusing more.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * How long we wait for queued work to finish when shutting down, in milliseconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    private final Logger logger;
+    private final ThreadPoolExecutor executor;
+
+    ///region Metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+    ///endregion
+
+    DatabaseExecutor(Logger logger, int threads, int queueCapacity) {
+        this.logger = logger;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = (runnable) -> {
+            Thread thread = new Thread(runnable, "carlbot-database-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queue the task to run on a database thread.
+     * @return A future that completes with the task's result, or exceptionally with whatever it threw.
+     */
+    <T> CompletableFuture<T> submit(DatabaseTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                record(totalQueueNanos, maxQueueNanos, startedAt - queuedAt);
+
+                try {
+                    future.complete(task.run());
+                    completed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    future.completeExceptionally(e);
+                } finally {
+                    record(totalRunNanos, maxRunNanos, System.nanoTime() - startedAt);
+                }
+            });
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("Database queue is full (" + executor.getQueue().size() + " waiting), refusing work.");
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Stop taking new work and wait for what's already queued to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("Gave up waiting on " + executor.getQueue().size() + " queued database tasks.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return How many tasks are waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return How many tasks are running right now.
+     */
+    public int getActiveTasks() {
+        return executor.getActiveCount();
+    }
+
+    public long getSubmittedTasks() {
+        return submitted.get();
+    }
+
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    public long getFailedTasks() {
+        return failed.get();
+    }
+
+    /**
+     * @return How many tasks were refused because the queue was full.
+     */
+    public long getRejectedTasks() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The mean time tasks spent waiting in the queue, in milliseconds.
+     */
+    public double getAverageQueueMillis() {
+        return average(totalQueueNanos);
+    }
+
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @return The mean time tasks took to run once they started, in milliseconds.
+     */
+    public double getAverageRunMillis() {
+        return average(totalRunNanos);
+    }
+
+    public double getMaxRunMillis() {
+        return maxRunNanos.get() / 1000000.0;
+    }
+
+    private double average(AtomicLong totalNanos) {
+        long finished = completed.get() + failed.get();
+
+        if (finished == 0) {
+            return 0;
+        }
+
+        return totalNanos.get() / (double) finished / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queued=%d active=%d submitted=%d completed=%d failed=%d rejected=%d "
+                        + "avgQueue=%.3fms maxQueue=%.3fms avgRun=%.3fms maxRun=%.3fms",
+                getQueueDepth(), getActiveTasks(), getSubmittedTasks(), getCompletedTasks(), getFailedTasks(),
+                getRejectedTasks(), getAverageQueueMillis(), getMaxQueueMillis(), getAverageRunMillis(),
+                getMaxRunMillis());
+    }
+}
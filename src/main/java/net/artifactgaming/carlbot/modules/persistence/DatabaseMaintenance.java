@@ -0,0 +1,409 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.h2.engine.Session;
+import org.h2.engine.SessionInterface;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.db.MVTableEngine;
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the database file in shape while the bot runs, when it's quiet.
+ *
+ * A run refreshes the statistics the query planner uses (ANALYZE), then compacts the file: live pages are copied out
+ * of chunks that are mostly dead (from deleted quotes and rewritten statistics), a slice at a time with rests in
+ * between, until the file is full enough or the time budget is spent. Chunks younger than the store's retention time
+ * are left for the next run, since a crash or a reader of an old version may still need them. Then, only if nothing
+ * else is using the database, the chunks are moved to the start of the file so it can shrink. The file size before
+ * and after is logged.
+ *
+ * Runs are due every interval, but only start once fewer statements than the quiet threshold ran in the last
+ * minute. Pausing stops a run at the next slice, and keeps new ones from starting until resumed.
+ */
+public class DatabaseMaintenance {
+
+    /**
+     * How often maintenance is due, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_INTERVAL = 6 * 60 * 60 * 1000;
+
+    /**
+     * How long a run may spend compacting, in milliseconds, unless told otherwise. Rests don't count.
+     */
+    public static final long DEFAULT_COMPACT_TIME = 10000;
+
+    /**
+     * How many statements a minute still count as quiet, unless told otherwise.
+     */
+    public static final long DEFAULT_QUIET_THRESHOLD = 120;
+
+    /**
+     * How full the file's chunks should be before compaction stops, in percent.
+     */
+    static final int TARGET_FILL_RATE = 90;
+
+    // How often we look at whether maintenance is due and it's quiet.
+    private static final long CHECK_INTERVAL = 60 * 1000;
+
+    // How much is rewritten in one slice of compaction.
+    private static final int SLICE_BYTES = 4 * 1024 * 1024;
+
+    // How much longer than a slice took to rest after it, so compaction only takes a fifth of the disk's time.
+    private static final int REST_FACTOR = 4;
+
+    private final Persistence database;
+    private final Logger logger;
+    private final long interval;
+    private final long compactTime;
+    private final long quietThreshold;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "carlbot-database-maintenance");
+        thread.setDaemon(true);
+        // Message handling comes first.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean paused = false;
+
+    // For working out how busy the last minute was.
+    private long lastStatementsRun = 0;
+    private volatile long lastRunEnded = System.currentTimeMillis();
+
+    ///region Metrics
+    private volatile long runs = 0;
+    private volatile long failures = 0;
+    private volatile long totalMillis = 0;
+    private volatile long lastRunMillis = 0;
+    private volatile long lastAnalyzeMillis = 0;
+    private volatile long lastCompactMillis = 0;
+    private volatile long lastSizeBefore = -1;
+    private volatile long lastSizeAfter = -1;
+    private volatile long bytesReclaimed = 0;
+    private volatile long chunkMoves = 0;
+    private volatile long skippedChunkMoves = 0;
+    ///endregion
+
+    DatabaseMaintenance(Persistence database, long interval, long compactTime, long quietThreshold) {
+        this.database = database;
+        this.logger = database.logger;
+        this.interval = interval;
+        this.compactTime = compactTime;
+        this.quietThreshold = quietThreshold;
+    }
+
+    /**
+     * Start looking for a quiet moment to run in, once every interval.
+     */
+    void schedule() {
+        lastStatementsRun = database.queryMetrics.getStatementsRun();
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runIfDueAndQuiet();
+            } catch (SQLException | RuntimeException e) {
+                logger.error("Scheduled database maintenance failed", e);
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+        logger.info("Maintaining the database every " + TimeUnit.MILLISECONDS.toMinutes(interval)
+                + " minutes, when there are fewer than " + quietThreshold + " statements a minute.");
+    }
+
+    private void runIfDueAndQuiet() throws SQLException {
+        long statementsRun = database.queryMetrics.getStatementsRun();
+        long statementsLastMinute = statementsRun - lastStatementsRun;
+        lastStatementsRun = statementsRun;
+
+        boolean due = System.currentTimeMillis() - lastRunEnded >= interval;
+
+        if (due && !paused && statementsLastMinute < quietThreshold) {
+            run();
+        }
+    }
+
+    /**
+     * Run maintenance on the maintenance thread, as soon as it's free, even if the bot is busy.
+     * @return Resolves once the run is over.
+     */
+    public CompletableFuture<Void> runLater() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        scheduler.execute(() -> {
+            try {
+                run();
+                future.complete(null);
+            } catch (SQLException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Run maintenance now, on this thread. This can take a while, though it rests between slices.
+     * @throws IllegalStateException If maintenance is already running.
+     */
+    public void run() throws SQLException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Database maintenance is already running.");
+        }
+
+        long start = System.currentTimeMillis();
+
+        try {
+            long analyzeStart = System.currentTimeMillis();
+            analyze();
+            lastAnalyzeMillis = System.currentTimeMillis() - analyzeStart;
+
+            long compactStart = System.currentTimeMillis();
+            compact();
+            lastCompactMillis = System.currentTimeMillis() - compactStart;
+
+            lastRunMillis = System.currentTimeMillis() - start;
+            totalMillis += lastRunMillis;
+            runs++;
+
+            logger.info("Database maintenance took " + lastRunMillis + "ms (analyze " + lastAnalyzeMillis
+                    + "ms, compact " + lastCompactMillis + "ms)" + describeSizes() + ".");
+        } catch (SQLException | RuntimeException e) {
+            failures++;
+            throw e;
+        } finally {
+            lastRunEnded = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Refresh the row counts and selectivity the query planner picks indexes by.
+     */
+    private void analyze() throws SQLException {
+        database.measure("ANALYZE", Collections.emptyList(), counts -> database.withConnection(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE");
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Copy live pages out of sparse chunks a slice at a time, then, if nothing else is using the database, move the
+     * chunks down so the file can shrink.
+     */
+    private void compact() throws SQLException {
+        database.withConnection(connection -> {
+            Session session = getSession(connection);
+            MVStore store = getStore(session);
+
+            // In memory, or over TCP; there's no file of ours to compact.
+            if (store == null || store.getFileStore() == null) {
+                lastSizeBefore = -1;
+                lastSizeAfter = -1;
+                return null;
+            }
+
+            lastSizeBefore = store.getFileStore().size();
+            long compactNanos = 0;
+
+            // The store's retention time is left alone: it keeps chunks written in the last little while (and the
+            // old versions readers may still be walking) from being reused. Those chunks are compacted next time.
+            while (!paused && compactNanos < TimeUnit.MILLISECONDS.toNanos(compactTime)) {
+                long sliceStart = System.nanoTime();
+                boolean rewrote = store.compact(TARGET_FILL_RATE, SLICE_BYTES);
+                long sliceNanos = System.nanoTime() - sliceStart;
+                compactNanos += sliceNanos;
+
+                if (!rewrote) {
+                    break;
+                }
+
+                rest(sliceNanos);
+            }
+
+            // Moving chunks overwrites the space they leave behind, so it waits until nobody else could be reading it.
+            if (!paused && isAlone(session)) {
+                store.sync();
+                store.compactMoveChunks(TARGET_FILL_RATE, SLICE_BYTES);
+                chunkMoves++;
+            } else {
+                skippedChunkMoves++;
+            }
+
+            lastSizeAfter = store.getFileStore().size();
+            bytesReclaimed += Math.max(0, lastSizeBefore - lastSizeAfter);
+            return null;
+        });
+    }
+
+    /**
+     * @return Whether the connection we're on is the only one doing anything: no other pooled connection is lent
+     * out (a streaming cursor, say), no backup is running, and no other session (such as a client's, in server mode)
+     * is running a command or has a transaction open.
+     */
+    private boolean isAlone(Session ours) {
+        if (database.connectionPool.getActiveConnections() > 1 || database.databaseBackup.isRunning()) {
+            return false;
+        }
+
+        for (Session session : ours.getDatabase().getSessions(false)) {
+            if (session != ours && (session.getCurrentCommand() != null || session.hasPendingTransaction())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The engine session under the connection, or null if it's a remote one.
+     */
+    private static Session getSession(Connection connection) throws SQLException {
+        SessionInterface session = connection.unwrap(JdbcConnection.class).getSession();
+        return (session instanceof Session) ? (Session) session : null;
+    }
+
+    /**
+     * @return The store under the session, or null if it isn't an embedded file database.
+     */
+    private static MVStore getStore(Session session) {
+        if (session == null) {
+            return null;
+        }
+
+        MVTableEngine.Store store = session.getDatabase().getStore();
+        return (store == null) ? null : store.getMvStore();
+    }
+
+    private void rest(long sliceNanos) throws SQLException {
+        try {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sliceNanos * REST_FACTOR));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while maintaining the database.", e);
+        }
+    }
+
+    private String describeSizes() {
+        if (lastSizeBefore < 0) {
+            return "";
+        }
+
+        return ", file " + lastSizeBefore / 1024 + " KB -> " + lastSizeAfter / 1024 + " KB";
+    }
+
+    /**
+     * Stop a run at its next slice, and don't start any more until {@link #resume()}.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    /**
+     * Stop looking for quiet moments. A run that's going is stopped too.
+     */
+    void shutdown() {
+        paused = true;
+        scheduler.shutdownNow();
+    }
+
+    ///region Metrics
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return How long every run so far took together, in milliseconds, rests included.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getLastRunMillis() {
+        return lastRunMillis;
+    }
+
+    public long getLastAnalyzeMillis() {
+        return lastAnalyzeMillis;
+    }
+
+    public long getLastCompactMillis() {
+        return lastCompactMillis;
+    }
+
+    /**
+     * @return The size of the file before the last run compacted it, in bytes; or -1 if there is no file.
+     */
+    public long getLastSizeBefore() {
+        return lastSizeBefore;
+    }
+
+    /**
+     * @return The size of the file after the last run compacted it, in bytes; or -1 if there is no file.
+     */
+    public long getLastSizeAfter() {
+        return lastSizeAfter;
+    }
+
+    /**
+     * @return How much smaller every run so far has made the file, in bytes.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    /**
+     * @return How many runs moved chunks down to shrink the file.
+     */
+    public long getChunkMoves() {
+        return chunkMoves;
+    }
+
+    /**
+     * @return How many runs couldn't move chunks, because the database was in use (or they were paused).
+     */
+    public long getSkippedChunkMoves() {
+        return skippedChunkMoves;
+    }
+
+    @Override
+    public String toString() {
+        return "Maintenance: " + runs + " runs, " + failures + " failed, " + totalMillis + "ms in total"
+                + (runs > 0 ? ", last " + lastRunMillis + "ms" + describeSizes() : "")
+                + ", " + bytesReclaimed / 1024 + " KB reclaimed, chunks moved " + chunkMoves + " times ("
+                + skippedChunkMoves + " skipped)"
+                + (running.get() ? ", one running" : "") + (paused ? ", paused" : "");
+    }
+
+    ///endregion
+}
@@ -0,0 +1,10 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * Database work to run off the calling thread, see {@link Persistence#submit(DatabaseTask)}.
+ */
+public interface DatabaseTask<T> {
+    T run() throws SQLException;
+}
@@ -1,7 +1,6 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
 import java.io.Serializable;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -18,32 +17,61 @@ public class DeleteBuilder implements SQLBuilder, Serializable {
 
     public DeleteBuilder(Table table) {
         this.table = table;
+
+        // In the shared layout, only delete this guild's rows.
+        if (table.partition != null) {
+            addWhere(Table.PARTITION_COLUMN, "=", table.partition);
+        }
     }
 
     @Override
     public ResultSet execute() throws SQLException {
-        Connection connection = table.server.getConnection();
-        PreparedStatement statement = connection.prepareStatement(toString());
+        executeUpdate();
 
-        table.logger.debug("Run sql: " + this.toString());
+        // Result is non-applicable.
+        return null;
+    }
 
-        int i = 1;
-        for (String value : whereValues) {
-            statement.setString(i, value);
-            i++;
-        }
+    /**
+     * Runs the delete.
+     * @return How many rows were deleted; 0 if none matched, so there's no need to check for the row first.
+     */
+    public int executeUpdate() throws SQLException {
+        String sql = toString();
 
-        statement.execute();
+        return table.database.measureWrite(table, sql, whereValues, counts ->
+                table.database.withConnection(connection -> {
+                    PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
 
-        // Result is non-applicable.
-        return null;
+                    int i = 1;
+                    for (Object value : whereValues) {
+                        SQLBuilder.bind(statement, i, value);
+                        i++;
+                    }
+
+                    int rowsDeleted = statement.executeUpdate();
+                    counts.rowsAffected = rowsDeleted;
+
+                    if (rowsDeleted > 0) {
+                        table.database.changeLog.record(connection, table, ChangeLog.Kind.Delete,
+                                ChangeLog.findKey(wheres, whereValues));
+                    }
+                    return rowsDeleted;
+                }));
     }
 
     private static final long serialVersionUID = 1;
 
     private List<String> wheres = new ArrayList<>();
 
-    private List<String> whereValues = new ArrayList<>();
+    private List<Object> whereValues = new ArrayList<>();
+
+    /**
+     * @return The values for every question mark in the SQL, in order.
+     */
+    List<Object> getParameters() {
+        return whereValues;
+    }
 
     @Override
     public String toString() {
@@ -53,6 +81,14 @@ public class DeleteBuilder implements SQLBuilder, Serializable {
     }
 
     public DeleteBuilder where(String expr, String cond, String value) {
+        return addWhere(expr, cond, value);
+    }
+
+    public DeleteBuilder where(String expr, String cond, long value) {
+        return addWhere(expr, cond, value);
+    }
+
+    private DeleteBuilder addWhere(String expr, String cond, Object value) {
         wheres.add(expr + " " + cond + "?");
         whereValues.add(value);
         return this;
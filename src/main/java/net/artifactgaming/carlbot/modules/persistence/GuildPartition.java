@@ -0,0 +1,28 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+/**
+ * The guild a {@link Table} in the shared layout is limited to.
+ *
+ * Builders on such a table add it as a value wherever the guild column is involved, so modules never see the
+ * column. Compiled queries spot it among the template's values and fill in the guild of the table they are run on.
+ */
+final class GuildPartition {
+
+    private final String guildID;
+
+    GuildPartition(String guildID) {
+        this.guildID = guildID;
+    }
+
+    /**
+     * @return The guild's ID, or null for a table that stands for the whole shared table.
+     */
+    String getGuildID() {
+        return guildID;
+    }
+
+    @Override
+    public String toString() {
+        return "guild " + guildID;
+    }
+}
@@ -1,9 +1,9 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,32 +22,103 @@ public class InsertBuilder implements SQLBuilder {
      */
     InsertBuilder(Table table) {
         this.table = table;
+        startRow();
     }
 
     @Override
     public ResultSet execute() throws SQLException {
-        Connection connection = table.server.getConnection();
-        PreparedStatement statement = connection.prepareStatement(toString());
+        String sql = toString();
 
-        table.logger.debug("Run sql: " + this.toString());
+        return table.database.measureWrite(table, sql, values, counts -> table.database.withConnection(connection -> {
+            PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
 
-        int i = 1;
-        for (String value : values) {
-            statement.setString(i, value);
-            i++;
-        }
+            int i = 1;
+            for (Object value : values) {
+                SQLBuilder.bind(statement, i, value);
+                i++;
+            }
 
-        statement.execute();
+            counts.rowsAffected = statement.executeUpdate();
+            table.database.changeLog.record(connection, table, ChangeLog.Kind.Insert, null);
 
-        // Result is non-applicable.
-        return null;
+            // Result is non-applicable.
+            return null;
+        }));
     }
 
     private static final long serialVersionUID = 1;
 
     private List<String> columns = new ArrayList<String>();
 
-    private List<String> values = new ArrayList<String>();
+    private List<Object> values = new ArrayList<>();
+
+    // The columns every row in the batch sets; null until the first row is added.
+    private List<String> batchColumns;
+
+    private List<List<Object>> batchRows = new ArrayList<>();
+
+    /**
+     * Adds the values set so far as a row in a batch and starts a new row.
+     * Every row must set the same columns, in the same order. Run the whole batch with {@link #executeBatch()}.
+     */
+    public InsertBuilder addBatch() {
+        if (batchColumns == null) {
+            batchColumns = new ArrayList<>(columns);
+        } else if (!batchColumns.equals(columns)) {
+            throw new IllegalStateException("Every row in a batch must set the same columns, in the same order.");
+        }
+
+        batchRows.add(new ArrayList<>(values));
+
+        columns.clear();
+        values.clear();
+        startRow();
+        return this;
+    }
+
+    /**
+     * In the shared layout, every row belongs to the table's guild.
+     */
+    private void startRow() {
+        if (table.partition != null) {
+            setValue(Table.PARTITION_COLUMN, table.partition);
+        }
+    }
+
+    /**
+     * @return The values for every question mark in the SQL, in order.
+     */
+    List<Object> getParameters() {
+        return values;
+    }
+
+    /**
+     * Inserts every row added with {@link #addBatch()} in a single transaction.
+     * @return The number of rows inserted by each row of the batch.
+     */
+    public int[] executeBatch() throws SQLException {
+        if (batchRows.isEmpty()) {
+            return new int[0];
+        }
+
+        String sql = toString();
+
+        return table.database.measureWriteBatch(table, sql, batchRows.size(), counts ->
+                table.database.withTransaction(connection -> {
+                    PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+                    int[] rowCounts = SQLBuilder.executeBatch(statement, batchRows);
+                    counts.rowsAffected = SQLBuilder.sum(rowCounts);
+                    table.database.changeLog.record(connection, table, ChangeLog.Kind.Insert, null);
+                    return rowCounts;
+                }));
+    }
+
+    /**
+     * @return How many rows have been added to the batch.
+     */
+    public int getBatchSize() {
+        return batchRows.size();
+    }
 
     /**
      * Inserts a column name, value pair into the SQL.
@@ -58,6 +129,33 @@ public class InsertBuilder implements SQLBuilder {
      *            Value to substitute in.
      */
     public InsertBuilder set(String column, String value) {
+        return setValue(column, value);
+    }
+
+    public InsertBuilder set(String column, long value) {
+        return setValue(column, value);
+    }
+
+    public InsertBuilder set(String column, int value) {
+        return setValue(column, value);
+    }
+
+    public InsertBuilder set(String column, double value) {
+        return setValue(column, value);
+    }
+
+    public InsertBuilder set(String column, boolean value) {
+        return setValue(column, value);
+    }
+
+    /**
+     * Inserts a timestamp, see {@link ColumnType#TIMESTAMP}.
+     */
+    public InsertBuilder set(String column, Instant value) {
+        return setValue(column, value);
+    }
+
+    private InsertBuilder setValue(String column, Object value) {
         columns.add(column);
         values.add(value);
         return this;
@@ -65,11 +163,14 @@ public class InsertBuilder implements SQLBuilder {
 
     @Override
     public String toString() {
+        // In a batch, the columns were moved over when the first row was added.
+        List<String> columns = (batchColumns != null) ? batchColumns : this.columns;
+
         StringBuilder sql = new StringBuilder("insert into ").append(table.getName()).append(" (");
         SQLBuilder.appendList(sql, columns, "", ", ");
         sql.append(") values (");
 
-        for (int i = 0; i < values.size(); i++) {
+        for (int i = 0; i < columns.size(); i++) {
             sql.append("?,");
         }
 
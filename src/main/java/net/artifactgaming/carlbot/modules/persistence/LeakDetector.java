@@ -0,0 +1,346 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import javax.sql.rowset.CachedRowSet;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the connections, cursors and result sets the persistence layer hands out, and of the code that
+ * asked for each one, so the ones that are never closed can be found and fixed.
+ *
+ * It's off unless "leak_detection" is set in the database config, since it takes a stack trace for every resource.
+ * Anything still open after the report age is logged once, with the stack trace of the code that opened it.
+ * A resource the garbage collector takes without it ever being closed is logged too, and counted as a leak against
+ * its call site. Resources are only weakly referenced, so tracking them never keeps them in memory.
+ */
+public class LeakDetector {
+
+    /**
+     * How long a resource may stay open before it's reported, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_REPORT_AGE = 60 * 1000;
+
+    private static final String PACKAGE_PREFIX = LeakDetector.class.getPackage().getName() + ".";
+
+    // Frames from these classes are how a resource gets opened, not who opened it.
+    private static final Set<String> PLUMBING_CLASSES = new HashSet<>(Arrays.asList(
+            "LeakDetector", "ConnectionPool", "RowCursor", "CompiledQuery", "SQLBuilder", "Table",
+            "SelectBuilder", "InsertBuilder", "UpdateBuilder", "DeleteBuilder", "MergeBuilder", "AlterBuilder"));
+
+    // Likewise for these methods of Persistence, and the lambdas in them.
+    private static final Set<String> PLUMBING_METHODS = new HashSet<>(Arrays.asList(
+            "withConnection", "withTransaction", "inTransaction", "measure", "measureBatch", "measured"));
+
+    private final Logger logger;
+    private final boolean enabled;
+    private final long reportAge;
+
+    private final Set<Tracked> open = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private final Map<String, AtomicLong> leaksByCallSite = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService checker;
+
+    ///region Metrics
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+    private final AtomicLong reported = new AtomicLong();
+    ///endregion
+
+    /**
+     * Handed out for every resource while leak detection is off. It's never in the open set, so closing it does
+     * nothing.
+     */
+    private final Tracked notTracked = new Tracked(null, null, null);
+
+    LeakDetector(Logger logger, boolean enabled, long reportAge) {
+        this.logger = logger;
+        this.enabled = enabled;
+        this.reportAge = reportAge;
+
+        if (!enabled) {
+            checker = null;
+            return;
+        }
+
+        checker = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "carlbot-leak-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long checkInterval = Math.max(1000, reportAge / 2);
+        checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+
+        logger.warn("Database leak detection is on; resources open for over " + reportAge + "ms are reported.");
+    }
+
+    /**
+     * Start tracking a resource, remembering who opened it.
+     * @param kind What the resource is, for the reports.
+     * @return What to close once the resource is closed.
+     */
+    Tracked track(Object resource, String kind) {
+        if (!enabled) {
+            return notTracked;
+        }
+
+        Throwable openedBy = new Throwable("A database " + kind + " was opened here");
+        Tracked tracked = new Tracked(resource, kind, openedBy);
+
+        open.add(tracked);
+        opened.incrementAndGet();
+        return tracked;
+    }
+
+    /**
+     * Track a detached result set, which is only known to be closed if its own close method is called.
+     * @return What to hand out in place of the rows: the rows themselves if leak detection is off.
+     */
+    ResultSet track(CachedRowSet rows) {
+        if (!enabled) {
+            return rows;
+        }
+
+        Tracked[] tracked = new Tracked[1];
+
+        ResultSet wrapped = (ResultSet) Proxy.newProxyInstance(CachedRowSet.class.getClassLoader(),
+                new Class<?>[] { CachedRowSet.class }, (proxy, method, arguments) -> {
+                    if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                        tracked[0].close();
+                    }
+
+                    try {
+                        return method.invoke(rows, arguments);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        tracked[0] = track(wrapped, "result set");
+        return wrapped;
+    }
+
+    /**
+     * Report resources that have been open too long, and ones that were collected without being closed.
+     */
+    synchronized void check() {
+        if (!enabled) {
+            return;
+        }
+
+        Object reference;
+        while ((reference = collected.poll()) != null) {
+            Tracked tracked = (Tracked) reference;
+
+            if (open.remove(tracked)) {
+                leaked.incrementAndGet();
+                leaksByCallSite.computeIfAbsent(tracked.kind + " from " + tracked.callSite, (key) -> new AtomicLong())
+                        .incrementAndGet();
+
+                logger.warn("A database " + tracked.kind + " opened by " + tracked.callSite
+                        + " was thrown away without being closed.", tracked.openedBy);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (Tracked tracked : open) {
+            if (!tracked.reported && now - tracked.openedAt >= reportAge) {
+                tracked.reported = true;
+                reported.incrementAndGet();
+
+                logger.warn("A database " + tracked.kind + " opened by " + tracked.callSite + " on thread "
+                        + tracked.thread + " has been open for " + (now - tracked.openedAt) + "ms.", tracked.openedBy);
+            }
+        }
+    }
+
+    /**
+     * Stop checking for leaks.
+     */
+    void shutdown() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the first frame of the stack that isn't the persistence layer's own plumbing.
+     */
+    private static String findCallSite(Throwable openedBy) {
+        for (StackTraceElement frame : openedBy.getStackTrace()) {
+            if (!isPlumbing(frame)) {
+                return frame.toString();
+            }
+        }
+
+        return "unknown";
+    }
+
+    private static boolean isPlumbing(StackTraceElement frame) {
+        String className = frame.getClassName();
+
+        if (className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("jdk.")
+                || className.startsWith("sun.") || className.startsWith("com.sun.")) {
+            return true;
+        }
+
+        if (!className.startsWith(PACKAGE_PREFIX)) {
+            return false;
+        }
+
+        // Inner classes count as their outer class.
+        String simpleName = className.substring(PACKAGE_PREFIX.length()).split("\\$")[0];
+
+        if (simpleName.equals("Persistence")) {
+            String methodName = frame.getMethodName().startsWith("lambda$")
+                    ? frame.getMethodName().split("\\$")[1]
+                    : frame.getMethodName();
+
+            return PLUMBING_METHODS.contains(methodName);
+        }
+
+        return PLUMBING_CLASSES.contains(simpleName);
+    }
+
+    ///region Metrics
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getReportAge() {
+        return reportAge;
+    }
+
+    /**
+     * @return How many resources are open right now.
+     */
+    public int getOpen() {
+        return open.size();
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return How many resources were collected without being closed.
+     */
+    public long getLeaked() {
+        return leaked.get();
+    }
+
+    /**
+     * @return How many resources were reported for being open too long.
+     */
+    public long getReported() {
+        return reported.get();
+    }
+
+    /**
+     * @return The open resources, the oldest first, described along with who opened them.
+     */
+    public List<String> getOldestOpen(int count) {
+        List<Tracked> oldest = new ArrayList<>(open);
+        oldest.sort(Comparator.comparingLong((Tracked tracked) -> tracked.openedAt));
+
+        long now = System.currentTimeMillis();
+        List<String> descriptions = new ArrayList<>();
+
+        for (int i = 0; i < Math.min(count, oldest.size()); i++) {
+            Tracked tracked = oldest.get(i);
+            descriptions.add(tracked.kind + ", " + (now - tracked.openedAt) / 1000 + "s, " + tracked.thread
+                    + ": " + tracked.callSite);
+        }
+
+        return descriptions;
+    }
+
+    /**
+     * @return How many leaks each call site has had, the worst first.
+     */
+    public Map<String, Long> getLeaksByCallSite() {
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<>(leaksByCallSite.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, AtomicLong> entry) -> entry.getValue().get())
+                .reversed());
+
+        Map<String, Long> leaks = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : entries) {
+            leaks.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return leaks;
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "Leak detection: off";
+        }
+
+        return "Leak detection: " + open.size() + " open, " + opened.get() + " opened, " + closed.get()
+                + " closed, " + leaked.get() + " leaked, " + reported.get() + " open over " + reportAge + "ms";
+    }
+
+    ///endregion
+
+    /**
+     * One resource being tracked. The resource itself is only weakly referenced, so once the garbage collector
+     * takes it this is queued, and if it was never closed, that's a leak.
+     */
+    final class Tracked extends WeakReference<Object> {
+
+        private final String kind;
+        private final Throwable openedBy;
+        private final String callSite;
+        private final String thread;
+        private final long openedAt = System.currentTimeMillis();
+
+        private volatile boolean reported = false;
+
+        private Tracked(Object resource, String kind, Throwable openedBy) {
+            super(resource, (resource == null) ? null : collected);
+            this.kind = kind;
+            this.openedBy = openedBy;
+            this.callSite = (openedBy == null) ? null : findCallSite(openedBy);
+            this.thread = Thread.currentThread().getName();
+        }
+
+        /**
+         * Stop tracking the resource, now that it's closed. Safe to call more than once.
+         */
+        void close() {
+            if (open.remove(this)) {
+                closed.incrementAndGet();
+            }
+
+            // A closed resource is no leak, whenever it's collected.
+            clear();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * A statement being run and timed by {@link Persistence#measure}.
+ * Fill in what it did on the counts, so they end up in the {@link QueryMetrics}.
+ */
+interface MeasuredCallback<T> {
+    T run(QueryMetrics.Counts counts) throws SQLException;
+}
@@ -0,0 +1,223 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds an H2 {@code merge into ... key (...) values (...)} statement: an insert that updates the existing row
+ * instead if one already has the same key.
+ *
+ * This replaces the select-then-insert-or-update dance with a single statement. Columns that aren't set are left
+ * alone on an existing row, and are null on a new one.
+ *
+ * The key should have a unique index, declared with a {@link TableIndex}: H2 refuses the merge if more than one row
+ * already has the key. Duplicates the old dance left behind keep the index from being made until they're sorted
+ * out by hand, see {@link Table#createIndex(TableIndex)}.
+ */
+public class MergeBuilder implements SQLBuilder {
+
+    private Table table;
+
+    MergeBuilder(Table table) {
+        this.table = table;
+
+        // In the shared layout, the same key may be used by every guild.
+        if (table.partition != null) {
+            keys.add(Table.PARTITION_COLUMN);
+        }
+
+        startRow();
+    }
+
+    @Override
+    public ResultSet execute() throws SQLException {
+        String sql = toString();
+
+        return table.database.measureWrite(table, sql, values, counts -> table.database.withConnection(connection -> {
+            PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+
+            int i = 1;
+            for (Object value : values) {
+                SQLBuilder.bind(statement, i, value);
+                i++;
+            }
+
+            counts.rowsAffected = statement.executeUpdate();
+            table.database.changeLog.record(connection, table, ChangeLog.Kind.Merge, findKey());
+
+            // Result is non-applicable.
+            return null;
+        }));
+    }
+
+    private List<String> keys = new ArrayList<>();
+
+    private List<String> columns = new ArrayList<>();
+
+    private List<Object> values = new ArrayList<>();
+
+    // The columns every row in the batch sets; null until the first row is added.
+    private List<String> batchColumns;
+
+    private List<List<Object>> batchRows = new ArrayList<>();
+
+    /**
+     * Adds a column to the key that decides whether a row already exists. The key column must also be set.
+     *
+     * @param column
+     *            Name of the table column.
+     */
+    public MergeBuilder key(String column) {
+        keys.add(column);
+        return this;
+    }
+
+    /**
+     * Adds the values set so far as a row in a batch and starts a new row.
+     * Every row must set the same columns, in the same order. Run the whole batch with {@link #executeBatch()}.
+     */
+    public MergeBuilder addBatch() {
+        if (batchColumns == null) {
+            batchColumns = new ArrayList<>(columns);
+        } else if (!batchColumns.equals(columns)) {
+            throw new IllegalStateException("Every row in a batch must set the same columns, in the same order.");
+        }
+
+        batchRows.add(new ArrayList<>(values));
+
+        columns.clear();
+        values.clear();
+        startRow();
+        return this;
+    }
+
+    /**
+     * In the shared layout, every row belongs to the table's guild.
+     */
+    private void startRow() {
+        if (table.partition != null) {
+            setValue(Table.PARTITION_COLUMN, table.partition);
+        }
+    }
+
+    /**
+     * @return The value of the first key column, for the change log; or null if it isn't set.
+     */
+    private Object findKey() {
+        for (String key : keys) {
+            int column = columns.indexOf(key);
+
+            if (!key.equals(Table.PARTITION_COLUMN) && column >= 0) {
+                return values.get(column);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The values for every question mark in the SQL, in order.
+     */
+    List<Object> getParameters() {
+        return values;
+    }
+
+    /**
+     * Merges every row added with {@link #addBatch()} in a single transaction.
+     * @return The number of rows inserted or updated by each row of the batch.
+     */
+    public int[] executeBatch() throws SQLException {
+        if (batchRows.isEmpty()) {
+            return new int[0];
+        }
+
+        String sql = toString();
+
+        return table.database.measureWriteBatch(table, sql, batchRows.size(), counts ->
+                table.database.withTransaction(connection -> {
+                    PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+                    int[] rowCounts = SQLBuilder.executeBatch(statement, batchRows);
+                    counts.rowsAffected = SQLBuilder.sum(rowCounts);
+                    table.database.changeLog.record(connection, table, ChangeLog.Kind.Merge, null);
+                    return rowCounts;
+                }));
+    }
+
+    /**
+     * @return How many rows have been added to the batch.
+     */
+    public int getBatchSize() {
+        return batchRows.size();
+    }
+
+    /**
+     * Sets a column name, value pair for the row.
+     *
+     * @param column
+     *            Name of the table column.
+     * @param value
+     *            Value to substitute in.
+     */
+    public MergeBuilder set(String column, String value) {
+        return setValue(column, value);
+    }
+
+    public MergeBuilder set(String column, long value) {
+        return setValue(column, value);
+    }
+
+    public MergeBuilder set(String column, int value) {
+        return setValue(column, value);
+    }
+
+    public MergeBuilder set(String column, double value) {
+        return setValue(column, value);
+    }
+
+    public MergeBuilder set(String column, boolean value) {
+        return setValue(column, value);
+    }
+
+    /**
+     * Sets a timestamp, see {@link ColumnType#TIMESTAMP}.
+     */
+    public MergeBuilder set(String column, Instant value) {
+        return setValue(column, value);
+    }
+
+    private MergeBuilder setValue(String column, Object value) {
+        columns.add(column);
+        values.add(value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        if (keys.isEmpty()) {
+            throw new IllegalStateException("A merge needs at least one key column.");
+        }
+
+        // In a batch, the columns were moved over when the first row was added.
+        List<String> columns = (batchColumns != null) ? batchColumns : this.columns;
+
+        StringBuilder sql = new StringBuilder("merge into ").append(table.getName()).append(" (");
+        SQLBuilder.appendList(sql, columns, "", ", ");
+        sql.append(") key (");
+        SQLBuilder.appendList(sql, keys, "", ", ");
+        sql.append(") values (");
+
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append("?,");
+        }
+
+        // Pop off that extra comma.
+        sql.deleteCharAt(sql.length() - 1);
+
+        sql.append(")");
+        return sql.toString();
+    }
+}
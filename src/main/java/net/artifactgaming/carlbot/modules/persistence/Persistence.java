@@ -5,18 +5,59 @@ import net.artifactgaming.carlbot.Command;
 import net.artifactgaming.carlbot.Module;
 
 import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+import org.h2.api.ErrorCode;
 import org.h2.jdbcx.JdbcDataSource;
 import org.h2.tools.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Persistence implements Module {
 
+    /**
+     * How many times {@link #inTransaction(TransactionCallback)} tries its work before giving up on a lock timeout.
+     */
+    public static final int TRANSACTION_ATTEMPTS = 3;
+
+    /**
+     * How long to wait before retrying a transaction that hit a lock, in milliseconds. Grows with each attempt.
+     */
+    private static final long TRANSACTION_RETRY_DELAY = 50;
+
     JdbcDataSource server;
+    ConnectionPool connectionPool;
+    DatabaseExecutor databaseExecutor;
     Logger logger = LoggerFactory.getLogger(Persistence.class);
+    QueryMetrics queryMetrics = new QueryMetrics();
+    DatabaseBackup databaseBackup;
+    LeakDetector leakDetector;
+    DatabaseMaintenance databaseMaintenance;
+    ChangeLog changeLog;
+
+    // Serves the database to other bots, in server mode. Null otherwise.
+    private Server tcpServer;
+
+    // Whether the database is reached over TCP, in client mode.
+    boolean remote;
 
     // A list of all tables is kept in this table.
     Table tableOfTables;
@@ -24,12 +65,101 @@ public class Persistence implements Module {
     // A list of all columns and their tables is kept in this table.
     Table tableOfColumns;
 
+    // Our own copy of the two tables above, so we don't have to query them all the time.
+    SchemaCatalog schemaCatalog = new SchemaCatalog();
+
     private Table users;
     private Table guilds;
 
+    // Which modules have moved to the shared layout, see setSharedLayout.
+    private Table sharedLayout;
+    private Set<String> sharedLayoutModules = ConcurrentHashMap.newKeySet();
+
+    // Every guild ID already registered in the guilds table. Loaded on setup and kept up to date as guilds are added.
+    private Set<String> knownGuilds = ConcurrentHashMap.newKeySet();
+
+    // Brings the modules' tables up to date, see PersistentModule.getSchemaSteps.
+    SchemaMigrator schemaMigrator;
+    private List<PersistentModule> persistentModules = new CopyOnWriteArrayList<>();
+
+    // Queries compiled with Table.compile(name, factory), keyed by table and query name.
+    Map<String, CompiledQuery> compiledQueries = new ConcurrentHashMap<>();
+
+    // The tables handed out by getGuildTable, keyed by guild, module and sub table, so each one is only made once.
+    private Map<String, Table> guildTables = new ConcurrentHashMap<>();
+    private final Object guildRegistrationLock = new Object();
+
+    // Caches made with createCache, and the thread that flushes their writes.
+    private final List<PersistentCache<?, ?>> caches = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService cacheFlusher = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "carlbot-cache-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Closes the database when the process exits, unless shutdown() already has.
+    private final Thread shutdownHook = new Thread(this::shutdown, "carlbot-database-shutdown");
+    private final AtomicBoolean shutDown = new AtomicBoolean(false);
+
+    // The connection pinned by inTransaction on this thread, if any.
+    private final ThreadLocal<Connection> transactionConnection = new ThreadLocal<>();
+
+    // The module write locks taken inside inTransaction on this thread, kept until it commits or rolls back.
+    private final ThreadLocal<Set<Lock>> transactionWriteLocks = new ThreadLocal<>();
+
+    // By module name. Its writes hold it for reading; moving it to the shared layout holds it for writing.
+    private final Map<String, ReadWriteLock> moduleWriteLocks = new ConcurrentHashMap<>();
+
     public Persistence() throws SQLException {
+        this(new PersistenceConfig());
+    }
+
+    /**
+     * @param config Where the database is and how to tune it, see {@link PersistenceConfig}.
+     */
+    public Persistence(PersistenceConfig config) throws SQLException {
         server = new JdbcDataSource();
-        server.setURL("jdbc:h2:./database");
+        server.setURL(config.getJdbcUrl());
+        logger.info("Using database: " + config);
+
+        leakDetector = new LeakDetector(logger, config.isLeakDetection(), config.getLeakReportAge());
+
+        remote = config.isRemote();
+        connectionPool = new ConnectionPool(server, logger, leakDetector, config.getMaxConnections(),
+                config.getAcquireTimeout(), remote);
+
+        if (config.getMode() == PersistenceConfig.Mode.Server) {
+            tcpServer = Server.createTcpServer(config.getServerArguments()).start();
+            logger.info("Serving the database to other bots at " + tcpServer.getURL());
+        }
+
+        databaseExecutor = new DatabaseExecutor(logger, config.getExecutorThreads(), config.getExecutorQueueCapacity());
+
+        queryMetrics.setSlowQueryThreshold(config.getSlowQueryThreshold());
+
+        databaseBackup = new DatabaseBackup(this, new File(config.getBackupDirectory()),
+                config.getBackupKeep(), config.getBackupRateLimit());
+        // Only the process that owns the file takes scheduled backups, so shards don't all back up the same data.
+        if (config.getBackupInterval() > 0 && !config.isRemote()) {
+            databaseBackup.schedule(config.getBackupInterval());
+        }
+
+        databaseMaintenance = new DatabaseMaintenance(this, config.getMaintenanceInterval(),
+                config.getMaintenanceCompactTime(), config.getMaintenanceQuietThreshold());
+        // The server looks after the file; clients can't reach it.
+        if (config.getMaintenanceInterval() > 0 && !config.isRemote()) {
+            databaseMaintenance.schedule();
+        }
+
+        changeLog = new ChangeLog(this, config.isChangeLog(), config.getChangeLogPollInterval(),
+                config.getChangeLogRetention());
+        changeLog.addListener(this::applyChange);
+
+        // Let queued work (such as statistics) and cached writes finish before the process goes away.
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        cacheFlusher.scheduleWithFixedDelay(this::flushCaches,
+                PersistentCache.FLUSH_INTERVAL, PersistentCache.FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
 
         // If debug is enabled, fire up the debug webpage and host it locally.
         if (logger.isDebugEnabled()) {
@@ -41,6 +171,11 @@ public class Persistence implements Module {
         tableOfColumns = new Table(this, "INFORMATION_SCHEMA.COLUMNS");
         users = new Table(this, "CARLBOT_USERS");
         guilds = new Table(this, "CARLBOT_GUILDS");
+        sharedLayout = new Table(this, "CARLBOT_SHARED_LAYOUT");
+
+        schemaCatalog.load(this);
+
+        schemaMigrator = new SchemaMigrator(this);
     }
 
     @Override
@@ -49,14 +184,20 @@ public class Persistence implements Module {
 
         //columns.add(new TableColumn("discord_id", TableColumn.Type.CharString));
 
+        List<PersistentModule> detectedModules = new ArrayList<>();
+
         for (Module module : modules) {
             if (module instanceof PersistentModule) {
                 String name = module.getClass().getCanonicalName();
                 logger.info("Detected persistent module: " + name);
+                detectedModules.add((PersistentModule) module);
             }
         }
 
         try {
+            // Before anything else, so the other bots hear about the changes below.
+            changeLog.start();
+
             if (!users.exists()) {
                 users.create();
                 users.alter().add().pushValue("discord_id varchar").execute();
@@ -66,36 +207,1065 @@ public class Persistence implements Module {
                 guilds.create();
                 guilds.alter().add().pushValue("discord_id varchar").execute();
             }
+
+            if (!sharedLayout.exists()) {
+                sharedLayout.create();
+                sharedLayout.alter().add().pushValue("module varchar").execute();
+            }
+
+            users.createIndex("discord_id");
+            createGuildsIndex();
+            sharedLayout.createUniqueIndex("module");
+
+            loadKnownGuilds();
+            loadSharedLayoutModules();
+
+            schemaMigrator.load();
+            schemaMigrator.migrateAll(detectedModules, knownGuilds);
+            // Guilds seen from now on are brought up to date as they're registered.
+            persistentModules.addAll(detectedModules);
+
+            // Merges need their keys unique, so this has to be done before any module gets to write.
+            addMissingTableIndexes(modules);
         } catch (SQLException e) {
             e.printStackTrace();
         }
+
+        carlbot.addOnGuildLeaveListener((event) -> forgetGuild(event.getGuild().getId()));
+    }
+
+    /**
+     * Borrow a pooled connection for the duration of the callback.
+     * The connection always goes back to the pool, even if the callback throws.
+     */
+    <T> T withConnection(ConnectionCallback<T> callback) throws SQLException {
+        Connection pinnedConnection = transactionConnection.get();
+
+        // Inside inTransaction, everything shares its connection.
+        if (pinnedConnection != null) {
+            return callback.run(pinnedConnection);
+        }
+
+        Connection connection = connectionPool.acquire();
+
+        try {
+            return callback.run(connection);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    /**
+     * Like {@link #withConnection(ConnectionCallback)}, but everything the callback does is committed together
+     * at the end, or rolled back if it throws.
+     */
+    <T> T withTransaction(ConnectionCallback<T> callback) throws SQLException {
+        Connection pinnedConnection = transactionConnection.get();
+
+        // Already in a transaction, so just become part of it.
+        if (pinnedConnection != null) {
+            return callback.run(pinnedConnection);
+        }
+
+        return withConnection(connection -> {
+            connection.setAutoCommit(false);
+
+            try {
+                T result = callback.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connectionPool.rollback(connection);
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Run several statements as one unit of work.
+     *
+     * Every builder executed inside the callback (on this thread) uses the same connection, and they are all
+     * committed together at the end. If the callback throws, nothing it did is kept.
+     * If the work runs into a lock held by another transaction, it is rolled back and run again, up to
+     * {@link #TRANSACTION_ATTEMPTS} times, so the callback should not have side effects outside the database.
+     * Calling this from inside another transaction simply joins the outer one.
+     *
+     * Create tables before starting the transaction; H2 commits as soon as it runs any DDL.
+     * @param callback The work to do.
+     * @return Whatever the callback returns.
+     */
+    public <T> T inTransaction(TransactionCallback<T> callback) throws SQLException {
+        if (transactionConnection.get() != null) {
+            return callback.run();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            Set<Lock> writeLocks = new HashSet<>();
+
+            try {
+                return withTransaction(connection -> {
+                    transactionConnection.set(connection);
+                    transactionWriteLocks.set(writeLocks);
+
+                    try {
+                        return callback.run();
+                    } finally {
+                        transactionConnection.remove();
+                        transactionWriteLocks.remove();
+                    }
+                });
+            } catch (SQLException e) {
+                if (attempt >= TRANSACTION_ATTEMPTS || !isLockConflict(e)) {
+                    throw e;
+                }
+
+                logger.warn("Transaction hit a lock (attempt " + attempt + " of " + TRANSACTION_ATTEMPTS
+                        + "), retrying: " + e.getMessage());
+
+                try {
+                    Thread.sleep(TRANSACTION_RETRY_DELAY * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } finally {
+                // Only now is the transaction over, one way or the other.
+                for (Lock writeLock : writeLocks) {
+                    writeLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a statement, timing it and recording it in the {@link QueryMetrics}.
+     * @param parameters Its values, for the slow query log.
+     */
+    <T> T measure(String sql, List<?> parameters, MeasuredCallback<T> callback) throws SQLException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Run sql: " + sql);
+        }
+
+        return measured(sql, parameters, callback);
+    }
+
+    /**
+     * Like {@link #measure(String, List, MeasuredCallback)}, for a statement run once for each row of a batch.
+     */
+    <T> T measureBatch(String sql, int rows, MeasuredCallback<T> callback) throws SQLException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Run batch sql (" + rows + " rows): " + sql);
+        }
+
+        return measured(sql, null, callback);
+    }
+
+    /**
+     * Like {@link #measure(String, List, MeasuredCallback)}, for a statement that changes the table.
+     * See {@link #lockWrites(Table)}.
+     */
+    <T> T measureWrite(Table table, String sql, List<?> parameters, MeasuredCallback<T> callback)
+            throws SQLException {
+        Lock writeLock = lockWrites(table);
+
+        try {
+            return measure(sql, parameters, callback);
+        } finally {
+            unlockWrites(writeLock);
+        }
+    }
+
+    /**
+     * Like {@link #measureBatch(String, int, MeasuredCallback)}, for a batch that changes the table.
+     * See {@link #lockWrites(Table)}.
+     */
+    <T> T measureWriteBatch(Table table, String sql, int rows, MeasuredCallback<T> callback) throws SQLException {
+        Lock writeLock = lockWrites(table);
+
+        try {
+            return measureBatch(sql, rows, callback);
+        } finally {
+            unlockWrites(writeLock);
+        }
+    }
+
+    /**
+     * A module's writes wait here while its tables are being moved to the shared layout, so the move can't leave
+     * any behind. Inside {@link #inTransaction(TransactionCallback)} the lock is kept until the transaction is over,
+     * so the move can't copy the tables between a write and its commit either.
+     * @return The lock to give to {@link #unlockWrites(Lock)} once the write is done, or null if there's none.
+     * @throws SQLException If the write was aimed at a per-guild table that the module moved away from while it
+     * waited; the module has to get the table again.
+     */
+    private Lock lockWrites(Table table) throws SQLException {
+        if (table.moduleName == null) {
+            return null;
+        }
+
+        Lock lock = getModuleWriteLock(table.moduleName).readLock();
+        Set<Lock> transactionLocks = transactionWriteLocks.get();
+        Lock toUnlock = null;
+
+        if (transactionLocks == null) {
+            lock.lock();
+            toUnlock = lock;
+        } else if (transactionLocks.add(lock)) {
+            lock.lock();
+        }
+
+        if (table.partition == null && table.guildID != null && sharedLayoutModules.contains(table.moduleName)) {
+            unlockWrites(toUnlock);
+            throw new SQLException(table.getName() + " was moved to the shared layout while this write waited for "
+                    + "it; get the table again.");
+        }
+
+        return toUnlock;
+    }
+
+    private static void unlockWrites(Lock writeLock) {
+        if (writeLock != null) {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The lock a module's writes hold for reading, see {@link #lockWrites(Table)}.
+     */
+    ReadWriteLock getModuleWriteLock(String moduleName) {
+        return moduleWriteLocks.computeIfAbsent(moduleName, (key) -> new ReentrantReadWriteLock());
+    }
+
+    private <T> T measured(String sql, List<?> parameters, MeasuredCallback<T> callback) throws SQLException {
+        QueryMetrics.Counts counts = new QueryMetrics.Counts();
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            T result = callback.run(counts);
+            failed = false;
+            return result;
+        } finally {
+            queryMetrics.record(sql, parameters, System.nanoTime() - start, counts, failed);
+        }
+    }
+
+    /**
+     * @return The timings of every statement run so far.
+     */
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * @return The connection pinned by {@link #inTransaction(TransactionCallback)} on this thread, or null.
+     */
+    Connection getTransactionConnection() {
+        return transactionConnection.get();
+    }
+
+    /**
+     * @return Whether the statement failed because a unique index already had a row with the same key.
+     */
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == ErrorCode.DUPLICATE_KEY_1;
+    }
+
+    private static boolean isLockConflict(SQLException e) {
+        switch (e.getErrorCode()) {
+            case ErrorCode.LOCK_TIMEOUT_1:
+            case ErrorCode.DEADLOCK_1:
+            case ErrorCode.CONCURRENT_UPDATE_1:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Run database work on the database thread instead of this one.
+     * Use this from event listeners, so a slow query doesn't hold up JDA's event thread.
+     * @param task The work to do. It runs on another thread, so it can't join a transaction from this one.
+     * @return A future that completes with the task's result, or exceptionally if it threw or the queue was full.
+     */
+    public <T> CompletableFuture<T> submit(DatabaseTask<T> task) {
+        return databaseExecutor.submit(task);
+    }
+
+    /**
+     * Make a cache for some of a module's data, see {@link PersistentCache}.
+     * @param name What to call it in logs and metrics, unique within the module.
+     * @param loader Loads values that aren't cached.
+     * @param writer Writes values handed to {@link PersistentCache#put(String, Object, Object)}, or null if the module
+     *               writes to the database itself.
+     */
+    public <K, V> PersistentCache<K, V> createCache(PersistentModule module, String name,
+                                                    PersistentCache.Loader<K, V> loader,
+                                                    PersistentCache.Writer<K, V> writer) {
+        return createCache(module, name, loader, writer,
+                PersistentCache.DEFAULT_MAX_SIZE, PersistentCache.DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maxSize How many values to keep at most.
+     * @param timeToLive How long to trust a loaded value, in milliseconds.
+     */
+    public <K, V> PersistentCache<K, V> createCache(PersistentModule module, String name,
+                                                    PersistentCache.Loader<K, V> loader,
+                                                    PersistentCache.Writer<K, V> writer,
+                                                    int maxSize, long timeToLive) {
+        PersistentCache<K, V> cache = new PersistentCache<>(module.getClass().getSimpleName() + "/" + name,
+                module.getClass().getCanonicalName(), this, loader, writer, maxSize, timeToLive);
+
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Write every cache's pending writes to the database now.
+     */
+    public void flushCaches() {
+        for (PersistentCache<?, ?> cache : caches) {
+            // Keep going; a failing cache logs its own errors.
+            try {
+                cache.flush();
+            } catch (RuntimeException e) {
+                logger.error("Error flushing the " + cache.getName() + " cache", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the background work, let queued work and cached writes finish, then close the database. It runs by itself
+     * when the process exits; call it to close the database sooner, such as at the end of a test.
+     */
+    public void shutdown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The process is already exiting; the hook will find this done.
+            }
+        }
+
+        databaseBackup.shutdown();
+        databaseMaintenance.shutdown();
+        changeLog.shutdown();
+        leakDetector.shutdown();
+        cacheFlusher.shutdown();
+        flushCaches();
+        databaseExecutor.shutdown();
+        connectionPool.close();
+
+        // Clients lose the database now, so this goes last.
+        if (tcpServer != null) {
+            tcpServer.stop();
+        }
+        closeDatabase();
+    }
+
+    /**
+     * Close the database cleanly, now that nothing else will use it. A client leaves that to the server.
+     */
+    private void closeDatabase() {
+        if (remote) {
+            return;
+        }
+
+        try (Connection connection = server.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        } catch (SQLException e) {
+            logger.error("Couldn't close the database cleanly", e);
+        }
+    }
+
+    /**
+     * Make every cache forget what it knows about a guild, so it is loaded from the database again.
+     */
+    public void invalidateGuildCaches(String guildID) {
+        for (PersistentCache<?, ?> cache : caches) {
+            cache.invalidateGuild(guildID);
+        }
+    }
+
+    /**
+     * Catch up with a change another bot made: drop what the module's caches know about the guild, and after an
+     * alter, reload the table's columns.
+     */
+    private void applyChange(ChangeLog.Change change) {
+        for (PersistentCache<?, ?> cache : caches) {
+            if (!change.getModule().equals(cache.getModuleName())) {
+                continue;
+            }
+
+            if (change.getGuildID() == null) {
+                cache.invalidateAll();
+            } else {
+                cache.invalidateGuild(change.getGuildID());
+            }
+        }
+
+        if (change.getKind() == ChangeLog.Kind.Alter) {
+            try {
+                schemaCatalog.reloadTable(this, change.getTable());
+            } catch (SQLException e) {
+                logger.error("Couldn't reload the columns of " + change.getTable() + " after another bot changed them",
+                        e);
+            }
+        }
+    }
+
+    /**
+     * @return Every cache made with createCache, mostly so their metrics can be inspected.
+     */
+    public List<PersistentCache<?, ?>> getCaches() {
+        return Collections.unmodifiableList(caches);
+    }
+
+    /**
+     * @return The database executor, mostly so its metrics can be inspected.
+     */
+    public DatabaseExecutor getDatabaseExecutor() {
+        return databaseExecutor;
+    }
+
+    /**
+     * @return The connection pool, mostly so its metrics can be inspected.
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return What keeps track of connections and result sets that aren't closed, to see what it's found.
+     */
+    public LeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+    /**
+     * @return What tells this bot about the other bots' changes, to listen to it or see how it's doing.
+     */
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * @return What analyzes and compacts the database, to run or pause it, or see how it's gone.
+     */
+    public DatabaseMaintenance getDatabaseMaintenance() {
+        return databaseMaintenance;
+    }
+
+    /**
+     * @return What takes snapshots of the database, to take one or see how they've gone.
+     */
+    public DatabaseBackup getDatabaseBackup() {
+        return databaseBackup;
     }
 
     public Table getUsersTable(){
         return users;
     }
 
+    /**
+     * Get a module's table for a guild. The same table is handed back every time, until the bot leaves the guild.
+     */
     public Table getGuildTable(String guildID, PersistentModule module) throws SQLException {
-        String moduleName = module.getClass().getCanonicalName();
+        // We're going to add this server to our list of known servers though, but only if it's not already there.
+        registerGuild(guildID);
 
-        Table table = new Table(this, "\"GUILD_" + guildID + ":" + moduleName.toUpperCase() + "\"");
         // You don't have to create the table for it to be a parent.
+        return guildTables.computeIfAbsent(getGuildTableKey(guildID, module, null),
+                (key) -> makeGuildTable(guildID, module));
+    }
 
-        // We're going to add this server to our list of known servers though, but only if it's not already there.
-        ResultSet resultSet = guilds.select().where("discord_id", "=", guildID).execute();
-        if (!resultSet.next()) {
-            guilds.insert().set("discord_id", guildID).execute();
+    /**
+     * Get one of a module's tables for a guild. The module's schema steps have made it by the time it's handed out.
+     * Like the module's own table, the same one is handed back every time.
+     * @param subTable What the module calls the table, such as "quotes".
+     */
+    public Table getGuildTable(String guildID, PersistentModule module, String subTable) throws SQLException {
+        Table parent = getGuildTable(guildID, module);
+
+        return guildTables.computeIfAbsent(getGuildTableKey(guildID, module, subTable),
+                (key) -> new Table(parent, subTable));
+    }
+
+    private static String getGuildTableKey(String guildID, PersistentModule module, String subTable) {
+        return guildID + "/" + module.getClass().getCanonicalName() + "/" + (subTable == null ? "" : subTable);
+    }
+
+    /**
+     * Forget the tables and cached rows of a guild the bot has left. Its rows stay in the database, in case it
+     * comes back.
+     */
+    public void forgetGuild(String guildID) {
+        String keyPrefix = guildID + "/";
+        guildTables.keySet().removeIf((key) -> key.startsWith(keyPrefix));
+
+        // Queries compiled for the shared tables are used by every guild, so only the guild's own go.
+        String tablePrefix = "\"GUILD_" + guildID + ":";
+        compiledQueries.keySet().removeIf((key) -> key.startsWith(tablePrefix));
+
+        invalidateGuildCaches(guildID);
+
+        logger.debug("Forgot the tables of guild " + guildID);
+    }
+
+    private Table makeGuildTable(String guildID, PersistentModule module) {
+        if (usesSharedLayout(module)) {
+            return makeSharedTable(guildID, module);
         }
 
+        return makePerGuildTable(guildID, module);
+    }
+
+    Table makePerGuildTable(String guildID, PersistentModule module) {
+        String moduleName = module.getClass().getCanonicalName();
+
+        Table table = new Table(this, "\"GUILD_" + guildID + ":" + moduleName.toUpperCase() + "\"");
+        table.guildID = guildID;
+        table.moduleName = moduleName;
+        return table;
+    }
+
+    /**
+     * @param guildID The guild the table is limited to, or null for a table standing for every guild's rows.
+     */
+    Table makeSharedTable(String guildID, PersistentModule module) {
+        String moduleName = module.getClass().getCanonicalName();
+
+        Table table = new Table(this, "\"SHARED:" + moduleName.toUpperCase() + "\"", new GuildPartition(guildID));
+        table.guildID = guildID;
+        table.moduleName = moduleName;
         return table;
     }
 
+    /**
+     * Whether a module keeps one table per guild (the default), or one table for every guild with a
+     * {@link Table#PARTITION_COLUMN} column saying whose each row is.
+     *
+     * Tables handed out by {@link #getGuildTable(String, PersistentModule)} take care of the guild column by
+     * themselves, so a module doesn't change when it moves over, and modules can move one at a time.
+     */
+    public boolean usesSharedLayout(PersistentModule module) {
+        return sharedLayoutModules.contains(module.getClass().getCanonicalName());
+    }
+
+    /**
+     * Switch a module between the two layouts, see {@link #usesSharedLayout(PersistentModule)}.
+     * Its rows are not copied across; use {@link #migrateToSharedLayout(PersistentModule)} for that.
+     * The choice is stored, so it holds after a restart.
+     */
+    public void setSharedLayout(PersistentModule module, boolean shared) throws SQLException {
+        String moduleName = module.getClass().getCanonicalName();
+
+        if (shared) {
+            sharedLayout.merge().set("module", moduleName).key("module").execute();
+            sharedLayoutModules.add(moduleName);
+        } else {
+            sharedLayout.delete().where("module", "=", moduleName).execute();
+            sharedLayoutModules.remove(moduleName);
+        }
+
+        // Tables already handed out point at the old layout.
+        guildTables.clear();
+
+        logger.info(moduleName + " now uses the " + (shared ? "shared" : "per-guild") + " table layout.");
+    }
+
+    /**
+     * Copy every guild's tables of a module into its shared tables, then switch the module to the shared layout.
+     * This can take a while; run it off the event thread. The module's writes wait until it's done.
+     * @return How many rows were copied.
+     * @throws IllegalStateException If the module already uses the shared layout.
+     */
+    public int migrateToSharedLayout(PersistentModule module) throws SQLException {
+        return new SharedTableMigration(this, module).run();
+    }
+
+    /**
+     * Tables made before a module declared its indexes won't have them; add them now.
+     */
+    private void addMissingTableIndexes(List<Module> modules) throws SQLException {
+        int tablesChecked = 0;
+
+        for (Module module : modules) {
+            if (!(module instanceof PersistentModule)) {
+                continue;
+            }
+
+            PersistentModule persistentModule = (PersistentModule) module;
+
+            for (TableIndex index : persistentModule.getTableIndexes()) {
+                // Every guild shares the one table.
+                if (usesSharedLayout(persistentModule)) {
+                    Table table = new Table(makeSharedTable(null, persistentModule), index.getSubTable());
+
+                    if (table.exists()) {
+                        tablesChecked += createIndexOrLog(table, index);
+                    }
+                    continue;
+                }
+
+                for (String guildID : knownGuilds) {
+                    Table table = new Table(makeGuildTable(guildID, persistentModule), index.getSubTable());
+
+                    if (table.exists()) {
+                        tablesChecked += createIndexOrLog(table, index);
+                    }
+                }
+            }
+        }
+
+        logger.info("Checked indexes on " + tablesChecked + " guild tables.");
+    }
+
+    /**
+     * @return 1 if the index is there now, or 0 if it couldn't be made.
+     */
+    private int createIndexOrLog(Table table, TableIndex index) {
+        try {
+            table.createIndex(index);
+            return 1;
+        } catch (SQLException e) {
+            // One broken table shouldn't keep the rest from their indexes, but it has to be fixed by hand.
+            logger.error("Couldn't index " + table.getName() + " on " + String.join(", ", index.getColumns())
+                    + "; writes that rely on the index will fail until it's fixed", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Make each guild ID unique in the guilds table, so two processes registering the same guild can't both add it.
+     * If copies are already there, fall back to a plain index; they're only IDs, but they get sorted out by hand
+     * like any other table's.
+     */
+    private void createGuildsIndex() throws SQLException {
+        try {
+            guilds.createUniqueIndex("discord_id");
+        } catch (SQLException e) {
+            logger.error("Couldn't make guild IDs unique; the same guild may be registered twice until it's fixed", e);
+            guilds.createIndex("discord_id");
+        }
+    }
+
+    private void loadKnownGuilds() throws SQLException {
+        ResultSet resultSet = guilds.select().execute();
+
+        while (resultSet.next()) {
+            knownGuilds.add(resultSet.getString("discord_id"));
+        }
+        resultSet.close();
+
+        logger.info("Loaded " + knownGuilds.size() + " known guilds.");
+    }
+
+    private void loadSharedLayoutModules() throws SQLException {
+        ResultSet resultSet = sharedLayout.select().execute();
+
+        while (resultSet.next()) {
+            sharedLayoutModules.add(resultSet.getString("module"));
+        }
+        resultSet.close();
+
+        if (!sharedLayoutModules.isEmpty()) {
+            logger.info("Modules using the shared table layout: " + String.join(", ", sharedLayoutModules));
+        }
+    }
+
+    /**
+     * Makes sure a guild is in the guilds table. Only guilds we have never seen before touch the database.
+     */
+    private void registerGuild(String guildID) throws SQLException {
+        if (knownGuilds.contains(guildID)) {
+            return;
+        }
+
+        // Several threads can see a new guild at once; only let one of them bring its tables up to date.
+        synchronized (guildRegistrationLock) {
+            if (knownGuilds.contains(guildID)) {
+                return;
+            }
+
+            // Another process may be registering it too, so leave it to the unique index to keep one copy.
+            try {
+                guilds.merge().set("discord_id", guildID).key("discord_id").execute();
+            } catch (SQLException e) {
+                // It got there first, which is just as good.
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+            }
+
+            // Its tables have to be there before anyone gets to use them.
+            schemaMigrator.migrateGuild(persistentModules, guildID);
+
+            // Only remember it once it's actually stored.
+            knownGuilds.add(guildID);
+        }
+    }
+
     public Table getGuildTable(Guild guild, PersistentModule module) throws SQLException {
         return getGuildTable(guild.getId(), module);
     }
 
+    public Table getGuildTable(Guild guild, PersistentModule module, String subTable) throws SQLException {
+        return getGuildTable(guild.getId(), module, subTable);
+    }
+
+    /**
+     * Moves a module to the shared table layout. Only the bot's owners may use it.
+     * Usage: migratetables &lt;module class name&gt;
+     */
+    private class MigrateTablesCommand implements Command {
+
+        private CarlBot carlbot;
+
+        MigrateTablesCommand(CarlBot carlbot) {
+            this.carlbot = carlbot;
+        }
+
+        @Override
+        public String getCallsign() {
+            return "migratetables";
+        }
+
+        @Override
+        public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
+            if (!carlbot.checkIsOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Only the bot's owners can move tables around.").queue();
+                return;
+            }
+
+            PersistentModule module = (tokens.size() == 1) ? findPersistentModule(tokens.get(0)) : null;
+
+            if (module == null) {
+                event.getChannel().sendMessage("Give me the name of a module that stores data, like `Quotes`.")
+                        .queue();
+                return;
+            }
+
+            if (usesSharedLayout(module)) {
+                event.getChannel().sendMessage("That module already uses shared tables.").queue();
+                return;
+            }
+
+            event.getChannel().sendMessage("Moving " + tokens.get(0) + " to shared tables, this could take a while. "
+                    + "Its changes wait until it's done.").queue();
+
+            // Copying every guild's tables takes far too long for the event thread.
+            new Thread(() -> {
+                try {
+                    int rowsCopied = migrateToSharedLayout(module);
+                    event.getChannel().sendMessage("Done! Copied " + rowsCopied + " rows.").queue();
+                } catch (SQLException | RuntimeException e) {
+                    logger.error("Error moving tables to the shared layout", e);
+                    event.getChannel().sendMessage("Moving the tables failed: " + e.getMessage()).queue();
+                }
+            }, "carlbot-table-migration").start();
+        }
+
+        private PersistentModule findPersistentModule(String name) {
+            for (Module module : carlbot.getModules()) {
+                if (module instanceof PersistentModule && (module.getClass().getSimpleName().equalsIgnoreCase(name)
+                        || module.getClass().getCanonicalName().equalsIgnoreCase(name))) {
+                    return (PersistentModule) module;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public Module getParentModule() {
+            return Persistence.this;
+        }
+    }
+
+    /**
+     * Shows the statements that took the most time, and how the pool, executor and caches are doing.
+     * Only the bot's owners may use it. Usage: dbstats [reset]
+     */
+    private class DatabaseStatisticsCommand implements Command {
+
+        /**
+         * How many statements to show; Discord messages can't be very long.
+         */
+        private static final int STATEMENTS_SHOWN = 6;
+
+        private static final int MAX_LINE_LENGTH = 160;
+
+        private static final int MAX_MESSAGE_LENGTH = 2000;
+
+        private CarlBot carlbot;
+
+        DatabaseStatisticsCommand(CarlBot carlbot) {
+            this.carlbot = carlbot;
+        }
+
+        @Override
+        public String getCallsign() {
+            return "dbstats";
+        }
+
+        @Override
+        public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
+            if (!carlbot.checkIsOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Only the bot's owners can see database statistics.").queue();
+                return;
+            }
+
+            if (tokens.size() == 1 && tokens.get(0).equalsIgnoreCase("reset")) {
+                queryMetrics.reset();
+                event.getChannel().sendMessage("Query metrics have been reset.").queue();
+                return;
+            }
+
+            StringBuilder message = new StringBuilder("```\n");
+            message.append(queryMetrics).append("\n");
+
+            List<QueryMetrics.TemplateStatistics> templates = queryMetrics.getTemplates();
+            for (int i = 0; i < Math.min(STATEMENTS_SHOWN, templates.size()); i++) {
+                String line = templates.get(i).toString();
+                if (line.length() > MAX_LINE_LENGTH) {
+                    line = line.substring(0, MAX_LINE_LENGTH - 3) + "...";
+                }
+                message.append(line).append("\n");
+            }
+
+            message.append("Pool: ").append(connectionPool).append("\n");
+            message.append("Executor: ").append(databaseExecutor).append("\n");
+            message.append(databaseBackup).append("\n");
+            message.append(databaseMaintenance).append("\n");
+            message.append(changeLog).append("\n");
+            message.append(leakDetector).append("\n");
+            for (PersistentCache<?, ?> cache : caches) {
+                message.append(cache).append("\n");
+            }
+
+            // Leave room to close the code block.
+            if (message.length() > MAX_MESSAGE_LENGTH - 3) {
+                message.setLength(MAX_MESSAGE_LENGTH - 3);
+            }
+
+            message.append("```");
+            event.getChannel().sendMessage(message.toString()).queue();
+        }
+
+        @Override
+        public Module getParentModule() {
+            return Persistence.this;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the database, see {@link DatabaseBackup}. Only the bot's owners may use it.
+     * Usage: backup
+     */
+    private class BackupCommand implements Command {
+
+        private CarlBot carlbot;
+
+        BackupCommand(CarlBot carlbot) {
+            this.carlbot = carlbot;
+        }
+
+        @Override
+        public String getCallsign() {
+            return "backup";
+        }
+
+        @Override
+        public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
+            if (!carlbot.checkIsOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Only the bot's owners can back up the database.").queue();
+                return;
+            }
+
+            if (databaseBackup.isRunning()) {
+                event.getChannel().sendMessage("A backup is already running.").queue();
+                return;
+            }
+
+            event.getChannel().sendMessage("Backing up the database, this could take a while.").queue();
+
+            databaseBackup.backupLater().whenComplete((snapshot, error) -> {
+                if (error != null) {
+                    logger.error("Error backing up the database", error);
+                    event.getChannel().sendMessage("The backup failed: " + error.getMessage()).queue();
+                } else {
+                    event.getChannel().sendMessage("Done! Saved " + snapshot.getName() + " ("
+                            + snapshot.length() / 1024 + " KB).").queue();
+                }
+            });
+        }
+
+        @Override
+        public Module getParentModule() {
+            return Persistence.this;
+        }
+    }
+
+    /**
+     * Shows the database resources that are open, the oldest first, and the call sites that have leaked some.
+     * See {@link LeakDetector}. Only the bot's owners may use it. Usage: dbleaks
+     */
+    private class LeakReportCommand implements Command {
+
+        /**
+         * How many resources and call sites to show; Discord messages can't be very long.
+         */
+        private static final int ENTRIES_SHOWN = 5;
+
+        private static final int MAX_LINE_LENGTH = 160;
+
+        private static final int MAX_MESSAGE_LENGTH = 2000;
+
+        private CarlBot carlbot;
+
+        LeakReportCommand(CarlBot carlbot) {
+            this.carlbot = carlbot;
+        }
+
+        @Override
+        public String getCallsign() {
+            return "dbleaks";
+        }
+
+        @Override
+        public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
+            if (!carlbot.checkIsOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Only the bot's owners can see database leaks.").queue();
+                return;
+            }
+
+            if (!leakDetector.isEnabled()) {
+                event.getChannel().sendMessage("Leak detection is off. Set \"leak_detection\" to true in the "
+                        + "database config and restart to turn it on.").queue();
+                return;
+            }
+
+            // Catch up on anything collected since the last check.
+            leakDetector.check();
+
+            StringBuilder message = new StringBuilder("```\n");
+            message.append(leakDetector).append("\n");
+
+            message.append("Oldest open:\n");
+            for (String resource : leakDetector.getOldestOpen(ENTRIES_SHOWN)) {
+                appendLine(message, resource);
+            }
+
+            message.append("Leaked by:\n");
+            int callSitesShown = 0;
+            for (Map.Entry<String, Long> callSite : leakDetector.getLeaksByCallSite().entrySet()) {
+                if (callSitesShown++ == ENTRIES_SHOWN) {
+                    break;
+                }
+                appendLine(message, callSite.getValue() + "x " + callSite.getKey());
+            }
+
+            // Leave room to close the code block.
+            if (message.length() > MAX_MESSAGE_LENGTH - 3) {
+                message.setLength(MAX_MESSAGE_LENGTH - 3);
+            }
+
+            message.append("```");
+            event.getChannel().sendMessage(message.toString()).queue();
+        }
+
+        private void appendLine(StringBuilder message, String line) {
+            if (line.length() > MAX_LINE_LENGTH) {
+                line = line.substring(0, MAX_LINE_LENGTH - 3) + "...";
+            }
+            message.append(line).append("\n");
+        }
+
+        @Override
+        public Module getParentModule() {
+            return Persistence.this;
+        }
+    }
+
+    /**
+     * Shows how maintenance is doing, or runs, pauses or resumes it. See {@link DatabaseMaintenance}.
+     * Only the bot's owners may use it. Usage: dbmaintain [run|pause|resume]
+     */
+    private class MaintenanceCommand implements Command {
+
+        private CarlBot carlbot;
+
+        MaintenanceCommand(CarlBot carlbot) {
+            this.carlbot = carlbot;
+        }
+
+        @Override
+        public String getCallsign() {
+            return "dbmaintain";
+        }
+
+        @Override
+        public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
+            if (!carlbot.checkIsOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Only the bot's owners can maintain the database.").queue();
+                return;
+            }
+
+            String action = tokens.isEmpty() ? "" : tokens.get(0).toLowerCase();
+
+            switch (action) {
+                case "run":
+                    if (databaseMaintenance.isRunning()) {
+                        event.getChannel().sendMessage("Maintenance is already running.").queue();
+                        return;
+                    }
+
+                    event.getChannel().sendMessage("Maintaining the database, this could take a while.").queue();
+
+                    databaseMaintenance.runLater().whenComplete((result, error) -> {
+                        if (error != null) {
+                            logger.error("Error maintaining the database", error);
+                            event.getChannel().sendMessage("Maintenance failed: " + error.getMessage()).queue();
+                        } else {
+                            event.getChannel().sendMessage("Done! " + databaseMaintenance).queue();
+                        }
+                    });
+                    return;
+                case "pause":
+                    databaseMaintenance.pause();
+                    event.getChannel().sendMessage("Maintenance is paused.").queue();
+                    return;
+                case "resume":
+                    databaseMaintenance.resume();
+                    event.getChannel().sendMessage("Maintenance is back on.").queue();
+                    return;
+                default:
+                    event.getChannel().sendMessage(databaseMaintenance.toString()).queue();
+            }
+        }
+
+        @Override
+        public Module getParentModule() {
+            return Persistence.this;
+        }
+    }
+
     @Override
     public Command[] getCommands(CarlBot carlbot) {
-        return new Command[] {};
+        return new Command[] {
+                new MigrateTablesCommand(carlbot),
+                new DatabaseStatisticsCommand(carlbot),
+                new BackupCommand(carlbot),
+                new LeakReportCommand(carlbot),
+                new MaintenanceCommand(carlbot)
+        };
     }
 }
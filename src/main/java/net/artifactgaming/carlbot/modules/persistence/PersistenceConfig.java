@@ -0,0 +1,391 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How to reach the database and how to tune it, read from the "database" section of main_config.json.
+ * Every setting is optional; leave the section out entirely to get the defaults.
+ *
+ * <pre>
+ * "database": {
+ *     "url": "jdbc:h2:./database",
+ *     "in_memory": false,
+ *     "cache_size": 65536,
+ *     "write_delay": 500,
+ *     "lock_timeout": 1000,
+ *     "options": { "MAX_COMPACT_TIME": 2000, "COMPRESS": true },
+ *     "max_connections": 8,
+ *     "acquire_timeout": 30000,
+ *     "executor_threads": 1,
+ *     "executor_queue_capacity": 10000,
+ *     "slow_query_threshold": 200,
+ *     "backup_directory": "backups",
+ *     "backup_interval": 86400000,
+ *     "backup_keep": 7,
+ *     "backup_rate_limit": 2048,
+ *     "leak_detection": false,
+ *     "leak_report_age": 60000,
+ *     "mode": "embedded",
+ *     "server_host": "localhost",
+ *     "server_port": 9092,
+ *     "server_allow_others": false,
+ *     "maintenance_interval": 21600000,
+ *     "maintenance_compact_time": 10000,
+ *     "maintenance_quiet_threshold": 120,
+ *     "change_log": true,
+ *     "change_log_poll_interval": 1000,
+ *     "change_log_retention": 600000
+ * }
+ * </pre>
+ * Cache size is in KB, and the times are in milliseconds. Options are any other H2 settings to add to the URL,
+ * such as MVStore tuning. In-memory mode ignores the URL and keeps everything in memory, which is gone once the bot
+ * stops; it's for tests and benchmarks. A backup interval of 0 turns scheduled backups off, and the backup rate
+ * limit is in KB per second (0 for no limit); see {@link DatabaseBackup}. Leak detection reports connections and
+ * result sets left open longer than the report age; see {@link LeakDetector}. Maintenance runs once an interval has
+ * passed and fewer statements than the quiet threshold ran in the last minute; an interval of 0 turns it off. See
+ * {@link DatabaseMaintenance}.
+ *
+ * The mode says how the database is shared between bot processes, see {@link Mode}. To run several shards against
+ * one database, start one in server mode first, then the others in client mode, all with the same URL. A server
+ * started by hand with {@code java -cp h2.jar org.h2.tools.Server -tcp} works too, with every bot in client mode.
+ * The change log, which keeps every bot's caches in step with the others' writes, is on by default in server and
+ * client mode, and off in embedded mode; see {@link ChangeLog}.
+ */
+public class PersistenceConfig {
+
+    /**
+     * How this process reaches the database.
+     */
+    public enum Mode {
+        /**
+         * Open the database file directly. Only one process can use it at a time.
+         */
+        Embedded,
+        /**
+         * Open the database file directly, and also serve it over TCP to bots in client mode.
+         * Scheduled backups are only taken by the server.
+         */
+        Server,
+        /**
+         * Connect over TCP to a database served by another process, reconnecting whenever it goes away.
+         */
+        Client
+    }
+
+    public static final int DEFAULT_SERVER_PORT = 9092;
+
+    public static final String DEFAULT_URL = "jdbc:h2:./database";
+
+    /**
+     * Used in in-memory mode. The database is kept until the process ends, even when no connection is open.
+     */
+    public static final String IN_MEMORY_URL = "jdbc:h2:mem:carlbot;DB_CLOSE_DELAY=-1";
+
+    private static final String H2_URL_PREFIX = "jdbc:h2:";
+
+    private String url = DEFAULT_URL;
+    private boolean inMemory = false;
+
+    // Null means leave it up to H2.
+    private Integer cacheSize;
+    private Integer writeDelay;
+    private Integer lockTimeout;
+    private Map<String, String> options = new LinkedHashMap<>();
+
+    private int maxConnections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+    private long acquireTimeout = ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT;
+    private int executorThreads = DatabaseExecutor.DEFAULT_THREADS;
+    private int executorQueueCapacity = DatabaseExecutor.DEFAULT_QUEUE_CAPACITY;
+    private long slowQueryThreshold = QueryMetrics.DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    private String backupDirectory = DatabaseBackup.DEFAULT_DIRECTORY;
+    private long backupInterval = DatabaseBackup.DEFAULT_INTERVAL;
+    private int backupKeep = DatabaseBackup.DEFAULT_KEEP;
+    private int backupRateLimit = DatabaseBackup.DEFAULT_RATE_LIMIT;
+
+    private boolean leakDetection = false;
+    private long leakReportAge = LeakDetector.DEFAULT_REPORT_AGE;
+
+    private long maintenanceInterval = DatabaseMaintenance.DEFAULT_INTERVAL;
+    private long maintenanceCompactTime = DatabaseMaintenance.DEFAULT_COMPACT_TIME;
+    private long maintenanceQuietThreshold = DatabaseMaintenance.DEFAULT_QUIET_THRESHOLD;
+
+    // Null means on in server and client mode only.
+    private Boolean changeLog;
+    private long changeLogPollInterval = ChangeLog.DEFAULT_POLL_INTERVAL;
+    private long changeLogRetention = ChangeLog.DEFAULT_RETENTION;
+
+    private Mode mode = Mode.Embedded;
+    private String serverHost = "localhost";
+    private int serverPort = DEFAULT_SERVER_PORT;
+    private boolean serverAllowOthers = false;
+
+    /**
+     * The defaults: a file database in the working directory, with H2's own tuning.
+     */
+    public PersistenceConfig() {
+    }
+
+    /**
+     * @param json The "database" section of the config, or null for the defaults.
+     */
+    public PersistenceConfig(JSONObject json) {
+        if (json == null || json.isNullObject()) {
+            return;
+        }
+
+        url = json.optString("url", url);
+        inMemory = json.optBoolean("in_memory", inMemory);
+
+        if (json.has("cache_size")) {
+            cacheSize = json.getInt("cache_size");
+        }
+        if (json.has("write_delay")) {
+            writeDelay = json.getInt("write_delay");
+        }
+        if (json.has("lock_timeout")) {
+            lockTimeout = json.getInt("lock_timeout");
+        }
+
+        JSONObject optionsJson = json.optJSONObject("options");
+        if (optionsJson != null && !optionsJson.isNullObject()) {
+            Iterator<?> keys = optionsJson.keys();
+            while (keys.hasNext()) {
+                String key = keys.next().toString();
+                options.put(key, optionsJson.getString(key));
+            }
+        }
+
+        maxConnections = json.optInt("max_connections", maxConnections);
+        acquireTimeout = json.optLong("acquire_timeout", acquireTimeout);
+        executorThreads = json.optInt("executor_threads", executorThreads);
+        executorQueueCapacity = json.optInt("executor_queue_capacity", executorQueueCapacity);
+        slowQueryThreshold = json.optLong("slow_query_threshold", slowQueryThreshold);
+
+        backupDirectory = json.optString("backup_directory", backupDirectory);
+        backupInterval = json.optLong("backup_interval", backupInterval);
+        backupKeep = json.optInt("backup_keep", backupKeep);
+        backupRateLimit = json.optInt("backup_rate_limit", backupRateLimit);
+
+        leakDetection = json.optBoolean("leak_detection", leakDetection);
+        leakReportAge = json.optLong("leak_report_age", leakReportAge);
+
+        maintenanceInterval = json.optLong("maintenance_interval", maintenanceInterval);
+        maintenanceCompactTime = json.optLong("maintenance_compact_time", maintenanceCompactTime);
+        maintenanceQuietThreshold = json.optLong("maintenance_quiet_threshold", maintenanceQuietThreshold);
+
+        if (json.has("change_log")) {
+            changeLog = json.getBoolean("change_log");
+        }
+        changeLogPollInterval = json.optLong("change_log_poll_interval", changeLogPollInterval);
+        changeLogRetention = json.optLong("change_log_retention", changeLogRetention);
+
+        if (json.has("mode")) {
+            mode = parseMode(json.getString("mode"));
+        }
+        serverHost = json.optString("server_host", serverHost);
+        serverPort = json.optInt("server_port", serverPort);
+        serverAllowOthers = json.optBoolean("server_allow_others", serverAllowOthers);
+    }
+
+    private static Mode parseMode(String name) {
+        for (Mode mode : Mode.values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown database mode \"" + name + "\", expected embedded, server or "
+                + "client.");
+    }
+
+    /**
+     * @return A config for an empty in-memory database, for tests and benchmarks.
+     */
+    public static PersistenceConfig inMemory() {
+        PersistenceConfig config = new PersistenceConfig();
+        config.inMemory = true;
+        // There's nothing worth keeping, or compacting.
+        config.backupInterval = 0;
+        config.maintenanceInterval = 0;
+        return config;
+    }
+
+    /**
+     * @return The URL to connect with, with the tuning settings added on.
+     */
+    public String getJdbcUrl() {
+        StringBuilder jdbcUrl = new StringBuilder(inMemory ? IN_MEMORY_URL : getModeUrl());
+
+        if (cacheSize != null) {
+            jdbcUrl.append(";CACHE_SIZE=").append(cacheSize);
+        }
+        if (writeDelay != null) {
+            jdbcUrl.append(";WRITE_DELAY=").append(writeDelay);
+        }
+        if (lockTimeout != null) {
+            jdbcUrl.append(";LOCK_TIMEOUT=").append(lockTimeout);
+        }
+        // H2 would close the database from its own shutdown hook, racing ours that still has writes to make. The
+        // database is on the server for a client, so it has nothing to close.
+        if (!isRemote() && !options.containsKey("DB_CLOSE_ON_EXIT")) {
+            jdbcUrl.append(";DB_CLOSE_ON_EXIT=FALSE");
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            jdbcUrl.append(";").append(option.getKey()).append("=").append(option.getValue());
+        }
+
+        return jdbcUrl.toString();
+    }
+
+    /**
+     * In client mode, the URL points at the same database on the server instead, which has to be running in the same
+     * directory as the bot that serves it.
+     */
+    private String getModeUrl() {
+        if (mode != Mode.Client || !url.startsWith(H2_URL_PREFIX) || url.startsWith(H2_URL_PREFIX + "tcp:")) {
+            return url;
+        }
+
+        return H2_URL_PREFIX + "tcp://" + serverHost + ":" + serverPort + "/" + url.substring(H2_URL_PREFIX.length());
+    }
+
+    /**
+     * @return The arguments to start H2's TCP server with, in server mode.
+     */
+    String[] getServerArguments() {
+        List<String> arguments = new ArrayList<>(Arrays.asList("-tcpPort", Integer.toString(serverPort)));
+
+        if (serverAllowOthers) {
+            arguments.add("-tcpAllowOthers");
+        }
+
+        // Clients can only use the database we serve, not make new ones.
+        arguments.add("-ifExists");
+
+        return arguments.toArray(new String[0]);
+    }
+
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    public int getExecutorQueueCapacity() {
+        return executorQueueCapacity;
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public String getBackupDirectory() {
+        return backupDirectory;
+    }
+
+    /**
+     * @return How often a backup is taken, in milliseconds; or 0 if they're only taken when asked for.
+     */
+    public long getBackupInterval() {
+        return backupInterval;
+    }
+
+    public int getBackupKeep() {
+        return backupKeep;
+    }
+
+    /**
+     * @return In KB per second, or 0 for no limit.
+     */
+    public int getBackupRateLimit() {
+        return backupRateLimit;
+    }
+
+    /**
+     * @return How often maintenance is due, in milliseconds; or 0 if it only runs when asked to.
+     */
+    public long getMaintenanceInterval() {
+        return maintenanceInterval;
+    }
+
+    /**
+     * @return How long a maintenance run may spend compacting, in milliseconds.
+     */
+    public long getMaintenanceCompactTime() {
+        return maintenanceCompactTime;
+    }
+
+    /**
+     * @return How many statements a minute still count as quiet enough for maintenance.
+     */
+    public long getMaintenanceQuietThreshold() {
+        return maintenanceQuietThreshold;
+    }
+
+    /**
+     * @return Whether changes are logged for other bots, and theirs looked for.
+     */
+    public boolean isChangeLog() {
+        return (changeLog != null) ? changeLog : getMode() != Mode.Embedded;
+    }
+
+    /**
+     * @return How often other bots' changes are looked for, in milliseconds.
+     */
+    public long getChangeLogPollInterval() {
+        return changeLogPollInterval;
+    }
+
+    /**
+     * @return How long change log entries are kept, in milliseconds.
+     */
+    public long getChangeLogRetention() {
+        return changeLogRetention;
+    }
+
+    public Mode getMode() {
+        return inMemory ? Mode.Embedded : mode;
+    }
+
+    /**
+     * @return Whether the database is reached over the network, so connections can break.
+     */
+    public boolean isRemote() {
+        return getMode() == Mode.Client;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @return How long a connection or result set may stay open before it's reported, in milliseconds.
+     */
+    public long getLeakReportAge() {
+        return leakReportAge;
+    }
+
+    @Override
+    public String toString() {
+        return getJdbcUrl() + " (" + getMode() + " mode, " + maxConnections + " connections, " + executorThreads
+                + " executor threads)";
+    }
+}
@@ -0,0 +1,421 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps a module's rows in memory, for data that is read far more often than it is written.
+ *
+ * Reads go through the cache: a value that isn't there (or has been there longer than the time to live) is loaded
+ * with the cache's {@link Loader}, then kept. Null is a value like any other, so "there's no row" is cached too.
+ * Only the most recently used values are kept, up to the maximum size.
+ *
+ * Writes can be handed to the cache with {@link #put(String, Object, Object)}. They show up in reads straight away,
+ * and are written to the database a little later by the cache's {@link Writer}, all together in one transaction.
+ * A write the database doesn't take stays pending and is tried again on the next flush.
+ * A module that writes to the database itself should {@link #invalidate(String, Object)} what it changed instead.
+ *
+ * Make one with {@link Persistence#createCache(PersistentModule, String, Loader, Writer)}.
+ */
+public class PersistentCache<K, V> {
+
+    /**
+     * How many values a cache keeps, unless told otherwise.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * How long a loaded value is trusted for, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000;
+
+    /**
+     * How often pending writes are flushed to the database, in milliseconds.
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * How long a write that keeps failing is tried again for, in milliseconds, before it's given up on.
+     */
+    public static final long MAX_PENDING_AGE = 10 * 60 * 1000;
+
+    /**
+     * Loads a value that isn't cached yet.
+     */
+    public interface Loader<K, V> {
+        /**
+         * @return The value, or null if there is none.
+         */
+        V load(String guildID, K key) throws SQLException;
+    }
+
+    /**
+     * Writes a value handed to {@link #put(String, Object, Object)} to the database.
+     * It runs inside a transaction with the rest of the flush.
+     */
+    public interface Writer<K, V> {
+        void write(String guildID, K key, V value) throws SQLException;
+    }
+
+    private final String name;
+    // The canonical name of the module the cache belongs to, so other bots' changes to it can be applied.
+    private final String moduleName;
+    private final Persistence database;
+    private final Logger logger;
+    private final Loader<K, V> loader;
+    private final Writer<K, V> writer;
+    private final int maxSize;
+    private final long timeToLive;
+
+    // Guarded by this. In access order, so the first entry is the least recently used.
+    private final LinkedHashMap<Key<K>, Entry<V>> entries;
+
+    // Guarded by this. Writes that haven't reached the database yet, in the order they were made.
+    private final LinkedHashMap<Key<K>, PendingWrite<V>> pendingWrites = new LinkedHashMap<>();
+
+    // Guarded by this. Bumped by every change, so a load that raced with one doesn't cache what it read.
+    private long changes = 0;
+
+    // Only one flush at a time.
+    private final Object flushLock = new Object();
+
+    ///region Metrics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long flushes = 0;
+    private long failedWrites = 0;
+    private long lastFlushLag = 0;
+    private long maxFlushLag = 0;
+    ///endregion
+
+    PersistentCache(String name, String moduleName, Persistence database, Loader<K, V> loader, Writer<K, V> writer,
+                    int maxSize, long timeToLive) {
+        this.name = name;
+        this.moduleName = moduleName;
+        this.database = database;
+        this.logger = database.logger;
+        this.loader = loader;
+        this.writer = writer;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        this.entries = new LinkedHashMap<Key<K>, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key<K>, Entry<V>> eldest) {
+                if (size() > PersistentCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a value, loading it from the database if it isn't cached.
+     * @return The value, or null if there is none.
+     */
+    public V get(String guildID, K key) throws SQLException {
+        Key<K> cacheKey = new Key<>(guildID, key);
+        long changesBeforeLoad;
+
+        synchronized (this) {
+            PendingWrite<V> pendingWrite = pendingWrites.get(cacheKey);
+            if (pendingWrite != null) {
+                hits++;
+                return pendingWrite.value;
+            }
+
+            Entry<V> entry = entries.get(cacheKey);
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt < timeToLive) {
+                hits++;
+                return entry.value;
+            }
+
+            misses++;
+            changesBeforeLoad = changes;
+        }
+
+        // Don't hold the lock while we wait for the database.
+        V value = loader.load(guildID, key);
+
+        synchronized (this) {
+            if (changes == changesBeforeLoad) {
+                entries.put(cacheKey, new Entry<>(value));
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Change a value. Reads see it straight away; it is written to the database on the next flush.
+     * @throws IllegalStateException If the cache was made without a writer.
+     */
+    public void put(String guildID, K key, V value) {
+        if (writer == null) {
+            throw new IllegalStateException("The " + name + " cache is read-only; invalidate it instead.");
+        }
+
+        Key<K> cacheKey = new Key<>(guildID, key);
+
+        synchronized (this) {
+            PendingWrite<V> previous = pendingWrites.get(cacheKey);
+            long since = (previous != null) ? previous.since : System.currentTimeMillis();
+
+            pendingWrites.put(cacheKey, new PendingWrite<>(value, since));
+            entries.put(cacheKey, new Entry<>(value));
+            changes++;
+        }
+    }
+
+    /**
+     * Forget a value, so the next read loads it again. Writes that haven't been flushed are kept.
+     */
+    public synchronized void invalidate(String guildID, K key) {
+        entries.remove(new Key<>(guildID, key));
+        changes++;
+    }
+
+    /**
+     * Forget every value for a guild.
+     */
+    public synchronized void invalidateGuild(String guildID) {
+        entries.keySet().removeIf((cacheKey) -> Objects.equals(cacheKey.guildID, guildID));
+        changes++;
+    }
+
+    /**
+     * Forget every value.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        changes++;
+    }
+
+    /**
+     * Write every pending write to the database, in one transaction.
+     * If that fails, they are tried one at a time, so one bad write doesn't hold up the rest. A write that still
+     * fails stays pending for the next flush, since a lock timeout or a lost connection to the server passes; it's
+     * only dropped if it could never succeed, such as a constraint it breaks, or it has been failing for longer than
+     * {@link #MAX_PENDING_AGE}.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Key<K>, PendingWrite<V>> toWrite;
+
+            synchronized (this) {
+                if (pendingWrites.isEmpty()) {
+                    return;
+                }
+                toWrite = new LinkedHashMap<>(pendingWrites);
+            }
+
+            Map<Key<K>, Exception> writeErrors = new HashMap<>();
+
+            try {
+                database.inTransaction(() -> {
+                    for (Map.Entry<Key<K>, PendingWrite<V>> write : toWrite.entrySet()) {
+                        writer.write(write.getKey().guildID, write.getKey().key, write.getValue().value);
+                    }
+                    return null;
+                });
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("Flushing the " + name + " cache failed, retrying its writes one at a time: "
+                        + e.getMessage());
+
+                for (Map.Entry<Key<K>, PendingWrite<V>> write : toWrite.entrySet()) {
+                    try {
+                        writer.write(write.getKey().guildID, write.getKey().key, write.getValue().value);
+                    } catch (SQLException | RuntimeException writeError) {
+                        writeErrors.put(write.getKey(), writeError);
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            int kept = 0;
+
+            synchronized (this) {
+                for (Map.Entry<Key<K>, PendingWrite<V>> write : toWrite.entrySet()) {
+                    long lag = now - write.getValue().since;
+                    Exception writeError = writeErrors.get(write.getKey());
+
+                    if (writeError == null) {
+                        lastFlushLag = lag;
+                        maxFlushLag = Math.max(maxFlushLag, lag);
+
+                        // Only forget it if it wasn't changed again while we were writing.
+                        pendingWrites.remove(write.getKey(), write.getValue());
+                    } else if (isPermanent(writeError) || lag >= MAX_PENDING_AGE) {
+                        logger.error("Dropping a write to the " + name + " cache for guild " + write.getKey().guildID
+                                + " after " + lag + "ms: " + writeError.getMessage());
+                        failedWrites++;
+
+                        // The cached value never made it to the database, so don't trust it either.
+                        if (pendingWrites.remove(write.getKey(), write.getValue())) {
+                            entries.remove(write.getKey());
+                        }
+                    } else {
+                        kept++;
+                    }
+                }
+                flushes++;
+            }
+
+            if (kept > 0) {
+                logger.warn(kept + " writes to the " + name + " cache failed; they'll be tried again on the next "
+                        + "flush.");
+            }
+        }
+    }
+
+    /**
+     * @return Whether trying the write again can't help: a broken constraint, a bad value or bad SQL, or a bug in
+     * the writer.
+     */
+    private static boolean isPermanent(Exception writeError) {
+        if (!(writeError instanceof SQLException)) {
+            return true;
+        }
+
+        String state = ((SQLException) writeError).getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23") || state.startsWith("42"));
+    }
+
+    ///region Metrics
+
+    public String getName() {
+        return name;
+    }
+
+    String getModuleName() {
+        return moduleName;
+    }
+
+    /**
+     * @return How many values are cached, not counting pending writes.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The share of reads that didn't have to go to the database, from 0 to 1.
+     */
+    public synchronized double getHitRatio() {
+        long reads = hits + misses;
+        return (reads == 0) ? 0 : (double) hits / reads;
+    }
+
+    /**
+     * @return How many values were dropped to stay under the maximum size.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getPendingWrites() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * @return How long the oldest pending write has been waiting, in milliseconds.
+     */
+    public synchronized long getFlushLag() {
+        Iterator<PendingWrite<V>> oldest = pendingWrites.values().iterator();
+        return oldest.hasNext() ? System.currentTimeMillis() - oldest.next().since : 0;
+    }
+
+    /**
+     * @return How long the last write flushed had waited, in milliseconds.
+     */
+    public synchronized long getLastFlushLag() {
+        return lastFlushLag;
+    }
+
+    public synchronized long getMaxFlushLag() {
+        return maxFlushLag;
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return How many writes were given up on: the database could never take them, or hadn't for too long.
+     */
+    public synchronized long getFailedWrites() {
+        return failedWrites;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s cache: %d/%d cached, hit ratio %.1f%% (%d hits, %d misses), %d evictions, "
+                        + "%d pending writes (lag %dms, last %dms, max %dms), %d flushes, %d failed writes",
+                name, entries.size(), maxSize, getHitRatio() * 100, hits, misses, evictions,
+                pendingWrites.size(), getFlushLag(), lastFlushLag, maxFlushLag, flushes, failedWrites);
+    }
+
+    ///endregion
+
+    private static final class Key<K> {
+        private final String guildID;
+        private final K key;
+
+        Key(String guildID, K key) {
+            this.guildID = guildID;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key<?> otherKey = (Key<?>) other;
+            return Objects.equals(guildID, otherKey.guildID) && Objects.equals(key, otherKey.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(guildID, key);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long loadedAt = System.currentTimeMillis();
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    private static final class PendingWrite<V> {
+        private final V value;
+        // When the key was first changed without being flushed.
+        private final long since;
+
+        PendingWrite(V value, long since) {
+            this.value = value;
+            this.since = since;
+        }
+    }
+}
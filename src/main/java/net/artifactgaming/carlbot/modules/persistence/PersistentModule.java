@@ -1,4 +1,24 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
 public interface PersistentModule {
+
+    /**
+     * The indexes this module's guild tables should have.
+     * Any that are missing from tables already in the database are added when the bot starts.
+     */
+    default TableIndex[] getTableIndexes() {
+        return new TableIndex[0];
+    }
+
+    /**
+     * The changes that build up this module's guild tables, oldest first. Whatever a guild hasn't had yet is applied
+     * when the bot starts, so the tables are always there by the time the module uses them.
+     *
+     * Never change, remove or reorder a step once it has been released; add a new one to the end instead.
+     * The first step should only make tables that aren't there yet, since guilds from before the steps existed
+     * already have them.
+     */
+    default SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[0];
+    }
 }
@@ -0,0 +1,259 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Times every statement the builders run, grouped by the statement's SQL with the guild ID taken out, so the same
+ * query against every guild's table is counted together.
+ *
+ * Statements slower than the slow query threshold are also written, with their values, to the slow query log
+ * (a logger named {@value #SLOW_QUERY_LOGGER}).
+ */
+public class QueryMetrics {
+
+    /**
+     * The name of the logger slow statements are written to, so it can be sent somewhere of its own.
+     */
+    public static final String SLOW_QUERY_LOGGER = "net.artifactgaming.carlbot.modules.persistence.SlowQueries";
+
+    /**
+     * How slow a statement has to be to be logged, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 200;
+
+    /**
+     * The upper bounds of the latency histogram buckets, in milliseconds. There is one more bucket past the last.
+     */
+    static final long[] BUCKET_BOUNDS = { 1, 5, 10, 50, 100, 500, 1000 };
+
+    private static final Pattern GUILD_ID = Pattern.compile("GUILD_\\d+");
+
+    private final Logger slowQueryLogger = LoggerFactory.getLogger(SLOW_QUERY_LOGGER);
+
+    private final Map<String, TemplateStatistics> templates = new ConcurrentHashMap<>();
+
+    private volatile long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    private final AtomicLong slowQueries = new AtomicLong();
+
+    // Never reset, so the rate of statements can be worked out from it.
+    private final AtomicLong statementsRun = new AtomicLong();
+
+    /**
+     * What a statement did, filled in by whoever runs it.
+     */
+    static class Counts {
+        // -1 when it doesn't apply.
+        long rowsReturned = -1;
+        long rowsAffected = -1;
+    }
+
+    /**
+     * Record one run of a statement.
+     * @param sql The statement, as it was run.
+     * @param parameters Its values, for the slow query log. Null for a batch, which is counted separately.
+     * @param nanos How long it took.
+     * @param failed Whether it threw.
+     */
+    void record(String sql, List<?> parameters, long nanos, Counts counts, boolean failed) {
+        String template = GUILD_ID.matcher(sql).replaceAll("GUILD_?");
+
+        // A batch takes longer than one row, so keep its times apart.
+        if (parameters == null) {
+            template = "batch: " + template;
+        }
+
+        templates.computeIfAbsent(template, TemplateStatistics::new).record(nanos, counts, failed);
+        statementsRun.incrementAndGet();
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        if (millis >= slowQueryThreshold) {
+            slowQueries.incrementAndGet();
+            slowQueryLogger.warn("Slow query (" + millis + "ms"
+                    + (counts.rowsReturned >= 0 ? ", " + counts.rowsReturned + " rows returned" : "")
+                    + (counts.rowsAffected >= 0 ? ", " + counts.rowsAffected + " rows affected" : "")
+                    + (failed ? ", failed" : "") + "): " + sql
+                    + (parameters != null && !parameters.isEmpty() ? " with " + parameters : ""));
+        }
+    }
+
+    /**
+     * @param threshold How slow a statement has to be to be logged, in milliseconds.
+     */
+    public void setSlowQueryThreshold(long threshold) {
+        slowQueryThreshold = threshold;
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * @return How many statements have run since startup. Unlike everything else here, it isn't reset.
+     */
+    public long getStatementsRun() {
+        return statementsRun.get();
+    }
+
+    /**
+     * @return How many statements were slow enough to be logged.
+     */
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    /**
+     * @return Every statement seen so far, the ones that took the most time in total first.
+     */
+    public List<TemplateStatistics> getTemplates() {
+        // Take the totals first; they can change while we sort.
+        Map<TemplateStatistics, Long> totals = new HashMap<>();
+        for (TemplateStatistics statistics : templates.values()) {
+            totals.put(statistics, statistics.getTotalNanos());
+        }
+
+        List<TemplateStatistics> sorted = new ArrayList<>(totals.keySet());
+        sorted.sort(Comparator.comparing(totals::get, Comparator.reverseOrder()));
+        return sorted;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        templates.clear();
+        slowQueries.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Query metrics: " + templates.size() + " statements, " + slowQueries.get() + " slow (over "
+                + slowQueryThreshold + "ms)";
+    }
+
+    /**
+     * The numbers for one statement.
+     */
+    public static class TemplateStatistics {
+
+        private final String template;
+
+        private long executions = 0;
+        private long failures = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long rowsReturned = 0;
+        private long rowsAffected = 0;
+        private final long[] buckets = new long[BUCKET_BOUNDS.length + 1];
+
+        TemplateStatistics(String template) {
+            this.template = template;
+        }
+
+        synchronized void record(long nanos, Counts counts, boolean failed) {
+            executions++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+
+            if (failed) {
+                failures++;
+            }
+            if (counts.rowsReturned > 0) {
+                rowsReturned += counts.rowsReturned;
+            }
+            if (counts.rowsAffected > 0) {
+                rowsAffected += counts.rowsAffected;
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+        }
+
+        /**
+         * @return The statement's SQL, with guild IDs replaced by a question mark.
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        public synchronized long getExecutions() {
+            return executions;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public synchronized double getAverageMillis() {
+            return (executions == 0) ? 0 : totalNanos / (double) executions / 1000000;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1000000.0;
+        }
+
+        public synchronized long getRowsReturned() {
+            return rowsReturned;
+        }
+
+        public synchronized long getRowsAffected() {
+            return rowsAffected;
+        }
+
+        /**
+         * @return How many runs fell in each bucket of {@link QueryMetrics#BUCKET_BOUNDS}, plus one for anything
+         * slower.
+         */
+        public synchronized long[] getHistogram() {
+            return buckets.clone();
+        }
+
+        /**
+         * @param percentile From 0 to 100.
+         * @return The bucket bound the percentile falls under, in milliseconds; or -1 if it's past the last one.
+         */
+        public synchronized long getPercentileMillis(double percentile) {
+            long wanted = (long) Math.ceil(executions * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += buckets[i];
+                if (seen >= wanted) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+
+            return -1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long p95 = getPercentileMillis(95);
+            String p95Text = (p95 < 0) ? ">" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + "ms" : "<" + p95 + "ms";
+
+            return String.format("%dx, avg %.1fms, max %.1fms, p95 %s, %d failed, %d returned, %d affected: %s",
+                    executions, getAverageMillis(), getMaxMillis(), p95Text,
+                    failures, rowsReturned, rowsAffected, template);
+        }
+    }
+}
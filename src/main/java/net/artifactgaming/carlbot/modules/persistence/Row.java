@@ -0,0 +1,71 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The current row of a streamed query, handed to a {@link RowMapper}.
+ *
+ * Columns are looked up by name, but each name is only resolved to its index once per query.
+ * The same Row is reused for every row of the query, so read what you need from it and don't keep it around.
+ */
+public class Row {
+
+    private final ResultSet resultSet;
+
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+
+    Row(ResultSet resultSet) {
+        this.resultSet = resultSet;
+    }
+
+    private int indexOf(String column) throws SQLException {
+        Integer index = columnIndexes.get(column);
+
+        if (index == null) {
+            index = resultSet.findColumn(column);
+            columnIndexes.put(column, index);
+        }
+
+        return index;
+    }
+
+    public String getString(String column) throws SQLException {
+        return resultSet.getString(indexOf(column));
+    }
+
+    public int getInt(String column) throws SQLException {
+        return resultSet.getInt(indexOf(column));
+    }
+
+    public long getLong(String column) throws SQLException {
+        return resultSet.getLong(indexOf(column));
+    }
+
+    public double getDouble(String column) throws SQLException {
+        return resultSet.getDouble(indexOf(column));
+    }
+
+    public boolean getBoolean(String column) throws SQLException {
+        return resultSet.getBoolean(indexOf(column));
+    }
+
+    /**
+     * @return The timestamp in the column, or null if it is null.
+     */
+    public Instant getInstant(String column) throws SQLException {
+        Timestamp timestamp = resultSet.getTimestamp(indexOf(column));
+        return (timestamp == null) ? null : timestamp.toInstant();
+    }
+
+    /**
+     * @return True if the last column read was null; useful after reading a number.
+     */
+    public boolean wasNull() throws SQLException {
+        return resultSet.wasNull();
+    }
+}
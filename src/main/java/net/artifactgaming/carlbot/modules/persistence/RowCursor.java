@@ -0,0 +1,182 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the rows of a live query one at a time, mapping each one as it goes.
+ *
+ * The query runs lazily, so H2 only produces rows as we ask for them and the whole result is never held in memory.
+ * Over TCP, H2 can't run queries lazily (the query never returns), so the server works out the whole result, but
+ * still only sends it over a fetch at a time.
+ * The cursor holds on to its connection until it is closed, which happens on its own once the last row is read.
+ * Used by {@link SelectBuilder#stream(RowMapper)}.
+ */
+class RowCursor<T> implements Iterator<T>, AutoCloseable {
+
+    /**
+     * How many rows we ask the database for at a time.
+     */
+    static final int FETCH_SIZE = 100;
+
+    private final Persistence database;
+    private final Logger logger;
+    private final RowMapper<T> mapper;
+    private final String sql;
+    private final List<Object> parameters;
+
+    private final Connection connection;
+    private final LeakDetector.Tracked tracked;
+    // False if we borrowed the connection of an inTransaction call, which isn't ours to give back.
+    private final boolean ownsConnection;
+
+    private PreparedStatement statement;
+    private ResultSet resultSet;
+    private Row row;
+
+    // Whether the result set has been moved on to a row that hasn't been handed out yet.
+    private boolean rowReady = false;
+    private boolean closed = false;
+
+    // For the query metrics: time spent waiting on the database, not on whoever reads the rows.
+    private long databaseNanos = 0;
+    private long rowsRead = 0;
+    private boolean failed = false;
+
+    RowCursor(Persistence database, Logger logger, String sql, List<Object> parameters, RowMapper<T> mapper)
+            throws SQLException {
+        this.database = database;
+        this.logger = logger;
+        this.mapper = mapper;
+        this.sql = sql;
+        this.parameters = parameters;
+
+        Connection transactionConnection = database.getTransactionConnection();
+        ownsConnection = (transactionConnection == null);
+        connection = ownsConnection ? database.connectionPool.acquire() : transactionConnection;
+        tracked = database.leakDetector.track(this, "cursor");
+
+        try {
+            setLazyExecution(true);
+
+            // Not taken from the statement cache; another query with the same SQL could reuse it under us.
+            statement = connection.prepareStatement(sql);
+            statement.setFetchSize(FETCH_SIZE);
+
+            int i = 1;
+            for (Object parameter : parameters) {
+                SQLBuilder.bind(statement, i, parameter);
+                i++;
+            }
+
+            long start = System.nanoTime();
+            resultSet = statement.executeQuery();
+            databaseNanos += System.nanoTime() - start;
+
+            row = new Row(resultSet);
+        } catch (SQLException | RuntimeException e) {
+            failed = true;
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (rowReady) {
+            return true;
+        }
+
+        if (closed) {
+            return false;
+        }
+
+        try {
+            long start = System.nanoTime();
+            rowReady = resultSet.next();
+            databaseNanos += System.nanoTime() - start;
+        } catch (SQLException e) {
+            failed = true;
+            close();
+            throw new UncheckedSQLException(e);
+        }
+
+        if (!rowReady) {
+            // Nothing left, so there's no reason to keep the connection.
+            close();
+        }
+
+        return rowReady;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        rowReady = false;
+        rowsRead++;
+
+        try {
+            return mapper.map(row);
+        } catch (SQLException e) {
+            close();
+            throw new UncheckedSQLException(e);
+        }
+    }
+
+    /**
+     * Close the result set and statement and give the connection back. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        rowReady = false;
+        tracked.close();
+
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+
+            if (statement != null) {
+                statement.close();
+            }
+
+            setLazyExecution(false);
+        } catch (SQLException e) {
+            logger.warn("Failed to close query cursor: " + e.getMessage());
+        } finally {
+            if (ownsConnection) {
+                database.connectionPool.release(connection);
+            }
+
+            QueryMetrics.Counts counts = new QueryMetrics.Counts();
+            counts.rowsReturned = rowsRead;
+            database.queryMetrics.record(sql, parameters, databaseNanos, counts, failed);
+        }
+    }
+
+    private void setLazyExecution(boolean lazy) throws SQLException {
+        if (database.remote) {
+            return;
+        }
+
+        try (Statement setting = connection.createStatement()) {
+            setting.execute("SET LAZY_QUERY_EXECUTION " + (lazy ? "1" : "0"));
+        }
+    }
+}
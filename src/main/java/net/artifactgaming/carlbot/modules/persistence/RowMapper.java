@@ -0,0 +1,11 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a query into an object.
+ * See {@link SelectBuilder#stream(RowMapper)}.
+ */
+public interface RowMapper<T> {
+    T map(Row row) throws SQLException;
+}
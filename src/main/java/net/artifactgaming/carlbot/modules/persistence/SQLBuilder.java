@@ -1,7 +1,10 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.List;
 
 public interface SQLBuilder {
@@ -11,6 +14,11 @@ public interface SQLBuilder {
      */
     ResultSet execute() throws SQLException;
 
+    /**
+     * How many rows we send to the database in one go when executing a batch.
+     */
+    int BATCH_CHUNK_SIZE = 500;
+
     /**
      * Constructs a list of items with given separators.
      *
@@ -39,4 +47,77 @@ public interface SQLBuilder {
             first = false;
         }
     }
+
+    /**
+     * Binds a value to a statement parameter using its native SQL type.
+     * Strings, numbers and booleans are passed straight through; an {@link Instant} becomes a timestamp, and a
+     * table's {@link GuildPartition} becomes its guild ID.
+     *
+     * @param statement
+     *            The statement to bind to.
+     * @param index
+     *            The parameter index, starting from 1.
+     * @param value
+     *            The value, which may be null.
+     */
+    static void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value instanceof String) {
+            statement.setString(index, (String) value);
+        } else if (value instanceof Instant) {
+            statement.setTimestamp(index, Timestamp.from((Instant) value));
+        } else if (value instanceof GuildPartition) {
+            statement.setString(index, ((GuildPartition) value).getGuildID());
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+
+    /**
+     * Binds every row to the statement as a batch and executes it, a chunk at a time so huge batches don't pile up
+     * in memory.
+     *
+     * @param statement
+     *            The prepared statement to run for each row.
+     * @param rows
+     *            The values for each row, in the order of the statement's parameters.
+     * @return The number of rows affected by each row of the batch.
+     */
+    static int[] executeBatch(PreparedStatement statement, List<List<Object>> rows) throws SQLException {
+        int[] counts = new int[rows.size()];
+        int done = 0;
+
+        while (done < rows.size()) {
+            int end = Math.min(done + BATCH_CHUNK_SIZE, rows.size());
+
+            for (List<Object> row : rows.subList(done, end)) {
+                int i = 1;
+                for (Object value : row) {
+                    bind(statement, i, value);
+                    i++;
+                }
+                statement.addBatch();
+            }
+
+            int[] chunkCounts = statement.executeBatch();
+            System.arraycopy(chunkCounts, 0, counts, done, chunkCounts.length);
+            done = end;
+        }
+
+        return counts;
+    }
+
+    /**
+     * @return The total rows affected by a batch, not counting rows the driver couldn't say.
+     */
+    static long sum(int[] rowCounts) {
+        long total = 0;
+
+        for (int count : rowCounts) {
+            if (count > 0) {
+                total += count;
+            }
+        }
+
+        return total;
+    }
 }
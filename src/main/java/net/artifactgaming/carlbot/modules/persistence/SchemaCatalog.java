@@ -0,0 +1,112 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory copy of which tables and columns exist in the database.
+ *
+ * It is loaded once at startup from INFORMATION_SCHEMA and kept up to date by {@link Table#create()} and
+ * {@link AlterBuilder}, so checking if a table or column exists never has to ask the database.
+ * Names are stored the way H2 stores them: quoted identifiers as-is, unquoted ones in upper case.
+ */
+class SchemaCatalog {
+
+    private final Map<String, Set<String>> tables = new ConcurrentHashMap<>();
+
+    /**
+     * (Re)load every table and column from the database.
+     */
+    void load(Persistence database) throws SQLException {
+        tables.clear();
+
+        ResultSet tableResults = database.tableOfTables.select().execute();
+        while (tableResults.next()) {
+            addTable(tableResults.getString("TABLE_NAME"));
+        }
+        tableResults.close();
+
+        ResultSet columnResults = database.tableOfColumns.select().execute();
+        while (columnResults.next()) {
+            addColumn(columnResults.getString("TABLE_NAME"), columnResults.getString("COLUMN_NAME"));
+        }
+        columnResults.close();
+
+        database.logger.debug("Loaded schema catalog with " + tables.size() + " tables.");
+    }
+
+    /**
+     * Reload one table's columns from the database, after another bot changed them.
+     */
+    void reloadTable(Persistence database, String tableName) throws SQLException {
+        Set<String> columns = ConcurrentHashMap.newKeySet();
+
+        ResultSet columnResults = database.tableOfColumns.select().where("TABLE_NAME", "=", tableName).execute();
+        while (columnResults.next()) {
+            columns.add(columnResults.getString("COLUMN_NAME"));
+        }
+        columnResults.close();
+
+        // Swapped in whole, so nobody sees it half loaded.
+        tables.put(tableName, columns);
+    }
+
+    boolean tableExists(String tableName) {
+        return tables.containsKey(tableName);
+    }
+
+    boolean columnExists(String tableName, String columnName) {
+        return tables.getOrDefault(tableName, Collections.emptySet()).contains(columnName);
+    }
+
+    void addTable(String tableName) {
+        tables.computeIfAbsent(tableName, (name) -> ConcurrentHashMap.newKeySet());
+    }
+
+    void removeTable(String tableName) {
+        tables.remove(tableName);
+    }
+
+    void addColumn(String tableName, String columnName) {
+        tables.computeIfAbsent(tableName, (name) -> ConcurrentHashMap.newKeySet()).add(columnName);
+    }
+
+    void removeColumn(String tableName, String columnName) {
+        Set<String> columns = tables.get(tableName);
+
+        if (columns != null) {
+            columns.remove(columnName);
+        }
+    }
+
+    /**
+     * @return Every known table name.
+     */
+    Set<String> getTableNames() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    /**
+     * Works out the name H2 will store for the first identifier in a piece of SQL,
+     * such as a column definition like {@code owner varchar} or {@code "some.Column" varchar}.
+     */
+    static String identifierName(String sql) {
+        String trimmed = sql.trim();
+
+        if (trimmed.startsWith("\"")) {
+            int end = trimmed.indexOf('"', 1);
+            return trimmed.substring(1, end);
+        }
+
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+
+        return trimmed.substring(0, end).toUpperCase();
+    }
+}
@@ -0,0 +1,151 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies the {@link SchemaStep}s of every {@link PersistentModule}, and remembers how many each guild has had.
+ *
+ * The versions are kept in the CARLBOT_SCHEMA_VERSIONS table, one row per guild and module. A module in the shared
+ * layout has a single row for all guilds, under the scope {@value #SHARED_SCOPE}.
+ */
+class SchemaMigrator {
+
+    /**
+     * The scope the versions of shared tables are kept under, in place of a guild ID.
+     */
+    static final String SHARED_SCOPE = "shared";
+
+    private final Persistence database;
+    private final Logger logger;
+    private final Table versions;
+
+    // How many steps have been applied, by scope and module. A copy of the versions table.
+    private final Map<String, Integer> versionsByKey = new ConcurrentHashMap<>();
+
+    SchemaMigrator(Persistence database) {
+        this.database = database;
+        this.logger = database.logger;
+        this.versions = new Table(database, "CARLBOT_SCHEMA_VERSIONS");
+    }
+
+    /**
+     * Make the versions table if need be, and read it.
+     */
+    void load() throws SQLException {
+        if (!versions.exists()) {
+            versions.create();
+            versions.alter().add()
+                    .pushValue("scope varchar")
+                    .pushValue("module varchar")
+                    .pushColumn("version", ColumnType.INT)
+                    .execute();
+            versions.createUniqueIndex("scope", "module");
+        }
+
+        ResultSet resultSet = versions.select().execute();
+
+        while (resultSet.next()) {
+            versionsByKey.put(getKey(resultSet.getString("scope"), resultSet.getString("module")),
+                    resultSet.getInt("version"));
+        }
+        resultSet.close();
+    }
+
+    /**
+     * Bring every module up to date, for every guild we know of.
+     */
+    void migrateAll(List<PersistentModule> modules, Collection<String> guildIDs) {
+        int stepsApplied = 0;
+        long start = System.currentTimeMillis();
+
+        for (PersistentModule module : modules) {
+            if (module.getSchemaSteps().length == 0) {
+                continue;
+            }
+
+            if (database.usesSharedLayout(module)) {
+                stepsApplied += migrateOrLog(module, SHARED_SCOPE, database.makeSharedTable(null, module));
+                continue;
+            }
+
+            for (String guildID : guildIDs) {
+                stepsApplied += migrateOrLog(module, guildID, database.makePerGuildTable(guildID, module));
+            }
+        }
+
+        logger.info("Applied " + stepsApplied + " schema steps in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    /**
+     * Bring every module up to date for a guild we haven't seen before.
+     */
+    void migrateGuild(List<PersistentModule> modules, String guildID) throws SQLException {
+        for (PersistentModule module : modules) {
+            // Shared tables were brought up to date at startup.
+            if (!database.usesSharedLayout(module)) {
+                migrate(module, guildID, database.makePerGuildTable(guildID, module));
+            }
+        }
+    }
+
+    private int migrateOrLog(PersistentModule module, String scope, Table guildTable) {
+        try {
+            return migrate(module, scope, guildTable);
+        } catch (SQLException | RuntimeException e) {
+            // One broken guild shouldn't keep every other guild from being migrated.
+            logger.error("Couldn't update the tables of " + module.getClass().getSimpleName() + " for " + scope, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Apply the steps a guild (or the shared tables) hasn't had yet, recording each one as it is done.
+     * @return How many steps were applied.
+     */
+    int migrate(PersistentModule module, String scope, Table guildTable) throws SQLException {
+        SchemaStep[] steps = module.getSchemaSteps();
+        int version = getVersion(module, scope);
+        int stepsApplied = 0;
+
+        while (version < steps.length) {
+            steps[version].apply(guildTable);
+            version++;
+            stepsApplied++;
+
+            recordVersion(module, scope, version);
+        }
+
+        return stepsApplied;
+    }
+
+    /**
+     * @return How many of the module's steps have been applied for the scope.
+     */
+    int getVersion(PersistentModule module, String scope) {
+        return versionsByKey.getOrDefault(getKey(scope, module.getClass().getCanonicalName()), 0);
+    }
+
+    void recordVersion(PersistentModule module, String scope, int version) throws SQLException {
+        String moduleName = module.getClass().getCanonicalName();
+
+        versions.merge()
+                .set("scope", scope)
+                .set("module", moduleName)
+                .set("version", version)
+                .key("scope").key("module")
+                .execute();
+
+        versionsByKey.put(getKey(scope, moduleName), version);
+    }
+
+    private static String getKey(String scope, String moduleName) {
+        return scope + "/" + moduleName;
+    }
+}
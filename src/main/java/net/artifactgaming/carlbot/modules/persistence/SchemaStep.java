@@ -0,0 +1,17 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * One change to a module's tables, such as making a table or adding a column to one.
+ *
+ * Steps are declared by {@link PersistentModule#getSchemaSteps()} and run once for every guild, in order, when the
+ * bot starts or when a guild is first seen. Which steps a guild has had is remembered, so each only ever runs once.
+ */
+public interface SchemaStep {
+    /**
+     * @param guildTable The module's table for the guild, the parent of its own tables, as in
+     *                   {@code new Table(guildTable, "quotes")}.
+     */
+    void apply(Table guildTable) throws SQLException;
+}
@@ -1,12 +1,20 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 import java.io.Serializable;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A rework of Krasnay's select builder to be more friendly with how we manage our database.
@@ -19,31 +27,168 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
     SelectBuilder(Table table) {
         this.table = table;
         this.from(table.getName());
+
+        // In the shared layout, only see this guild's rows.
+        if (table.partition != null) {
+            addWhere(Table.PARTITION_COLUMN, "=", table.partition);
+        }
     }
 
+    /**
+     * Execute the query.
+     * The rows are copied out into a disconnected result set before the connection goes back to the pool, so the
+     * result stays usable even after the connection is reused, and forgetting to close it leaks nothing.
+     */
     @Override
     public ResultSet execute() throws SQLException {
-        Connection connection = table.server.getConnection();
-        PreparedStatement statement = connection.prepareStatement(this.toString());
+        String sql = toString();
+        List<Object> parameters = getParameters();
+
+        return table.database.measure(sql, parameters, counts -> table.database.withConnection(connection -> {
+            PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+
+            int i = 1;
+            for (Object parameter : parameters) {
+                SQLBuilder.bind(statement, i, parameter);
+                i++;
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                CachedRowSet rows = detach(resultSet);
+                counts.rowsReturned = rows.size();
+                return table.database.leakDetector.track(rows);
+            }
+        }));
+    }
+
+    /**
+     * Run the query and map its rows lazily, one at a time, so even a huge table is read in constant memory.
+     *
+     * The stream keeps a connection until it is closed, or until its last row has been read. Use it in a
+     * try-with-resources block if you might stop early:
+     * <pre>
+     * try (Stream&lt;Quote&gt; quotes = table.select().stream(row -&gt; ...)) { ... }
+     * </pre>
+     * Database errors while reading rows are thrown as {@link UncheckedSQLException}.
+     * @param mapper Turns each row into an object.
+     */
+    public <T> Stream<T> stream(RowMapper<T> mapper) throws SQLException {
+        String sql = toString();
+        if (table.logger.isDebugEnabled()) {
+            table.logger.debug("Run streamed sql: " + sql);
+        }
+
+        RowCursor<T> cursor = new RowCursor<>(table.database, table.logger, sql, getParameters(), mapper);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Run the query and hand each mapped row to the action, without keeping the rows around.
+     * Everything is closed by the time this returns.
+     */
+    public <T> void forEach(RowMapper<T> mapper, Consumer<? super T> action) throws SQLException {
+        try (Stream<T> rows = stream(mapper)) {
+            rows.forEach(action);
+        } catch (UncheckedSQLException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Run the query and map every row into a list, which you are free to change.
+     */
+    public <T> List<T> list(RowMapper<T> mapper) throws SQLException {
+        try (Stream<T> rows = stream(mapper)) {
+            return rows.collect(Collectors.toCollection(ArrayList::new));
+        } catch (UncheckedSQLException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Count the matching rows in the database, without reading any of them. Ordering and limits are ignored.
+     * On a grouped or distinct query, that's how many groups or distinct rows there are.
+     */
+    public long count() throws SQLException {
+        return aggregate("count(*)");
+    }
+
+    /**
+     * Add up a number column over the matching rows in the database. Ordering and limits are ignored.
+     * On a grouped or distinct query, it adds up the column the query returns for each group or distinct row.
+     * @return The total, or 0 if no rows match.
+     */
+    public long sum(String column) throws SQLException {
+        return aggregate("sum(" + column + ")");
+    }
+
+    private long aggregate(String expression) throws SQLException {
+        SelectBuilder aggregate = clone();
+        aggregate.orderBys.clear();
+        aggregate.limit = 0;
+        aggregate.offset = 0;
+
+        // Otherwise the aggregate would be worked out for each group, and only the first group's would be read.
+        if (distinct || !groupBys.isEmpty() || !havings.isEmpty() || !unions.isEmpty()) {
+            aggregate.forUpdate = false;
+            aggregate.noWait = false;
+            aggregate = new SelectBuilder(table, "(" + aggregate + ") as " + AGGREGATE_ROWS_ALIAS,
+                    aggregate.getParameters());
+        }
+
+        aggregate.columns.clear();
+        aggregate.columns.add(expression + " as " + AGGREGATE_ALIAS);
+
+        List<Long> totals = aggregate.list(row -> row.getLong(AGGREGATE_ALIAS));
+        return totals.isEmpty() ? 0 : totals.get(0);
+    }
+
+    /**
+     * @return The values for every question mark in the SQL, in order.
+     */
+    List<Object> getParameters() {
+        List<Object> parameters = new ArrayList<>(selectValues);
 
-        table.logger.debug("Run sql: " + this.toString());
+        // Bound rather than written into the SQL, so every page is the same statement and the same query in the
+        // metrics, instead of one of each per offset.
+        if (limit > 0) {
+            parameters.add(limit);
+        }
 
-        int i = 1;
-        for (String column : columns) {
-            statement.setString(i, column);
-            i++;
+        if (offset > 0) {
+            parameters.add(offset);
         }
+        return parameters;
+    }
+
+    /**
+     * Copy the rows of a result set into one that doesn't need the connection to stay open.
+     */
+    static CachedRowSet detach(ResultSet resultSet) throws SQLException {
+        CachedRowSet rows = getRowSetFactory().createCachedRowSet();
+        rows.populate(resultSet);
+        return rows;
+    }
 
-        for (String value : selectValues) {
-            statement.setString(i, value);
-            i++;
+    private static RowSetFactory rowSetFactory;
+
+    private static synchronized RowSetFactory getRowSetFactory() throws SQLException {
+        // Looking the factory up is slow, so only do it once.
+        if (rowSetFactory == null) {
+            rowSetFactory = RowSetProvider.newFactory();
         }
 
-        return statement.executeQuery();
+        return rowSetFactory;
     }
 
     private static final long serialVersionUID = 1;
 
+    private static final String AGGREGATE_ALIAS = "carlbot_aggregate";
+
+    private static final String AGGREGATE_ROWS_ALIAS = "carlbot_aggregate_rows";
+
     private boolean distinct;
 
     private List<String> columns = new ArrayList<>();
@@ -64,7 +209,7 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
 
     private List<String> orderBys = new ArrayList<>();
 
-    private List<String> selectValues = new ArrayList<>();
+    private List<Object> selectValues = new ArrayList<>();
 
     private int limit = 0;
 
@@ -74,6 +219,15 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
 
     private boolean noWait;
 
+    /**
+     * Select from a subquery, whose values are already in place. Used by {@link #aggregate(String)}.
+     */
+    private SelectBuilder(Table table, String subquery, List<Object> values) {
+        this.table = table;
+        this.tables.add(subquery);
+        this.selectValues.addAll(values);
+    }
+
     /**
      * Copy constructor. Used by {@link #clone()}.
      *
@@ -82,9 +236,12 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
      */
     protected SelectBuilder(SelectBuilder other) {
 
+        this.table = other.table;
         this.distinct = other.distinct;
         this.forUpdate = other.forUpdate;
         this.noWait = other.noWait;
+        this.limit = other.limit;
+        this.offset = other.offset;
 
         for (String column : other.columns) {
             this.columns.add(column);
@@ -94,6 +251,7 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
         this.joins.addAll(other.joins);
         this.leftJoins.addAll(other.leftJoins);
         this.wheres.addAll(other.wheres);
+        this.selectValues.addAll(other.selectValues);
         this.groupBys.addAll(other.groupBys);
         this.havings.addAll(other.havings);
 
@@ -111,11 +269,19 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
         return where(expr, op, value);
     }
 
+    /**
+     * Only return this column, rather than all of them. Call it once for each column you want.
+     * An expression such as "max(score)" works too, along with {@link #groupBy(String)}.
+     * The name goes into the SQL as it is, so never pass user input.
+     */
     public SelectBuilder column(String name) {
         columns.add(name);
         return this;
     }
 
+    /**
+     * Like {@link #column(String)}, also grouping by the column if asked to.
+     */
     public SelectBuilder column(String name, boolean groupBy) {
         columns.add(name);
         if (groupBy) {
@@ -124,6 +290,13 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Only return some of the rows.
+     * To page through a big table, prefer {@link #after(String, String)}; the database still has to step over
+     * every row it skips for the offset, so late pages get slower and slower.
+     * @param limit How many rows to return at most, or 0 for all of them.
+     * @param offset How many rows to skip first.
+     */
     public SelectBuilder limit(int limit, int offset) {
         this.limit = limit;
         this.offset = offset;
@@ -134,6 +307,33 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
         return limit(limit, 0);
     }
 
+    /**
+     * Keyset pagination: only the rows whose column comes after the value, in the column's order. With
+     * {@link #limit(int)}, that's the page after the one that ended with the value.
+     * The column's index takes the database straight to the first row of the page however deep into the table it
+     * is, and rows added or removed on earlier pages don't shift the later ones.
+     * @param column A column no two rows share a value in, such as a key.
+     * @param value The column's value in the last row of the previous page; or null for the first page.
+     */
+    public SelectBuilder after(String column, String value) {
+        if (value != null) {
+            addWhere(column, " > ", value);
+        }
+        return orderBy(column, true);
+    }
+
+    /**
+     * Like {@link #after(String, String)}, going backwards: only the rows whose column comes before the value,
+     * nearest first. Reverse them to put the page in order.
+     * @param value The column's value in the first row of the next page; or null for the last page.
+     */
+    public SelectBuilder before(String column, String value) {
+        if (value != null) {
+            addWhere(column, " < ", value);
+        }
+        return orderBy(column, false);
+    }
+
     @Override
     public SelectBuilder clone() {
         return new SelectBuilder(this);
@@ -225,7 +425,7 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
                 if (i != 0) {
                     sql.append(", ");
                 }
-                sql.append("?");
+                sql.append(columns.get(i));
             }
         }
 
@@ -238,6 +438,15 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
         SQLBuilder.appendList(sql, unions, " union ", " union ");
         SQLBuilder.appendList(sql, orderBys, " order by ", ", ");
 
+        if(limit > 0) {
+            sql.append(" limit ?");
+        }
+
+        if(offset > 0) {
+            sql.append(" offset ?");
+        }
+
+        // H2 wants this last.
         if (forUpdate) {
             sql.append(" for update");
             if (noWait) {
@@ -245,16 +454,6 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
             }
         }
 
-        if(limit > 0) {
-            sql.append(" limit ");
-            sql.append(limit);
-        }
-
-        if(offset > 0) {
-            sql.append(", ");
-            sql.append(offset);
-        }
-
         return sql.toString();
     }
 
@@ -270,6 +469,10 @@ public class SelectBuilder implements SQLBuilder, Cloneable, Serializable {
     }
 
     public SelectBuilder where(String expr, String op, String value) {
+        return addWhere(expr, op, value);
+    }
+
+    private SelectBuilder addWhere(String expr, String op, Object value) {
         wheres.add(expr + op + "?");
         selectValues.add(value);
         return this;
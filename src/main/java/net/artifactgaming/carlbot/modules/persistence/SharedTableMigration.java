@@ -0,0 +1,271 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copies a module's per-guild tables into its shared tables, then switches the module over to the shared layout.
+ *
+ * The guild tables are copied a batch at a time on several threads, each batch in its own transaction. A guild's
+ * rows are deleted from the shared table before they're copied, so a migration that failed part way can simply be
+ * run again. The per-guild tables are left alone, in case the module has to be switched back.
+ *
+ * The module's writes wait from before the first table is copied until it has been switched over, so none are left
+ * behind in the guild tables; a write that waited on a guild table it no longer uses fails, rather than going
+ * astray. If the guild tables have rows sharing a key a unique index needs, the migration fails before switching.
+ * Started from {@link Persistence#migrateToSharedLayout(PersistentModule)}.
+ */
+class SharedTableMigration {
+
+    /**
+     * How many threads copy tables at once. Kept below the size of the connection pool, so the bot can still get a
+     * connection while a migration runs.
+     */
+    static final int THREADS = 4;
+
+    /**
+     * How many guild tables are copied in one transaction.
+     */
+    static final int BATCH_SIZE = 25;
+
+    private final Persistence database;
+    private final Logger logger;
+    private final PersistentModule module;
+
+    SharedTableMigration(Persistence database, PersistentModule module) {
+        this.database = database;
+        this.logger = database.logger;
+        this.module = module;
+    }
+
+    /**
+     * @return How many rows were copied.
+     */
+    int run() throws SQLException {
+        String moduleName = module.getClass().getCanonicalName();
+        Lock writeLock = database.getModuleWriteLock(moduleName).writeLock();
+
+        // Waits for the module's writes that are under way, and holds up new ones until it's switched over.
+        writeLock.lock();
+
+        try {
+            if (database.usesSharedLayout(module)) {
+                throw new IllegalStateException(moduleName + " already uses the shared layout.");
+            }
+
+            Map<String, List<String>> guildTablesBySubTable = findGuildTables();
+            int rowsCopied = 0;
+
+            for (Map.Entry<String, List<String>> entry : guildTablesBySubTable.entrySet()) {
+                rowsCopied += migrateSubTable(entry.getKey(), entry.getValue());
+            }
+
+            migrateSchema(guildTablesBySubTable);
+
+            database.setSharedLayout(module, true);
+
+            logger.info("Moved " + moduleName + " to the shared layout: copied " + rowsCopied + " rows into "
+                    + guildTablesBySubTable.size() + " shared tables. The old guild tables were kept.");
+
+            return rowsCopied;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Carry the guilds' schema version over to the shared tables, then apply any steps they haven't had, which
+     * makes the shared tables if no guild had them yet.
+     */
+    private void migrateSchema(Map<String, List<String>> guildTablesBySubTable) throws SQLException {
+        SchemaMigrator schemaMigrator = database.schemaMigrator;
+        int version = 0;
+
+        // Every known guild was brought up to date at startup, so they should agree. If they don't, the shared
+        // tables have every column any of them had, so go with the newest.
+        for (List<String> guildTables : guildTablesBySubTable.values()) {
+            for (String guildTable : guildTables) {
+                String guildID = guildTable.substring("GUILD_".length(), guildTable.indexOf(':'));
+                version = Math.max(version, schemaMigrator.getVersion(module, guildID));
+            }
+        }
+
+        if (version > schemaMigrator.getVersion(module, SchemaMigrator.SHARED_SCOPE)) {
+            schemaMigrator.recordVersion(module, SchemaMigrator.SHARED_SCOPE, version);
+        }
+
+        schemaMigrator.migrate(module, SchemaMigrator.SHARED_SCOPE, database.makeSharedTable(null, module));
+    }
+
+    /**
+     * @return The names of the module's per-guild tables, grouped by what the module calls them.
+     */
+    private Map<String, List<String>> findGuildTables() {
+        // A guild table's name ends up like GUILD_<id>:<module name, minus its last letter>/<sub table>.
+        String moduleName = module.getClass().getCanonicalName().toUpperCase();
+        Pattern guildTableName = Pattern.compile("GUILD_\\d+:"
+                + Pattern.quote(moduleName.substring(0, moduleName.length() - 1)) + "/(.+)");
+
+        Map<String, List<String>> guildTablesBySubTable = new LinkedHashMap<>();
+
+        for (String tableName : database.schemaCatalog.getTableNames()) {
+            Matcher matcher = guildTableName.matcher(tableName);
+
+            if (matcher.matches()) {
+                guildTablesBySubTable.computeIfAbsent(matcher.group(1), (key) -> new ArrayList<>()).add(tableName);
+            }
+        }
+
+        return guildTablesBySubTable;
+    }
+
+    private int migrateSubTable(String subTable, List<String> guildTables) throws SQLException {
+        Table sharedTable = new Table(database.makeSharedTable(null, module), subTable);
+
+        if (!sharedTable.exists()) {
+            sharedTable.create();
+        }
+
+        Map<String, List<String>> columnsByTable = addMissingColumns(sharedTable, guildTables);
+
+        logger.info("Copying " + guildTables.size() + " guild tables into " + sharedTable.getName() + ".");
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        AtomicInteger rowsCopied = new AtomicInteger();
+        List<Future<?>> batches = new ArrayList<>();
+
+        try {
+            for (int start = 0; start < guildTables.size(); start += BATCH_SIZE) {
+                List<String> batch = guildTables.subList(start, Math.min(start + BATCH_SIZE, guildTables.size()));
+
+                batches.add(executor.submit(() -> {
+                    rowsCopied.addAndGet(copyBatch(sharedTable, batch, columnsByTable));
+                    return null;
+                }));
+            }
+
+            for (Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Couldn't copy the guild tables into " + sharedTable.getName(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying the guild tables into " + sharedTable.getName(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The shared table needs the same indexes the guild tables had, with the guild in front. Keys a guild table
+        // already had twice make this fail, rather than lose either row.
+        for (TableIndex index : module.getTableIndexes()) {
+            if (index.getSubTable().equalsIgnoreCase(subTable)) {
+                sharedTable.createIndex(index);
+            }
+        }
+
+        return rowsCopied.get();
+    }
+
+    /**
+     * Give the shared table every column any of the guild tables has.
+     * @return The columns of each guild table.
+     */
+    private Map<String, List<String>> addMissingColumns(Table sharedTable, List<String> guildTables)
+            throws SQLException {
+        Map<String, List<String>> columnsByTable = new LinkedHashMap<>();
+        Map<String, String> columnTypes = new LinkedHashMap<>();
+        Set<String> guildTableNames = new HashSet<>(guildTables);
+
+        database.withConnection(connection -> {
+            String sql = "select TABLE_NAME, COLUMN_NAME, TYPE_NAME from INFORMATION_SCHEMA.COLUMNS"
+                    + " where TABLE_SCHEMA = 'PUBLIC' order by ORDINAL_POSITION";
+
+            try (PreparedStatement statement = connection.prepareStatement(sql);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String tableName = resultSet.getString("TABLE_NAME");
+
+                    if (guildTableNames.contains(tableName)) {
+                        String column = resultSet.getString("COLUMN_NAME");
+
+                        columnsByTable.computeIfAbsent(tableName, (key) -> new ArrayList<>()).add(column);
+                        columnTypes.putIfAbsent(column, resultSet.getString("TYPE_NAME"));
+                    }
+                }
+            }
+            return null;
+        });
+
+        for (Map.Entry<String, String> column : columnTypes.entrySet()) {
+            if (!sharedTable.columnExists(column.getKey())) {
+                sharedTable.alter().add()
+                        .pushValue("\"" + column.getKey() + "\" " + column.getValue())
+                        .execute();
+            }
+        }
+
+        return columnsByTable;
+    }
+
+    private int copyBatch(Table sharedTable, List<String> guildTables, Map<String, List<String>> columnsByTable)
+            throws SQLException {
+        return database.inTransaction(() -> database.withConnection(connection -> {
+            int rowsCopied = 0;
+
+            for (String guildTable : guildTables) {
+                String guildID = guildTable.substring("GUILD_".length(), guildTable.indexOf(':'));
+                String columns = quoteAll(columnsByTable.getOrDefault(guildTable, new ArrayList<>()));
+
+                try (PreparedStatement statement = connection.prepareStatement("delete from "
+                        + sharedTable.getName() + " where " + Table.PARTITION_COLUMN + " = ?")) {
+                    statement.setString(1, guildID);
+                    statement.execute();
+                }
+
+                String sql = "insert into " + sharedTable.getName() + " (" + Table.PARTITION_COLUMN + columns
+                        + ") select ?" + columns + " from \"" + guildTable + "\"";
+
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setString(1, guildID);
+                    rowsCopied += statement.executeUpdate();
+                }
+            }
+
+            return rowsCopied;
+        }));
+    }
+
+    /**
+     * @return The columns, quoted, each with a comma in front.
+     */
+    private static String quoteAll(List<String> columns) {
+        StringBuilder quoted = new StringBuilder();
+
+        for (String column : columns) {
+            quoted.append(", \"").append(column).append("\"");
+        }
+
+        return quoted.toString();
+    }
+}
@@ -1,34 +1,70 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
-import org.h2.jdbcx.JdbcDataSource;
 import org.slf4j.Logger;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Table {
 
+    /**
+     * In the shared layout, the column of every module table that says which guild a row belongs to.
+     * Builders fill it in and filter on it by themselves, so modules shouldn't use it. It's named so it won't clash
+     * with a module's own columns, such as the guild_ID that schedules keep.
+     */
+    public static final String PARTITION_COLUMN = "carlbot_guild_id";
+
+    /**
+     * How many of the values rows share are named when a unique index is refused.
+     */
+    static final int MAX_REPORTED_KEYS = 20;
+
     Persistence database;
 
-    JdbcDataSource server;
     Logger logger;
 
     String tableName;
 
+    // The name without its quotes, as the information schema has it. Worked out once, since it's used so often.
+    private String nameSQLForm;
+
+    // Queries compiled for this table with compile(name, factory), already bound to it, keyed by query name.
+    private Map<String, CompiledQuery> compiledQueries = new ConcurrentHashMap<>();
+
+    // The guild this table is limited to, if it is part of a table shared by every guild. Null otherwise.
+    GuildPartition partition;
+
+    // Whose table this is, for the change log. Null for tables that aren't a module's, and the guild is null for a
+    // shared table standing for every guild's rows.
+    String guildID;
+    String moduleName;
+
     Table(Persistence database, String tableName) {
+        this(database, tableName, null);
+    }
+
+    Table(Persistence database, String tableName, GuildPartition partition) {
         this.database = database;
-        this.server = database.server;
         this.logger = database.logger;
 
         this.tableName = tableName;
+        this.partition = partition;
+        this.nameSQLForm = toNameSQLForm(tableName);
     }
 
     public Table(Table parent, String tableName) {
         this.database = parent.database;
-        this.server = parent.server;
         this.logger = parent.logger;
+        this.partition = parent.partition;
+        this.guildID = parent.guildID;
+        this.moduleName = parent.moduleName;
 
         boolean useQuotes = parent.tableName.endsWith("\"");
 
@@ -40,9 +76,10 @@ public class Table {
         }
 
         this.tableName = this.tableName.toUpperCase();
+        this.nameSQLForm = toNameSQLForm(this.tableName);
     }
 
-    String getNameSQLForm() {
+    private static String toNameSQLForm(String tableName) {
         // Do we need to shave off the quotes?
         if (tableName.endsWith("\"")) {
             return tableName.substring(1, tableName.length() - 1);
@@ -51,42 +88,233 @@ public class Table {
         }
     }
 
+    String getNameSQLForm() {
+        return nameSQLForm;
+    }
+
     public boolean exists() throws SQLException {
+        return database.schemaCatalog.tableExists(getNameSQLForm());
+    }
 
-        ResultSet results = database.tableOfTables.select().where("table_name", "=", getNameSQLForm())
-                .execute();
+    public boolean columnExists(String columnName) throws SQLException {
+        return database.schemaCatalog.columnExists(getNameSQLForm(), columnName);
+    }
 
-        boolean exists = results.next();
-        results.close();
+    /**
+     * @return Whether this table is one guild's part of a table shared by every guild, see
+     * {@link Persistence#setSharedLayout(PersistentModule, boolean)}.
+     */
+    public boolean isShared() {
+        return partition != null;
+    }
 
-        return exists;
+    public void create() throws SQLException {
+        // A shared table starts out with the column saying whose each row is.
+        String sql = isShared()
+                ? "create table " + tableName + " (" + PARTITION_COLUMN + " varchar)"
+                : "create table " + tableName;
+
+        database.measure(sql, Collections.emptyList(), counts -> database.withConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+            connection.commit();
+            return null;
+        }));
+        database.schemaCatalog.addTable(getNameSQLForm());
+        logger.debug("Created table: " + tableName);
+
+        if (isShared()) {
+            database.schemaCatalog.addColumn(getNameSQLForm(), SchemaCatalog.identifierName(PARTITION_COLUMN));
+            runDDL("create index if not exists " + getIndexName(PARTITION_COLUMN)
+                    + " on " + tableName + " (" + PARTITION_COLUMN + ")");
+        }
     }
 
-    public boolean columnExists(String columnName) throws SQLException {
+    /**
+     * Index the columns, so looking rows up by them doesn't have to scan the whole table.
+     * Does nothing if the index is already there.
+     * In the shared layout, the index is on the guild first, so values only have to be unique within a guild.
+     * @param columns The columns to index, written the way they were when the table was made.
+     */
+    public void createIndex(String... columns) throws SQLException {
+        createIndex(false, columns);
+    }
+
+    /**
+     * Index the columns, and make sure no two rows share the same values in them.
+     * Does nothing if the index is already there, and replaces a plain index on the same columns.
+     * The index is refused if rows already share the same values (left by the select-then-insert writes modules
+     * used to do); those rows are somebody's data, so they aren't thrown away here. The values they share are
+     * reported instead, to be merged or deleted by hand.
+     * @throws SQLException If rows already share the same values.
+     */
+    public void createUniqueIndex(String... columns) throws SQLException {
+        List<String> duplicateKeys = findDuplicateKeys(columns);
+
+        if (!duplicateKeys.isEmpty()) {
+            throw new SQLException("Rows in " + tableName + " share the same "
+                    + String.join(", ", withPartition(columns)) + ", so the index on them can't be unique: "
+                    + String.join("; ", duplicateKeys) + ". Merge or delete them by hand, then restart.");
+        }
 
-        ResultSet results = database.tableOfColumns.select()
-                .where("TABLE_NAME", "=",getNameSQLForm())
-                .where("COLUMN_NAME", "=",columnName).execute();
+        // Duplicates used to get a plain index under the same name instead, which "if not exists" would keep.
+        if (hasPlainIndex(columns)) {
+            dropIndex(columns);
+        }
 
-        boolean exists = results.next();
-        results.close();
+        createIndex(true, columns);
+    }
 
-        return exists;
+    /**
+     * Create a module's declared index, see {@link #createIndex(String...)} and {@link #createUniqueIndex(String...)}.
+     * @throws SQLException If the index can't be made, such as when rows already share the same values.
+     */
+    public void createIndex(TableIndex index) throws SQLException {
+        if (index.isUnique()) {
+            createUniqueIndex(index.getColumns());
+        } else {
+            createIndex(false, index.getColumns());
+        }
     }
 
-    public void create() throws SQLException {
-        Connection connection = server.getConnection();
+    /**
+     * @return The values that more than one row has in the columns, at most {@link #MAX_REPORTED_KEYS} of them, each
+     * with how many rows have it. Rows with a null in them are left out, since a unique index doesn't mind those.
+     */
+    private List<String> findDuplicateKeys(String... columns) throws SQLException {
+        String[] keyColumns = withPartition(columns);
+        String groupBy = String.join(", ", keyColumns);
 
-        PreparedStatement statement = connection.prepareStatement("create table " + tableName);
-        statement.execute();
-        connection.commit();
-        logger.debug("Created table: " + tableName);
+        StringBuilder sql = new StringBuilder("select ").append(groupBy).append(", count(*) from ").append(tableName);
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i == 0 ? " where " : " and ").append(keyColumns[i]).append(" is not null");
+        }
+        sql.append(" group by ").append(groupBy).append(" having count(*) > 1 limit ").append(MAX_REPORTED_KEYS);
+
+        String selectSQL = sql.toString();
+
+        return database.measure(selectSQL, Collections.emptyList(), counts -> database.withConnection(connection -> {
+            List<String> duplicateKeys = new ArrayList<>();
+
+            try (PreparedStatement statement = connection.prepareStatement(selectSQL);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    StringBuilder key = new StringBuilder();
+
+                    for (int i = 0; i < keyColumns.length; i++) {
+                        key.append(i == 0 ? "" : ", ").append(keyColumns[i]).append("=")
+                                .append(resultSet.getString(i + 1));
+                    }
+
+                    duplicateKeys.add(key.append(" (").append(resultSet.getInt(keyColumns.length + 1))
+                            .append(" rows)").toString());
+                }
+            }
+
+            counts.rowsReturned = duplicateKeys.size();
+            return duplicateKeys;
+        }));
+    }
+
+    /**
+     * @return Whether there is an index on the columns, and it isn't unique.
+     */
+    private boolean hasPlainIndex(String... columns) throws SQLException {
+        String indexName = toNameSQLForm(getIndexName(withPartition(columns)));
+        String sql = "select NON_UNIQUE from INFORMATION_SCHEMA.INDEXES where INDEX_NAME = ?";
+        List<Object> values = Collections.singletonList(indexName);
+
+        return database.measure(sql, values, counts -> database.withConnection(connection -> {
+            PreparedStatement statement = database.connectionPool.prepare(connection, sql);
+            SQLBuilder.bind(statement, 1, indexName);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean("NON_UNIQUE");
+            }
+        }));
+    }
+
+    /**
+     * Drop the index on the columns, if there is one.
+     */
+    public void dropIndex(String... columns) throws SQLException {
+        runDDL("drop index if exists " + getIndexName(withPartition(columns)));
+    }
+
+    private void createIndex(boolean unique, String... columns) throws SQLException {
+        columns = withPartition(columns);
+        runDDL("create " + (unique ? "unique " : "") + "index if not exists " + getIndexName(columns)
+                + " on " + tableName + " (" + String.join(", ", columns) + ")");
+    }
+
+    private String[] withPartition(String[] columns) {
+        if (!isShared()) {
+            return columns;
+        }
+
+        String[] partitioned = new String[columns.length + 1];
+        partitioned[0] = PARTITION_COLUMN;
+        System.arraycopy(columns, 0, partitioned, 1, columns.length);
+        return partitioned;
+    }
+
+    /**
+     * Index names share a namespace with every other index, so they are named after the table and columns.
+     */
+    private String getIndexName(String... columns) {
+        StringBuilder name = new StringBuilder("\"").append(getNameSQLForm()).append("_IDX");
+
+        for (String column : columns) {
+            name.append("_").append(SchemaCatalog.identifierName(column));
+        }
+
+        return name.append("\"").toString();
+    }
+
+    private void runDDL(String sql) throws SQLException {
+        database.measure(sql, Collections.emptyList(), counts -> database.withConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Execute the builder on the database thread, see {@link Persistence#submit(DatabaseTask)}.
+     * @return A future for what {@link SQLBuilder#execute()} returns.
+     */
+    public CompletableFuture<ResultSet> executeAsync(SQLBuilder builder) {
+        return database.submit(builder::execute);
+    }
+
+    /**
+     * Build the SQL for a statement once, so it can be bound and run many times.
+     * @param template A builder for the statement, with placeholder values where the real ones will go.
+     */
+    public CompiledQuery compile(SQLBuilder template) {
+        return new CompiledQuery(this, template);
+    }
+
+    /**
+     * Like {@link #compile(SQLBuilder)}, but the compiled query is remembered for this table, so the template is only
+     * ever built once. In the shared layout, every guild shares the same compiled query.
+     * @param queryName A name for the query, unique within the module using it.
+     * @param factory Builds the template the first time it's needed.
+     */
+    public CompiledQuery compile(String queryName, CompiledQuery.TemplateFactory factory) {
+        return compiledQueries.computeIfAbsent(queryName, (name) ->
+                database.compiledQueries.computeIfAbsent(tableName + "#" + queryName,
+                        (key) -> compile(factory.build(this))).forTable(this));
     }
 
     public SelectBuilder select() { return new SelectBuilder(this); }
 
     public InsertBuilder insert() { return new InsertBuilder(this); }
 
+    public MergeBuilder merge() { return new MergeBuilder(this); }
+
     public AlterBuilder alter() { return new AlterBuilder(this); }
 
     public UpdateBuilder update() {
@@ -0,0 +1,38 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+/**
+ * An index that a module wants on one of its guild tables.
+ *
+ * Create it while bootstrapping the table with {@link Table#createIndex(TableIndex)}, and return it from
+ * {@link PersistentModule#getTableIndexes()} so it is also added to tables that existed before the index did.
+ */
+public class TableIndex {
+
+    private final String subTable;
+    private final boolean unique;
+    private final String[] columns;
+
+    /**
+     * @param subTable The name the module gives its table under the guild, as in {@code new Table(guildTable, "quotes")}.
+     * @param unique Whether no two rows may share the same values. If existing rows already do, the index isn't
+     *               made and the values they share are reported, to be sorted out by hand.
+     * @param columns The columns to index, written the way they were when the table was made.
+     */
+    public TableIndex(String subTable, boolean unique, String... columns) {
+        this.subTable = subTable;
+        this.unique = unique;
+        this.columns = columns;
+    }
+
+    public String getSubTable() {
+        return subTable;
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+}
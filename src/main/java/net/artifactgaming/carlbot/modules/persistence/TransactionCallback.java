@@ -0,0 +1,11 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * Work to be done inside {@link Persistence#inTransaction(TransactionCallback)}.
+ * Every builder executed from inside it shares the same connection and is committed together.
+ */
+public interface TransactionCallback<T> {
+    T run() throws SQLException;
+}
@@ -1,10 +1,10 @@
 package net.artifactgaming.carlbot.modules.persistence;
 
 import java.io.Serializable;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,43 +14,174 @@ public class UpdateBuilder implements SQLBuilder, Serializable {
 
     UpdateBuilder(Table table) {
         this.table = table;
+        startRow();
     }
 
     @Override
     public ResultSet execute() throws SQLException {
-        Connection connection = table.server.getConnection();
-        PreparedStatement statement = connection.prepareStatement(toString());
-
-        table.logger.debug("Run sql: " + this.toString());
-
-        int i = 1;
-        for (String value : setValues) {
-            statement.setString(i, value);
-            i++;
-        }
-
-        for (String value : whereValues) {
-            statement.setString(i, value);
-            i++;
-        }
-
-        statement.execute();
+        executeUpdate();
 
         // Result is non-applicable.
         return null;
     }
 
+    /**
+     * Runs the update.
+     * @return How many rows were changed. Add a where expression for whatever has to be true for the change to go
+     * ahead (such as who owns the row) and this tells you whether it did, in one statement with no gap between
+     * checking and changing.
+     */
+    public int executeUpdate() throws SQLException {
+        String sql = toString();
+        List<Object> parameters = getParameters();
+
+        return table.database.measureWrite(table, sql, parameters, counts ->
+                table.database.withConnection(connection -> {
+                    PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+
+                    int i = 1;
+                    for (Object value : parameters) {
+                        SQLBuilder.bind(statement, i, value);
+                        i++;
+                    }
+
+                    int rowsChanged = statement.executeUpdate();
+                    counts.rowsAffected = rowsChanged;
+
+                    if (rowsChanged > 0) {
+                        table.database.changeLog.record(connection, table, ChangeLog.Kind.Update,
+                                ChangeLog.findKey(wheres, whereValues));
+                    }
+                    return rowsChanged;
+                }));
+    }
+
     private static final long serialVersionUID = 1;
 
     private List<String> sets = new ArrayList<>();
 
     private List<String> wheres = new ArrayList<>();
 
-    private List<String> setValues = new ArrayList<>();
+    private List<Object> setValues = new ArrayList<>();
+
+    private List<Object> whereValues = new ArrayList<>();
+
+    // The set and where expressions every row in the batch uses; null until the first row is added.
+    private List<String> batchSets;
+
+    private List<String> batchWheres;
+
+    private List<List<Object>> batchRows = new ArrayList<>();
+
+    /**
+     * Adds the values set so far as a row in a batch and starts a new row.
+     * Every row must use the same set and where expressions, in the same order.
+     * Run the whole batch with {@link #executeBatch()}.
+     */
+    public UpdateBuilder addBatch() {
+        if (batchSets == null) {
+            batchSets = new ArrayList<>(sets);
+            batchWheres = new ArrayList<>(wheres);
+        } else if (!batchSets.equals(sets) || !batchWheres.equals(wheres)) {
+            throw new IllegalStateException("Every row in a batch must use the same set and where expressions.");
+        }
+
+        List<Object> row = new ArrayList<>(setValues);
+        row.addAll(whereValues);
+        batchRows.add(row);
+
+        sets.clear();
+        wheres.clear();
+        setValues.clear();
+        whereValues.clear();
+        startRow();
+        return this;
+    }
+
+    /**
+     * In the shared layout, only change this guild's rows.
+     */
+    private void startRow() {
+        if (table.partition != null) {
+            addWhere(Table.PARTITION_COLUMN, "=", table.partition);
+        }
+    }
+
+    /**
+     * @return The values for every question mark in the SQL, in order.
+     */
+    List<Object> getParameters() {
+        List<Object> parameters = new ArrayList<>(setValues);
+        parameters.addAll(whereValues);
+        return parameters;
+    }
+
+    /**
+     * Runs every update added with {@link #addBatch()} in a single transaction.
+     * @return The number of rows changed by each row of the batch.
+     */
+    public int[] executeBatch() throws SQLException {
+        if (batchRows.isEmpty()) {
+            return new int[0];
+        }
 
-    private List<String> whereValues = new ArrayList<>();
+        String sql = toString();
+
+        return table.database.measureWriteBatch(table, sql, batchRows.size(), counts ->
+                table.database.withTransaction(connection -> {
+                    PreparedStatement statement = table.database.connectionPool.prepare(connection, sql);
+                    int[] rowCounts = SQLBuilder.executeBatch(statement, batchRows);
+                    counts.rowsAffected = SQLBuilder.sum(rowCounts);
+                    table.database.changeLog.record(connection, table, ChangeLog.Kind.Update, null);
+                    return rowCounts;
+                }));
+    }
+
+    /**
+     * @return How many rows have been added to the batch.
+     */
+    public int getBatchSize() {
+        return batchRows.size();
+    }
 
     public UpdateBuilder set(String expr, String value) {
+        return setValue(expr, value);
+    }
+
+    public UpdateBuilder set(String expr, long value) {
+        return setValue(expr, value);
+    }
+
+    public UpdateBuilder set(String expr, int value) {
+        return setValue(expr, value);
+    }
+
+    public UpdateBuilder set(String expr, double value) {
+        return setValue(expr, value);
+    }
+
+    public UpdateBuilder set(String expr, boolean value) {
+        return setValue(expr, value);
+    }
+
+    /**
+     * Sets a timestamp, see {@link ColumnType#TIMESTAMP}.
+     */
+    public UpdateBuilder set(String expr, Instant value) {
+        return setValue(expr, value);
+    }
+
+    /**
+     * Adds to a number column. The addition happens in the database, so two increments at once both count, which
+     * reading the value, adding to it and setting it again wouldn't do.
+     */
+    public UpdateBuilder increment(String column, long amount) {
+        sets.add(column + "=" + column + "+?");
+        setValues.add(amount);
+        return this;
+    }
+
+    private UpdateBuilder setValue(String expr, Object value) {
         sets.add(expr + "=?");
         setValues.add(value);
         return this;
@@ -58,6 +189,10 @@ public class UpdateBuilder implements SQLBuilder, Serializable {
 
     @Override
     public String toString() {
+        // In a batch, the expressions were moved over when the first row was added.
+        List<String> sets = (batchSets != null) ? batchSets : this.sets;
+        List<String> wheres = (batchWheres != null) ? batchWheres : this.wheres;
+
         StringBuilder sql = new StringBuilder("update ").append(table.getName());
         SQLBuilder.appendList(sql, sets, " set ", ", ");
         SQLBuilder.appendList(sql, wheres, " where ", " and ");
@@ -65,6 +200,14 @@ public class UpdateBuilder implements SQLBuilder, Serializable {
     }
 
     public UpdateBuilder where(String expr, String cond, String value) {
+        return addWhere(expr, cond, value);
+    }
+
+    public UpdateBuilder where(String expr, String cond, long value) {
+        return addWhere(expr, cond, value);
+    }
+
+    private UpdateBuilder addWhere(String expr, String cond, Object value) {
         wheres.add(expr + " " + cond + " ?");
         whereValues.add(value);
         return this;
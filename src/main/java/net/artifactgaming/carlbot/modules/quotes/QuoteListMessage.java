@@ -2,16 +2,30 @@ package net.artifactgaming.carlbot.modules.quotes;
 
 import net.artifactgaming.carlbot.Utils;
 
-import java.util.ArrayList;
+import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
 /**
  * Represents a discord message sent by CarlBot in order to display the list of quotes.
+ * Only the page being shown is kept; each page is read from the database when it's turned to.
  */
 class QuoteListMessage {
 
+    /**
+     * Reads quotes in key order, starting next to a key.
+     */
+    interface QuotePageLoader {
+        /**
+         * @param fromKey The key to start next to, which isn't included; or null to start at the first (or last) quote.
+         * @param forwards Whether to read the quotes after the key, or the ones before it, nearest first.
+         * @param count How many quotes to read at most.
+         */
+        List<Quote> load(String fromKey, boolean forwards, int count) throws SQLException;
+    }
+
     /**
      * How many seconds spent idling before this message stops reacting to reactions.
      */
@@ -22,9 +36,9 @@ class QuoteListMessage {
      */
     private QuoteListMessageReactionListener thisHandler;
 
-    private ArrayList<QuotePage> quotePages;
+    private QuotePageLoader quotePageLoader;
 
-    private int currentlyShownPageIndex;
+    private QuotePage currentPage;
 
     private String messageID;
 
@@ -33,28 +47,11 @@ class QuoteListMessage {
      */
     private Timer idleTimer;
 
-    QuoteListMessage(List<Quote> quotesList, String messageID, QuoteListMessageReactionListener thisHandler) {
+    QuoteListMessage(QuotePage firstPage, QuotePageLoader quotePageLoader, String messageID,
+                     QuoteListMessageReactionListener thisHandler) {
 
-        ///region Local_Function
-
-        Runnable createQuotePagesFromQuoteLists = () -> {
-            quotePages = new ArrayList<>();
-            quotePages.add(new QuotePage());
-
-            for (int currPageIndex = 0, i = 0; i < quotesList.size(); ++i){
-                if (!quotePages.get(currPageIndex).tryAddQuoteToPage(quotesList.get(i))){
-                    ++currPageIndex;
-                    quotePages.add(new QuotePage());
-
-                    quotePages.get(currPageIndex).tryAddQuoteToPage(quotesList.get(i));
-                }
-            }
-        };
-
-        ///endregion
-
-        createQuotePagesFromQuoteLists.run();
-        currentlyShownPageIndex = 0;
+        this.currentPage = firstPage;
+        this.quotePageLoader = quotePageLoader;
         this.messageID = messageID;
 
         this.thisHandler = thisHandler;
@@ -79,30 +76,72 @@ class QuoteListMessage {
         return messageID;
     }
 
+    /**
+     * Read the page of quotes right after (or right before) a key.
+     * @param fromKey See {@link QuotePageLoader#load(String, boolean, int)}.
+     * @return The page; its keys are null if there are no quotes that way.
+     */
+    static QuotePage loadPage(QuotePageLoader quotePageLoader, String fromKey, boolean forwards) throws SQLException {
+        QuotePage page = new QuotePage();
+
+        for (Quote quote : quotePageLoader.load(fromKey, forwards, QuotePage.maxQuotesPerListCount)) {
+            // A quote too long for any page is skipped, but still counts as read.
+            if (!page.tryAddQuoteToPage(quote) && !page.quotesInPage.isEmpty()) {
+                break;
+            }
+
+            if (page.firstKey == null) {
+                page.firstKey = quote.getKey();
+            }
+            page.lastKey = quote.getKey();
+        }
+
+        // Going backwards, the quotes came nearest first.
+        if (!forwards) {
+            Collections.reverse(page.quotesInPage);
+
+            String nearestKey = page.firstKey;
+            page.firstKey = page.lastKey;
+            page.lastKey = nearestKey;
+        }
+
+        return page;
+    }
+
     String getCurrentPageAsReadableDiscordString(){
-        return quotePages.get(currentlyShownPageIndex).getAsReadableDiscordString();
+        return currentPage.getAsReadableDiscordString();
     }
 
     List<Quote> getCurrentPage(){
-        return quotePages.get(currentlyShownPageIndex).quotesInPage;
+        return currentPage.quotesInPage;
     }
 
-    List<Quote> getNextPage(){
-        ++currentlyShownPageIndex;
-        clampCurrentlyShownPageIndexToQuotePageSize();
+    List<Quote> getNextPage() throws SQLException {
+        QuotePage nextPage = loadPage(quotePageLoader, currentPage.lastKey, true);
 
+        // Past the last page, go back around to the first.
+        if (nextPage.lastKey == null) {
+            nextPage = loadPage(quotePageLoader, null, true);
+        }
+
+        currentPage = nextPage;
         resetIdleTimer();
 
-        return quotePages.get(currentlyShownPageIndex).quotesInPage;
+        return currentPage.quotesInPage;
     }
 
-    List<Quote> getPreviousPage(){
-        --currentlyShownPageIndex;
-        clampCurrentlyShownPageIndexToQuotePageSize();
+    List<Quote> getPreviousPage() throws SQLException {
+        QuotePage previousPage = loadPage(quotePageLoader, currentPage.firstKey, false);
+
+        // Before the first page, go back around to the last.
+        if (previousPage.firstKey == null) {
+            previousPage = loadPage(quotePageLoader, null, false);
+        }
 
+        currentPage = previousPage;
         resetIdleTimer();
 
-        return quotePages.get(currentlyShownPageIndex).quotesInPage;
+        return currentPage.quotesInPage;
     }
 
     void cancelAndPurgeIdleTimer(){
@@ -115,14 +154,6 @@ class QuoteListMessage {
         setupInactiveTimer();
     }
 
-    private void clampCurrentlyShownPageIndexToQuotePageSize(){
-        if (quotePages.size() <= currentlyShownPageIndex){
-            currentlyShownPageIndex = 0;
-        } else if (currentlyShownPageIndex < 0){
-            currentlyShownPageIndex = quotePages.size() - 1;
-        }
-    }
-
     static String getQuoteListAsReadableDiscordString(List<Quote> quotePage){
         StringBuilder readableStr = new StringBuilder(Utils.STRING_EMPTY);
 
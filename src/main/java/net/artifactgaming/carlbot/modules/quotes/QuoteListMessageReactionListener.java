@@ -14,6 +14,10 @@ import net.dv8tion.jda.core.events.message.react.MessageReactionRemoveAllEvent;
 import net.dv8tion.jda.core.events.message.react.MessageReactionRemoveEvent;
 import net.dv8tion.jda.core.exceptions.InsufficientPermissionException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 /**
@@ -31,6 +35,8 @@ public class QuoteListMessageReactionListener implements OnMessageReaction {
         NULL
     }
 
+    private Logger logger = LoggerFactory.getLogger(Quotes.class);
+
     ArrayList<QuoteListMessage> quoteListMessages;
 
     QuoteListMessageReactionListener(){
@@ -84,10 +90,16 @@ public class QuoteListMessageReactionListener implements OnMessageReaction {
 
             ReactionType reactionType = getReactionTypeFromReactionEvent.get();
 
-            if (reactionType == ReactionType.NEXT){
-                targetQuoteMessage.getNextPage();
-            } else if (reactionType == ReactionType.PREVIOUS){
-                targetQuoteMessage.getPreviousPage();
+            try {
+                if (reactionType == ReactionType.NEXT){
+                    targetQuoteMessage.getNextPage();
+                } else if (reactionType == ReactionType.PREVIOUS){
+                    targetQuoteMessage.getPreviousPage();
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to fetch a page of quotes, error message: " + e.getMessage());
+                event.getChannel().sendMessage("Error fetching quotes from the server!").queue();
+                return;
             }
 
             editEventMessageWithContent.accept("```" + targetQuoteMessage.getCurrentPageAsReadableDiscordString() + "```");
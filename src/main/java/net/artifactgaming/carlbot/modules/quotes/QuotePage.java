@@ -19,6 +19,13 @@ class QuotePage {
 
     ArrayList<Quote> quotesInPage;
 
+    /**
+     * The keys of the first and last quotes read for this page, in key order; null if none were.
+     * Quotes too long to fit on any page are counted, so paging carries on past them.
+     */
+    String firstKey;
+    String lastKey;
+
     private int currentCharacterCount;
 
     QuotePage(){
@@ -6,9 +6,19 @@ import net.artifactgaming.carlbot.Module;
 import net.artifactgaming.carlbot.modules.authority.Authority;
 import net.artifactgaming.carlbot.modules.authority.AuthorityManagement;
 import net.artifactgaming.carlbot.modules.authority.AuthorityRequiring;
+import net.artifactgaming.carlbot.modules.persistence.CompiledQuery;
+import net.artifactgaming.carlbot.modules.persistence.DeleteBuilder;
+import net.artifactgaming.carlbot.modules.persistence.InsertBuilder;
+import net.artifactgaming.carlbot.modules.persistence.MergeBuilder;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.Row;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
+import net.artifactgaming.carlbot.modules.persistence.SelectBuilder;
 import net.artifactgaming.carlbot.modules.persistence.Table;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
+import net.artifactgaming.carlbot.modules.persistence.UncheckedSQLException;
+import net.artifactgaming.carlbot.modules.persistence.UpdateBuilder;
 import net.artifactgaming.carlbot.modules.schedule.SchedulableCommand;
 import net.artifactgaming.carlbot.modules.selfdocumentation.Documented;
 import net.dv8tion.jda.core.entities.*;
@@ -19,14 +29,14 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.function.BooleanSupplier;
-import java.util.function.Function;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import net.sf.json.*;
 
@@ -53,6 +63,11 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
      */
     private static final String QUOTE_CONTENT = "quote";
 
+    /**
+     * Quotes are looked up by their key.
+     */
+    private static final TableIndex QUOTE_KEY_INDEX = new TableIndex("quotes", true, QUOTE_KEY);
+
     ///endregion
 
     private AuthorityManagement authorityManagement;
@@ -68,54 +83,82 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
     private QuoteListMessageReactionListener quoteListMessageReactionListener;
 
     /**
-     * Use "updateGuildTableWithQuoteByQuoteKey" instead.
+     * Use {@link #updateQuoteAsMember(Member, String, Consumer)} instead.
      */
     @Deprecated
     private void replaceQuoteOnGuild(Guild guild, Quote quote) throws SQLException{
-        ObjectResult<Quote> fetchOriginalQuoteResult = tryFetchQuoteFromGuildTableByQuoteKey(guild, quote.getKey());
+        Table table = getQuoteTable(guild);
+
+        // Overwrites the quote with the same key in one statement, or adds it if there isn't one.
+        table.merge()
+                .set(OWNER_ID, quote.getOwnerID())
+                .set(OWNER_NAME, quote.getOwnerName())
+                .set(QUOTE_KEY, quote.getKey())
+                .set(QUOTE_CONTENT, quote.getContent())
+                .key(QUOTE_KEY)
+                .execute();
+    }
 
-        if (fetchOriginalQuoteResult.getResult()){
-            Quote originalQuote = fetchOriginalQuoteResult.getObject();
-            deleteQuoteFromGuildTableByQuoteKey(guild, originalQuote.getKey());
+    /**
+     * Reads a page of the guild's quotes in key order, see {@link QuoteListMessage.QuotePageLoader}.
+     */
+    private List<Quote> getQuotesPageFromGuild(Guild guild, String fromKey, boolean forwards, int count)
+            throws SQLException {
+        SelectBuilder select = getQuoteTable(guild).select();
+
+        if (forwards) {
+            select.after(QUOTE_KEY, fromKey);
+        } else {
+            select.before(QUOTE_KEY, fromKey);
         }
 
-        addQuoteToGuildTable(guild, quote);
+        return select.limit(count).list(Quotes::readQuote);
     }
 
-    private List<Quote> getAllQuotesFromGuild(Guild guild) throws SQLException {
+    /**
+     * Writes every quote in the guild to the file as a JSON array, one quote at a time, so even a huge guild
+     * never has all of its quotes in memory at once.
+     * @return How many quotes were written.
+     */
+    private int writeAllQuotesFromGuildAsJSON(Guild guild, File file) throws SQLException, IOException {
         Table table = getQuoteTable(guild);
-        ResultSet resultSet = table.select().execute();
+        int quotesWritten = 0;
 
-        ArrayList<Quote> result = new ArrayList<>();
-        while (resultSet.next()){
-             result.add(new Quote(
-                    resultSet.getString(OWNER_ID),
-                    resultSet.getString(OWNER_NAME),
-                    resultSet.getString(QUOTE_KEY),
-                    resultSet.getString(QUOTE_CONTENT)
-             ));
-        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+             Stream<Quote> quotes = table.select().stream(Quotes::readQuote)) {
+            writer.write("[");
 
-        return result;
-    }
+            Iterator<Quote> quoteIterator = quotes.iterator();
+            while (quoteIterator.hasNext()) {
+                if (quotesWritten != 0) {
+                    writer.write(",");
+                }
 
+                writer.write(quoteIterator.next().toJsonObject().toString());
+                quotesWritten++;
+            }
 
-    private void updateGuildTableWithQuoteByQuoteKey(Guild guild, Quote quote, String quoteKey) throws SQLException {
-        Table table = getQuoteTable(guild);
+            writer.write("]");
+        } catch (UncheckedSQLException e) {
+            throw e.getCause();
+        }
 
-        table.update()
-                .set(OWNER_ID, quote.getOwnerID())
-                .set(OWNER_NAME, quote.getOwnerName())
-                .set(QUOTE_KEY, quote.getKey())
-                .set(QUOTE_CONTENT, quote.getContent())
-                .where(QUOTE_KEY, "=", quoteKey)
-                .execute();
+        return quotesWritten;
+    }
+
+    private static Quote readQuote(Row row) throws SQLException {
+        return new Quote(
+                row.getString(OWNER_ID),
+                row.getString(OWNER_NAME),
+                row.getString(QUOTE_KEY),
+                row.getString(QUOTE_CONTENT)
+        );
     }
 
     private ObjectResult<Quote> tryFetchQuoteFromGuildTableByQuoteKey(Guild guild, String quoteKey) throws SQLException {
         Table table = getQuoteTable(guild);
 
-        ResultSet resultSet = table.select().where(QUOTE_KEY, "=", quoteKey).execute();
+        ResultSet resultSet = selectQuoteByKey(table).bind(quoteKey).execute();
 
         if (resultSet.next()){
             Quote foundQuote = new Quote(
@@ -131,12 +174,83 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         }
     }
 
-    private void deleteQuoteFromGuildTableByQuoteKey(Guild guild, String quoteKey) throws SQLException {
+    private CompiledQuery selectQuoteByKey(Table quoteTable) {
+        return quoteTable.compile("selectByKey", (table) -> table.select().where(QUOTE_KEY, "=", null));
+    }
+
+    /**
+     * Deletes a quote, as long as the member has authority over it.
+     */
+    private QuoteChangeResult deleteQuoteAsMember(Member member, String quoteKey) throws SQLException {
+        return changeQuoteAsMember(member, quoteKey, (table, ownerID) -> {
+            DeleteBuilder delete = table.delete().where(QUOTE_KEY, "=", quoteKey);
+
+            if (ownerID != null) {
+                delete.where(OWNER_ID, "=", ownerID);
+            }
+
+            return delete.executeUpdate();
+        });
+    }
+
+    /**
+     * Changes a quote, as long as the member has authority over it.
+     * @param setValues Sets the columns to change.
+     */
+    private QuoteChangeResult updateQuoteAsMember(Member member, String quoteKey, Consumer<UpdateBuilder> setValues)
+            throws SQLException {
+        return changeQuoteAsMember(member, quoteKey, (table, ownerID) -> {
+            UpdateBuilder update = table.update();
+            setValues.accept(update);
+            update.where(QUOTE_KEY, "=", quoteKey);
+
+            if (ownerID != null) {
+                update.where(OWNER_ID, "=", ownerID);
+            }
+
+            return update.executeUpdate();
+        });
+    }
+
+    /**
+     * Makes a change to a quote if the member owns it or is a quote admin.
+     * Who owns the quote is part of the change's where expressions, so checking and changing is a single statement.
+     * The quote is only looked up if that changed nothing, to find out why.
+     */
+    private QuoteChangeResult changeQuoteAsMember(Member member, String quoteKey, QuoteChange change)
+            throws SQLException {
+        Guild guild = member.getGuild();
         Table table = getQuoteTable(guild);
 
-        table.delete()
-                .where(QUOTE_KEY, "=", quoteKey)
-                .execute();
+        // Most changes are made by the quote's owner.
+        if (change.apply(table, member.getUser().getId()) > 0) {
+            return QuoteChangeResult.Changed;
+        }
+
+        if (!quoteKeyExistsOnGuildTable(guild, quoteKey)) {
+            return QuoteChangeResult.NotFound;
+        }
+
+        if (!authorityManagement.checkHasAuthority(member, new QuoteAdmin())) {
+            return QuoteChangeResult.NoAuthority;
+        }
+
+        // Someone could have deleted it in the meantime.
+        return (change.apply(table, null) > 0) ? QuoteChangeResult.Changed : QuoteChangeResult.NotFound;
+    }
+
+    private interface QuoteChange {
+        /**
+         * @param ownerID Only change the quote if this user owns it; or null to change it whoever owns it.
+         * @return How many rows were changed.
+         */
+        int apply(Table quoteTable, String ownerID) throws SQLException;
+    }
+
+    private enum QuoteChangeResult {
+        Changed,
+        NotFound,
+        NoAuthority
     }
 
     private void addQuoteToGuildTable(Guild guild, Quote quoteToAdd) throws SQLException {
@@ -151,7 +265,7 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
     private boolean quoteKeyExistsOnGuildTable(Guild guild, String quoteKey) throws SQLException {
         Table table = getQuoteTable(guild);
 
-        ResultSet resultSet = table.select().where(QUOTE_KEY, "=", quoteKey).execute();
+        ResultSet resultSet = selectQuoteByKey(table).bind(quoteKey).execute();
 
         boolean quoteExists = false;
 
@@ -164,6 +278,56 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         return quoteExists;
     }
 
+    /**
+     * Adds many quotes in one go. Quotes whose key is already taken are skipped, or overwritten if overrideQuote is set.
+     */
+    private void addQuotesToGuild(Guild guild, List<Quote> quotes, boolean overrideQuote) throws SQLException {
+        Table table = getQuoteTable(guild);
+
+        if (overrideQuote){
+            // Every quote goes in, replacing any with the same key, so there's no need to know which keys are taken.
+            MergeBuilder quotesToMerge = table.merge().key(QUOTE_KEY);
+
+            for (Quote quote : quotes){
+                quotesToMerge.set(OWNER_ID, quote.getOwnerID())
+                        .set(OWNER_NAME, quote.getOwnerName())
+                        .set(QUOTE_KEY, quote.getKey())
+                        .set(QUOTE_CONTENT, quote.getContent())
+                        .addBatch();
+            }
+
+            quotesToMerge.executeBatch();
+
+            logger.debug("Imported " + quotesToMerge.getBatchSize() + " quotes into guild " + guild.getId());
+            return;
+        }
+
+        // Fetch the taken keys once, instead of checking every quote against the database.
+        Set<String> takenKeys = new HashSet<>();
+        ResultSet resultSet = table.select().column(QUOTE_KEY).execute();
+        while (resultSet.next()){
+            takenKeys.add(resultSet.getString(QUOTE_KEY));
+        }
+        resultSet.close();
+
+        InsertBuilder quotesToInsert = table.insert();
+
+        // Only add quotes whose keys aren't taken yet.
+        for (Quote quote : quotes){
+            if (takenKeys.add(quote.getKey())) {
+                quotesToInsert.set(OWNER_ID, quote.getOwnerID())
+                        .set(OWNER_NAME, quote.getOwnerName())
+                        .set(QUOTE_KEY, quote.getKey())
+                        .set(QUOTE_CONTENT, quote.getContent())
+                        .addBatch();
+            }
+        }
+
+        quotesToInsert.executeBatch();
+
+        logger.debug("Imported " + quotesToInsert.getBatchSize() + " new quotes into guild " + guild.getId());
+    }
+
     private class ImportOldQuotesCommand implements Command, Documented, AuthorityRequiring {
 
         @Override
@@ -210,18 +374,6 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
 
         }
 
-        private void addQuotesToGuild(Guild guild, List<Quote> quotes, boolean overrideQuote) throws SQLException {
-            for (Quote quote : quotes){
-                boolean quoteWithKeyExists = quoteKeyExistsOnGuildTable(guild, quote.getKey());
-
-                if (!quoteWithKeyExists) {
-                    addQuoteToGuildTable(guild, quote);
-                } else if (overrideQuote){
-                    updateGuildTableWithQuoteByQuoteKey(guild, quote, quote.getKey());
-                }
-            }
-        }
-
         private ObjectResult<List<Quote>> tryGetQuotesFromAttachment(Message.Attachment attachment) throws Exception{
             ///region Local_Function
 
@@ -392,18 +544,6 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
             }
         }
 
-        private void addQuotesToGuild(Guild guild, List<Quote> quotes, boolean overrideQuote) throws SQLException {
-            for (Quote quote : quotes){
-                boolean quoteWithKeyExists = quoteKeyExistsOnGuildTable(guild, quote.getKey());
-
-                if (!quoteWithKeyExists) {
-                    addQuoteToGuildTable(guild, quote);
-                } else if (overrideQuote){
-                    updateGuildTableWithQuoteByQuoteKey(guild, quote, quote.getKey());
-                }
-            }
-        }
-
         private ObjectResult<List<Quote>> tryGetQuotesFromAttachment(Message.Attachment attachment) throws Exception {
 
             InputStream jsonAsInputString =  attachment.getInputStream();
@@ -468,35 +608,26 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         @Override
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
 
-            List<Quote> quotesList = getAllQuotesFromGuild(event.getGuild());
-
-            if (quotesList.size() != 0){
-                Message exportingQuoteMessage = event.getChannel().sendMessage("Exporting quotes, please wait...").complete();
-
-                JSONArray quoteListAsJSON = new JSONArray();
-
-                for (Quote quote : quotesList){
-                    quoteListAsJSON.add(quote.toJsonObject());
-                }
-
-                String jsonFilePathName = "./" + event.getGuild().getId() + "_quotes.json";
+            Message exportingQuoteMessage = event.getChannel().sendMessage("Exporting quotes, please wait...").complete();
 
-                File exportedJsonFile = new File(jsonFilePathName);
+            String jsonFilePathName = "./" + event.getGuild().getId() + "_quotes.json";
 
-                if (exportedJsonFile.createNewFile()){
+            File exportedJsonFile = new File(jsonFilePathName);
 
-                    Files.write(Paths.get(jsonFilePathName), quoteListAsJSON.toString().getBytes());
+            if (exportedJsonFile.createNewFile()){
+                // Quotes are streamed straight into the file, rather than collected up first.
+                int quotesExported = writeAllQuotesFromGuildAsJSON(event.getGuild(), exportedJsonFile);
 
+                if (quotesExported != 0){
                     event.getChannel().sendFile(exportedJsonFile).queue();
                     exportingQuoteMessage.delete().queue();
-
-                    exportedJsonFile.delete();
                 } else {
-                    exportingQuoteMessage.editMessage("ERROR: Already exporting quote!").queue();
+                    exportingQuoteMessage.editMessage("There are no quotes in this guild!").queue();
                 }
+
+                exportedJsonFile.delete();
             } else {
-                event.getChannel().sendMessage(
-                        "There are no quotes in this guild!").queue();
+                exportingQuoteMessage.editMessage("ERROR: Already exporting quote!").queue();
             }
         }
 
@@ -532,14 +663,21 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         @Override
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
 
-            List<Quote> quotesList = getAllQuotesFromGuild(event.getGuild());
+            Guild guild = event.getGuild();
+            QuoteListMessage.QuotePageLoader quotePageLoader =
+                    (fromKey, forwards, count) -> getQuotesPageFromGuild(guild, fromKey, forwards, count);
+
+            // Only one page is read at a time, however many quotes the guild has.
+            QuotePage firstPage = QuoteListMessage.loadPage(quotePageLoader, null, true);
+            boolean hasMorePages = firstPage.lastKey != null
+                    && !getQuotesPageFromGuild(guild, firstPage.lastKey, true, 1).isEmpty();
 
             Message quoteMessage = event.getChannel().sendMessage(
                     "Fetching quotes...").complete();
 
-            if (quotesList.size() > QuotePage.maxQuotesPerListCount){
+            if (hasMorePages){
 
-                QuoteListMessage quoteListMessage = new QuoteListMessage(quotesList, quoteMessage.getId(), quoteListMessageReactionListener);
+                QuoteListMessage quoteListMessage = new QuoteListMessage(firstPage, quotePageLoader, quoteMessage.getId(), quoteListMessageReactionListener);
 
                 quoteListMessageReactionListener.addQuoteListMessageToListener(quoteListMessage);
 
@@ -547,8 +685,8 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
 
                 quoteMessage.addReaction( QuoteListMessageReactionListener.PREVIOUS_EMOTE_NAME).complete();
                 quoteMessage.addReaction( QuoteListMessageReactionListener.NEXT_EMOTE_NAME).queue();
-            } else if (quotesList.size() > 0) {
-                quoteMessage.editMessage("```" + QuoteListMessage.getQuoteListAsReadableDiscordString(quotesList) + "```").queue();
+            } else if (!firstPage.quotesInPage.isEmpty()) {
+                quoteMessage.editMessage("```" + firstPage.getAsReadableDiscordString() + "```").queue();
             } else {
                 quoteMessage.editMessage(
                         "There are no quotes in this guild!").queue();
@@ -648,25 +786,13 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
 
             if (tokens.size() == 1) {
 
-                Guild guild = event.getGuild();
-
-                ObjectResult<Quote> fetchingQuoteResult = tryFetchQuoteFromGuildTableByQuoteKey(guild, tokens.get(0));
-
-                if (fetchingQuoteResult.getResult()) {
-
-                    Quote quoteToDelete = fetchingQuoteResult.getObject();
-
-                    // If user has permission to delete quotes
-                    if (hasAuthorityOverQuote(event.getMember(), quoteToDelete)) {
-
-                        deleteQuoteFromGuildTableByQuoteKey(guild, quoteToDelete.getKey());
+                QuoteChangeResult deleteResult = deleteQuoteAsMember(event.getMember(), tokens.get(0));
 
-                        event.getChannel().sendMessage("Quote deleted.").queue();
-
-                    } else {
-                        event.getChannel().sendMessage(
-                                "You must own this quote or be the quote admin to delete it.").queue();
-                    }
+                if (deleteResult == QuoteChangeResult.Changed) {
+                    event.getChannel().sendMessage("Quote deleted.").queue();
+                } else if (deleteResult == QuoteChangeResult.NoAuthority) {
+                    event.getChannel().sendMessage(
+                            "You must own this quote or be the quote admin to delete it.").queue();
                 } else {
                     event.getChannel().sendMessage("Could not find quote by that key.").queue();
                 }
@@ -710,9 +836,9 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
             // TODO: Actual quote deletion command
             Table table = getQuoteTable(event.getGuild());
 
-            table.delete().execute();
+            int quotesDeleted = table.delete().executeUpdate();
 
-            event.getChannel().sendMessage("All quotes deleted!").queue();
+            event.getChannel().sendMessage("All quotes deleted! (" + quotesDeleted + " in total)").queue();
         }
 
         @Override
@@ -746,41 +872,37 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         @Override
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
 
-            ///region Local_Function
-
-            Function<List<String>, String> pickQuoteFromQuotesList = (quotesList) -> {
-                Random rand = new Random();
-
-                int randIndex = rand.nextInt(quotesList.size());
-                return quotesList.get(randIndex);
-            };
-            ///endregion
-
-
-            List<String> quotesToChooseFrom = fetchAllQuotesContentFromGuild(event.getGuild());
-
-            if (quotesToChooseFrom.size() > 0) {
-
-                String quoteToShow = pickQuoteFromQuotesList.apply(quotesToChooseFrom);
+            String quoteToShow = fetchRandomQuoteContentFromGuild(event.getGuild());
 
+            if (quoteToShow != null) {
                 event.getChannel().sendMessage("\"" + quoteToShow + "\"").queue();
             } else {
                 event.getChannel().sendMessage("This server doesn't have any quotes.").queue();
             }
         }
 
-        private List<String> fetchAllQuotesContentFromGuild(Guild guild) throws SQLException {
+        /**
+         * Counts the quotes in the database, then reads just the content of the one picked.
+         * @return The content, or null if the guild has no quotes.
+         */
+        private String fetchRandomQuoteContentFromGuild(Guild guild) throws SQLException {
             Table table = getQuoteTable(guild);
-            ResultSet resultSet = table.select().execute();
-
-            List<String> allQuotesContent = new ArrayList<String>();
+            long quoteCount = table.select().count();
 
-            while (resultSet.next()){
-                String quote = resultSet.getString(QUOTE_CONTENT);
-                allQuotesContent.add(quote);
+            if (quoteCount == 0) {
+                return null;
             }
 
-            return allQuotesContent;
+            int randIndex = new Random().nextInt((int) Math.min(quoteCount, Integer.MAX_VALUE));
+
+            List<String> quoteContent = table.select()
+                    .column(QUOTE_CONTENT)
+                    .orderBy(QUOTE_KEY)
+                    .limit(1, randIndex)
+                    .list((row) -> row.getString(QUOTE_CONTENT));
+
+            // A quote could have been removed since they were counted.
+            return quoteContent.isEmpty() ? null : quoteContent.get(0);
         }
 
         @Override
@@ -838,7 +960,14 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
 
                     event.getChannel().sendMessage(message).queue();
 
-                    updateGuildTableWithQuoteByQuoteKey(event.getGuild(), quoteInfoToShow, quoteInfoToShow.getKey());
+                    if (quoteUpdated) {
+                        // Only if it still has the same owner, in case it was given away in the meantime.
+                        getQuoteTable(event.getGuild()).update()
+                                .set(OWNER_NAME, quoteInfoToShow.getOwnerName())
+                                .where(QUOTE_KEY, "=", quoteInfoToShow.getKey())
+                                .where(OWNER_ID, "=", quoteInfoToShow.getOwnerID())
+                                .execute();
+                    }
                 } else {
                     event.getChannel().sendMessage("Could not find a quote by that key.").queue();
                 }
@@ -885,26 +1014,29 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
                     return;
                 }
 
-                ObjectResult<Quote> fetchQuoteResult = tryFetchQuoteFromGuildTableByQuoteKey(event.getGuild(), tokens.get(0));
-
-                if (fetchQuoteResult.getResult()) {
-
-                    Quote quoteToEdit = fetchQuoteResult.getObject();
-
-                    if (hasAuthorityOverQuote(event.getMember(), quoteToEdit)) {
-                        String messageToSend = Utils.STRING_EMPTY;
+                QuoteChangeResult renameResult;
+                try {
+                    renameResult = updateQuoteAsMember(event.getMember(), tokens.get(0),
+                            (update) -> update.set(QUOTE_KEY, tokens.get(1)));
+                } catch (SQLException e) {
+                    // Someone added a quote with the new name since the check above.
+                    if (!Persistence.isDuplicateKey(e)) {
+                        throw e;
+                    }
 
-                        quoteToEdit.setKey(tokens.get(1));
+                    event.getChannel().sendMessage("A quote with the new key name given already exists!").queue();
+                    return;
+                }
 
-                        updateGuildTableWithQuoteByQuoteKey(event.getGuild(), quoteToEdit, tokens.get(0));
+                if (renameResult == QuoteChangeResult.Changed) {
+                    String messageToSend = Utils.STRING_EMPTY;
 
-                        messageToSend += "\n\n Quote Name Updated to be " + tokens.get(1);
-                        event.getChannel().sendMessage(messageToSend).queue();
+                    messageToSend += "\n\n Quote Name Updated to be " + tokens.get(1);
+                    event.getChannel().sendMessage(messageToSend).queue();
 
-                    } else {
-                        event.getChannel().sendMessage(
-                                "You must own this quote or be the quote admin to edit it.").queue();
-                    }
+                } else if (renameResult == QuoteChangeResult.NoAuthority) {
+                    event.getChannel().sendMessage(
+                            "You must own this quote or be the quote admin to edit it.").queue();
                 } else {
                     event.getChannel().sendMessage("A quote for this key does not exist. "
                             + "You can make a new quote using the quote add command.").queue();
@@ -949,22 +1081,15 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
             if (tokens.size() == 2) {
 
-                ObjectResult<Quote> fetchedQuoteResult = tryFetchQuoteFromGuildTableByQuoteKey(event.getGuild(), tokens.get(0));
-
-                if (fetchedQuoteResult.getResult()) {
-
-                    Quote quoteToEdit = fetchedQuoteResult.getObject();
+                QuoteChangeResult editResult = updateQuoteAsMember(event.getMember(), tokens.get(0),
+                        (update) -> update.set(QUOTE_CONTENT, tokens.get(1)));
 
-                    if (hasAuthorityOverQuote(event.getMember(), quoteToEdit)) {
-                        quoteToEdit.setContent(tokens.get(1));
-                        updateGuildTableWithQuoteByQuoteKey(event.getGuild(), quoteToEdit, tokens.get(0));
+                if (editResult == QuoteChangeResult.Changed) {
+                    event.getChannel().sendMessage("Quote updated.").queue();
 
-                        event.getChannel().sendMessage("Quote updated.").queue();
-
-                    } else {
-                        event.getChannel().sendMessage(
-                                "You must own this quote or be the quote admin to edit it.").queue();
-                    }
+                } else if (editResult == QuoteChangeResult.NoAuthority) {
+                    event.getChannel().sendMessage(
+                            "You must own this quote or be the quote admin to edit it.").queue();
                 } else {
                     event.getChannel().sendMessage("A quote for this key does not exist. "
                             + "You can make a new quote using the quote add command.").queue();
@@ -1008,29 +1133,24 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         @Override
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
             if (tokens.size() == 2) {
-                ObjectResult<Quote> fetchQuoteResult = tryFetchQuoteFromGuildTableByQuoteKey(event.getGuild(), tokens.get(0));
+                Member newOwner = Utils.getMemberFromMessage(event, tokens.get(1));
 
-                if (fetchQuoteResult.getResult()) {
-
-                    Quote quoteToEdit = fetchQuoteResult.getObject();
+                if (newOwner == null) {
+                    event.getChannel().sendMessage(
+                            "Could not find the member you were trying to give the quote to.").queue();
+                    return;
+                }
 
-                    if (hasAuthorityOverQuote(event.getMember(), quoteToEdit)) {
+                QuoteChangeResult giveAwayResult = updateQuoteAsMember(event.getMember(), tokens.get(0),
+                        (update) -> update.set(OWNER_ID, newOwner.getUser().getId())
+                                .set(OWNER_NAME, newOwner.getUser().getName()));
 
-                        Member newOwner = Utils.getMemberFromMessage(event, tokens.get(1));
-                        if (newOwner != null) {
+                if (giveAwayResult == QuoteChangeResult.Changed) {
+                    event.getChannel().sendMessage("Quote owner updated.").queue();
 
-                            quoteToEdit.setOwnerID(newOwner.getUser().getId());
-                            quoteToEdit.setOwnerName(newOwner.getUser().getName());
-                            updateGuildTableWithQuoteByQuoteKey(event.getGuild(), quoteToEdit, tokens.get(0));
-                            event.getChannel().sendMessage("Quote owner updated.").queue();
-                        } else {
-                            event.getChannel().sendMessage(
-                                    "Could not find the member you were trying to give the quote to.").queue();
-                        }
-                    } else {
-                        event.getChannel().sendMessage(
-                                "You must own this quote or be the quote admin to edit it.").queue();
-                    }
+                } else if (giveAwayResult == QuoteChangeResult.NoAuthority) {
+                    event.getChannel().sendMessage(
+                            "You must own this quote or be the quote admin to edit it.").queue();
                 } else {
                     event.getChannel().sendMessage("A quote for this key does not exist. "
                             + "You can make a new quote using the quote add command.").queue();
@@ -1191,24 +1311,8 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         }
     }
 
-    private boolean hasAuthorityOverQuote(Member member, Quote quote) throws SQLException {
-        return member.getUser().getId().equals(quote.getOwnerID()) || authorityManagement.checkHasAuthority(member, new QuoteAdmin());
-    }
-
     private Table getQuoteTable(Guild guild) throws SQLException {
-        Table table = persistence.getGuildTable(guild, this);
-        Table quoteTable = new Table(table, "quotes");
-
-        if (!quoteTable.exists()) {
-            quoteTable.create();
-
-            quoteTable.alter().add()
-                    .pushValue("owner varchar").pushValue("owner_name varchar")
-                    .pushValue("key varchar").pushValue("quote varchar")
-                    .execute();
-        }
-
-        return quoteTable;
+        return persistence.getGuildTable(guild, this, QUOTE_KEY_INDEX.getSubTable());
     }
 
     @Override
@@ -1234,6 +1338,32 @@ public class Quotes implements Module, AuthorityRequiring, PersistentModule, Doc
         carlbot.addOnMessageReactionListener(quoteListMessageReactionListener);
     }
 
+    @Override
+    public TableIndex[] getTableIndexes() {
+        return new TableIndex[] { QUOTE_KEY_INDEX };
+    }
+
+    @Override
+    public SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[] {
+                // 1: The quotes table.
+                (guildTable) -> {
+                    Table quoteTable = new Table(guildTable, QUOTE_KEY_INDEX.getSubTable());
+
+                    if (!quoteTable.exists()) {
+                        quoteTable.create();
+
+                        quoteTable.alter().add()
+                                .pushValue("owner varchar").pushValue("owner_name varchar")
+                                .pushValue("key varchar").pushValue("quote varchar")
+                                .execute();
+
+                        quoteTable.createIndex(QUOTE_KEY_INDEX);
+                    }
+                }
+        };
+    }
+
     @Override
     public String getDocumentation() {
         return "This module allows you to add, remove and access quotes";
@@ -6,9 +6,12 @@ import net.artifactgaming.carlbot.listeners.OnCarlBotReady;
 import net.artifactgaming.carlbot.modules.authority.Authority;
 import net.artifactgaming.carlbot.modules.authority.AuthorityManagement;
 import net.artifactgaming.carlbot.modules.authority.AuthorityRequiring;
+import net.artifactgaming.carlbot.modules.persistence.ColumnType;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
 import net.artifactgaming.carlbot.modules.persistence.Table;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
 import net.artifactgaming.carlbot.modules.selfdocumentation.Documented;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
@@ -23,6 +26,11 @@ import java.util.*;
 
 public class Schedules implements Module, AuthorityRequiring, PersistentModule, Documented {
 
+    /**
+     * Schedules are removed by their key.
+     */
+    private static final TableIndex SCHEDULE_KEY_INDEX = new TableIndex("schedules", true, "key");
+
    private AuthorityManagement authorityManagement;
     private Persistence persistence;
 
@@ -78,48 +86,26 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
 
 
     private Table getScheduleTable(Guild guild) throws SQLException {
-        Table table = persistence.getGuildTable(guild, this);
-        Table scheduleTable = new Table(table, "schedules");
-
-        if (!scheduleTable.exists()) {
-            scheduleTable.create();
-
-            scheduleTable.alter().add()
-                    .pushValue("key varchar")
-                    .pushValue("owner_ID varchar")
-                    .pushValue("guild_ID varchar")
-                    .pushValue("channel_ID varchar")
-                    .pushValue("command_rawString varchar")
-                    .pushValue("intervalHours varchar")
-                    .execute();
-        }
-
-        return scheduleTable;
+        return persistence.getGuildTable(guild, this, SCHEDULE_KEY_INDEX.getSubTable());
     }
 
-    private ArrayList<Schedule> getSchedulesFromTable(Guild guild) throws SQLException {
+    private List<Schedule> getSchedulesFromTable(Guild guild) throws SQLException {
         Table scheduleTable = getScheduleTable(guild);
 
-        ResultSet resultSet = scheduleTable.select().execute();
-
-        ArrayList<Schedule> fetchedSchedules = new ArrayList<>();
-
         // Add all schedules from the guild into the array.
-        while (resultSet.next()) {
-            String key = resultSet.getString("key");
-            String ownerID = resultSet.getString("owner_ID");
-            String guildID = resultSet.getString("guild_ID");
-            String channelID = resultSet.getString("channel_ID");
-            String commandRawString = resultSet.getString("command_rawString");
-            int interval = Integer.parseInt(resultSet.getString("intervalHours"));
+        return scheduleTable.select().list((row) -> {
+            String key = row.getString("key");
+            String ownerID = row.getString("owner_ID");
+            String guildID = row.getString("guild_ID");
+            String channelID = row.getString("channel_ID");
+            String commandRawString = row.getString("command_rawString");
+            int interval = row.getInt("intervalHours");
 
             Schedule temp = new Schedule(key, ownerID, guildID, channelID, commandRawString, interval, false);
             temp.setOnScheduleIntervalListener(new OnScheduleIntervalReached());
 
-            fetchedSchedules.add(temp);
-        }
-
-        return fetchedSchedules;
+            return temp;
+        });
     }
 
     private void addScheduleToTable(Guild guild, Schedule schedule) throws SQLException {
@@ -131,7 +117,7 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
                 .set("guild_ID", schedule.getGuildID())
                 .set("channel_ID", schedule.getChannelID())
                 .set("command_rawString", schedule.getCommandRawString())
-                .set("intervalHours", Integer.toString(schedule.getIntervalHours()))
+                .set("intervalHours", schedule.getIntervalHours())
                 .execute();
     }
 
@@ -202,7 +188,7 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
 
         @Override
         public void runCommand(MessageReceivedEvent event, String rawString, List<String> tokens) throws Exception {
-            ArrayList<Schedule> guildSchedules = getSchedulesFromTable(event.getGuild());
+            List<Schedule> guildSchedules = getSchedulesFromTable(event.getGuild());
 
             if (tokens.size() == 0) {
                 printAllSchedulesInGuild(event, guildSchedules);
@@ -213,7 +199,7 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
             }
         }
 
-        private void printScheduleInGuildByKey(String key, MessageReceivedEvent event, ArrayList<Schedule> guildSchedules){
+        private void printScheduleInGuildByKey(String key, MessageReceivedEvent event, List<Schedule> guildSchedules){
             ObjectResult<Schedule> scheduleObjectResult = tryGetScheduleByKeyFromList(key, guildSchedules);
 
             if (scheduleObjectResult.getResult()){
@@ -230,7 +216,7 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
             }
         }
 
-        private void printAllSchedulesInGuild(MessageReceivedEvent event, ArrayList<Schedule> guildSchedules) {
+        private void printAllSchedulesInGuild(MessageReceivedEvent event, List<Schedule> guildSchedules) {
             String schedulesAsReadableString = schedulesToReadableString(guildSchedules, event.getGuild());
 
             event.getChannel().sendMessage(schedulesAsReadableString).queue();
@@ -494,6 +480,36 @@ public class Schedules implements Module, AuthorityRequiring, PersistentModule,
         return "Module that is related to scheduling commands in a server.";
     }
 
+    @Override
+    public TableIndex[] getTableIndexes() {
+        return new TableIndex[] { SCHEDULE_KEY_INDEX };
+    }
+
+    @Override
+    public SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[] {
+                // 1: The schedules table.
+                (guildTable) -> {
+                    Table scheduleTable = new Table(guildTable, SCHEDULE_KEY_INDEX.getSubTable());
+
+                    if (!scheduleTable.exists()) {
+                        scheduleTable.create();
+
+                        scheduleTable.alter().add()
+                                .pushValue("key varchar")
+                                .pushValue("owner_ID varchar")
+                                .pushValue("guild_ID varchar")
+                                .pushValue("channel_ID varchar")
+                                .pushValue("command_rawString varchar")
+                                .pushColumn("intervalHours", ColumnType.INT)
+                                .execute();
+
+                        scheduleTable.createIndex(SCHEDULE_KEY_INDEX);
+                    }
+                }
+        };
+    }
+
     @Override
     public String getDocumentationCallsign() {
         return "schedule";
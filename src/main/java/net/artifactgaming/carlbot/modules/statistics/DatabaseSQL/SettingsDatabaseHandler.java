@@ -2,8 +2,11 @@ package net.artifactgaming.carlbot.modules.statistics.DatabaseSQL;
 
 import net.artifactgaming.carlbot.CarlBot;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
+import net.artifactgaming.carlbot.modules.persistence.PersistentCache;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
 import net.artifactgaming.carlbot.modules.persistence.Table;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
 import net.artifactgaming.carlbot.modules.statistics.Statistics;
 import net.artifactgaming.carlbot.modules.statistics.StatisticsSettings;
 import net.dv8tion.jda.core.entities.Guild;
@@ -31,60 +34,95 @@ public class SettingsDatabaseHandler {
     private static final String SETTINGS_VALUE_COLUMN = "SETTINGS_VALUE";
     ///endregion
 
+    private static final TableIndex SETTINGS_IDENTIFIER_INDEX =
+            new TableIndex(STATISTIC_SETTINGS_TABLE, true, SETTINGS_IDENTIFIER_COLUMN);
+
     private Persistence persistenceRef;
 
     private PersistentModule persistentModuleRef;
 
+    /**
+     * Every guild's settings, as one value per guild. Every message reads them; changes are written a moment later.
+     */
+    private PersistentCache<String, StatisticsSettings> settingsCache;
+
+    /**
+     * @return The indexes on the settings table, see {@link PersistentModule#getTableIndexes()}.
+     */
+    public static TableIndex[] getTableIndexes() {
+        return new TableIndex[] { SETTINGS_IDENTIFIER_INDEX };
+    }
+
+    /**
+     * Make the settings table, if it isn't there yet. Part of the module's first schema step.
+     * @param guildTable The module's table for the guild, see {@link SchemaStep#apply(Table)}.
+     */
+    public static void createTables(Table guildTable) throws SQLException {
+        Table settingsTable = new Table(guildTable, STATISTIC_SETTINGS_TABLE);
+
+        if (!settingsTable.exists()) {
+            settingsTable.create();
+
+            settingsTable.alter().add()
+                    .pushValue(SETTINGS_IDENTIFIER_COLUMN + " varchar")
+                    .pushValue(SETTINGS_VALUE_COLUMN + " varchar")
+                    .execute();
+
+            settingsTable.createIndex(SETTINGS_IDENTIFIER_INDEX);
+        }
+    }
+
     public SettingsDatabaseHandler(Persistence _persistenceRef, PersistentModule _persistentModuleRef){
         persistenceRef = _persistenceRef;
         persistentModuleRef = _persistentModuleRef;
+
+        settingsCache = persistenceRef.createCache(persistentModuleRef, "settings",
+                (guildID, key) -> loadStatisticSettingsInGuild(guildID),
+                (guildID, key, settings) -> writeStatisticSettingsInGuild(guildID, settings));
     }
 
     public StatisticsSettings getStatisticSettingsInGuild(Guild guild) throws SQLException {
+        StatisticsSettings cachedSettings = settingsCache.get(guild.getId(), STATISTIC_SETTINGS_TABLE);
+
+        // Hand out a copy, so changing it doesn't change the cache behind our back.
+        return new StatisticsSettings(cachedSettings.isEnabled());
+    }
+
+    public void updateStatisticSettingsInGuild(Guild guild, StatisticsSettings updatedSettings) {
+        settingsCache.put(guild.getId(), STATISTIC_SETTINGS_TABLE, new StatisticsSettings(updatedSettings.isEnabled()));
+    }
+
+    private StatisticsSettings loadStatisticSettingsInGuild(String guildID) throws SQLException {
         //TODO: Possible refactor?
-        Table settingsTable = getSettingsTableInGuild(guild);
+        Table settingsTable = getSettingsTableInGuild(guildID);
         StatisticsSettings result = new StatisticsSettings();
 
         // Set the 'isEnabled' state of the settings
-        ResultSet isEnabledResult = settingsTable.select().where(SETTINGS_IDENTIFIER_COLUMN, "=", StatisticsSettings.IS_ENABLED).execute();
+        ResultSet isEnabledResult = settingsTable
+                .compile("selectBySettingsName", (table) -> table.select().where(SETTINGS_IDENTIFIER_COLUMN, "=", null))
+                .bind(StatisticsSettings.IS_ENABLED).execute();
+        // Had no value? Then it's still the default; the row is made the first time the setting is changed.
         if (isEnabledResult.next()){
             result.setEnabledByString(isEnabledResult.getString(SETTINGS_VALUE_COLUMN));
-        } else {
-            // Had no value; Insert with default value.
-            settingsTable
-                    .insert()
-                    .set(SETTINGS_IDENTIFIER_COLUMN, StatisticsSettings.IS_ENABLED)
-                    .set(SETTINGS_VALUE_COLUMN, result.isEnabledToString())
-                    .execute();
         }
 
         return result;
     }
 
-    public void updateStatisticSettingsInGuild(Guild guild, StatisticsSettings updatedSettings) throws SQLException {
+    private void writeStatisticSettingsInGuild(String guildID, StatisticsSettings updatedSettings)
+            throws SQLException {
         // TODO: Possible refactor?
-        Table settingsTable = getSettingsTableInGuild(guild);
+        Table settingsTable = getSettingsTableInGuild(guildID);
 
-        // Update the 'isEnabled' property.
-        settingsTable.update()
+        // Update the 'isEnabled' property, adding its row if it's not there yet.
+        settingsTable.merge()
+                .set(SETTINGS_IDENTIFIER_COLUMN, StatisticsSettings.IS_ENABLED)
                 .set(SETTINGS_VALUE_COLUMN, updatedSettings.isEnabledToString())
-                .where(SETTINGS_IDENTIFIER_COLUMN, "=", StatisticsSettings.IS_ENABLED)
+                .key(SETTINGS_IDENTIFIER_COLUMN)
                 .execute();
     }
 
-    private Table getSettingsTableInGuild(Guild guild) throws SQLException {
-        Table table = persistenceRef.getGuildTable(guild, persistentModuleRef);
-        Table settingsTable = new Table(table, STATISTIC_SETTINGS_TABLE);
-
-        if (!settingsTable.exists()) {
-            settingsTable.create();
-
-            settingsTable.alter().add()
-                    .pushValue(SETTINGS_IDENTIFIER_COLUMN + " varchar")
-                    .pushValue(SETTINGS_VALUE_COLUMN + " varchar")
-                    .execute();
-        }
-
-        return settingsTable;
+    private Table getSettingsTableInGuild(String guildID) throws SQLException {
+        return persistenceRef.getGuildTable(guildID, persistentModuleRef, STATISTIC_SETTINGS_TABLE);
     }
 }
@@ -1,9 +1,14 @@
 package net.artifactgaming.carlbot.modules.statistics.DatabaseSQL;
 
 import net.artifactgaming.carlbot.Utils;
+import net.artifactgaming.carlbot.modules.persistence.ColumnType;
+import net.artifactgaming.carlbot.modules.persistence.InsertBuilder;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
 import net.artifactgaming.carlbot.modules.persistence.Table;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
+import net.artifactgaming.carlbot.modules.persistence.UpdateBuilder;
 import net.artifactgaming.carlbot.modules.statistics.*;
 import net.artifactgaming.carlbot.modules.statistics.ChannelStatistic.LifetimeChannelStatistics;
 import net.artifactgaming.carlbot.modules.statistics.ChannelStatistic.WeeklyChannelStatistics;
@@ -15,20 +20,23 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 
 public class StatisticsDatabaseHandler {
 
     private Logger logger = LoggerFactory.getLogger(Statistics.class);
 
+    ///region Table indexes
+    private static final TableIndex LIFETIME_CHANNEL_INDEX =
+            new TableIndex(LifetimeDatabaseHandler.LIFETIME_STATISTICS_TABLE, true, LifetimeChannelStatistics.CHANNEL_ID);
+
+    private static final TableIndex WEEKLY_CHANNEL_INDEX =
+            new TableIndex(WeeklyDatabaseHandler.WEEKLY_STATISTICS_TABLE, true, WeeklyChannelStatistics.CHANNEL_ID);
+    ///endregion
+
     private Persistence persistenceRef;
 
     private PersistentModule persistentModuleRef;
@@ -36,6 +44,50 @@ public class StatisticsDatabaseHandler {
     private WeeklyDatabaseHandler weeklyDatabaseHandler;
     private LifetimeDatabaseHandler lifetimeDatabaseHandler;
 
+    /**
+     * @return The indexes on the statistics tables, see {@link PersistentModule#getTableIndexes()}.
+     */
+    public static TableIndex[] getTableIndexes() {
+        return new TableIndex[] { LIFETIME_CHANNEL_INDEX, WEEKLY_CHANNEL_INDEX };
+    }
+
+    /**
+     * Make the lifetime and weekly statistics tables, if they aren't there yet. Part of the module's first schema step.
+     * @param guildTable The module's table for the guild, see {@link SchemaStep#apply(Table)}.
+     */
+    public static void createTables(Table guildTable) throws SQLException {
+        Table lifetimeStatisticsTable = new Table(guildTable, LifetimeDatabaseHandler.LIFETIME_STATISTICS_TABLE);
+
+        if (!lifetimeStatisticsTable.exists()) {
+            lifetimeStatisticsTable.create();
+
+            lifetimeStatisticsTable.alter().add()
+                    .pushValue(LifetimeChannelStatistics.CHANNEL_ID + " varchar")
+                    .pushValue(LifetimeChannelStatistics.CHANNEL_NAME + " varchar")
+                    .pushColumn(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, ColumnType.DOUBLE)
+                    .pushColumn(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, ColumnType.DOUBLE)
+                    .execute();
+
+            lifetimeStatisticsTable.createIndex(LIFETIME_CHANNEL_INDEX);
+        }
+
+        Table weeklyStatisticsTable = new Table(guildTable, WeeklyDatabaseHandler.WEEKLY_STATISTICS_TABLE);
+
+        if (!weeklyStatisticsTable.exists()) {
+            weeklyStatisticsTable.create();
+
+            weeklyStatisticsTable.alter().add()
+                    .pushValue(WeeklyChannelStatistics.CHANNEL_ID + " varchar")
+                    .pushValue(WeeklyChannelStatistics.CHANNEL_NAME + " varchar")
+                    .pushColumn(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, ColumnType.INT)
+                    .pushColumn(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, ColumnType.INT)
+                    .pushValue(WeeklyChannelStatistics.TRACKED_DATE + " varchar")
+                    .execute();
+
+            weeklyStatisticsTable.createIndex(WEEKLY_CHANNEL_INDEX);
+        }
+    }
+
     public StatisticsDatabaseHandler(Persistence _persistenceRef, PersistentModule _persistentModuleRef) {
         persistenceRef = _persistenceRef;
         persistentModuleRef = _persistentModuleRef;
@@ -50,22 +102,16 @@ public class StatisticsDatabaseHandler {
         ///endregion
 
         private List<LifetimeChannelStatistics> getLifetimeGuildStatistics(Guild guild) throws SQLException {
-            ArrayList<LifetimeChannelStatistics> lifetimeChannelStatisticsList = new ArrayList<>();
             Table lifetimeStatisticsTable = getLifetimeStatisticsTableInGuild(guild);
 
-            ResultSet result = lifetimeStatisticsTable.select().execute();
-
-            while (result.next()){
-                String channelID = result.getString(LifetimeChannelStatistics.CHANNEL_ID);
-                String channelName = result.getString(LifetimeChannelStatistics.CHANNEL_NAME);
-                double percentageMessagesSent = result.getDouble(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT);
-                double percentageMessageSentContainImage = result.getDouble(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE);
-
-                LifetimeChannelStatistics lifetimeChannelStatistics = new LifetimeChannelStatistics(channelID, channelName, percentageMessagesSent, percentageMessageSentContainImage);
-                lifetimeChannelStatisticsList.add(lifetimeChannelStatistics);
-            }
+            return lifetimeStatisticsTable.select().list((row) -> {
+                String channelID = row.getString(LifetimeChannelStatistics.CHANNEL_ID);
+                String channelName = row.getString(LifetimeChannelStatistics.CHANNEL_NAME);
+                double percentageMessagesSent = row.getDouble(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT);
+                double percentageMessageSentContainImage = row.getDouble(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE);
 
-            return lifetimeChannelStatisticsList;
+                return new LifetimeChannelStatistics(channelID, channelName, percentageMessagesSent, percentageMessageSentContainImage);
+            });
         }
 
         private LifetimeChannelStatistics getLifetimeChannelStatistics(Guild guild, TextChannel channel) throws SQLException {
@@ -98,19 +144,34 @@ public class StatisticsDatabaseHandler {
             lifetimeStatisticsTable.update()
                     .where(LifetimeChannelStatistics.CHANNEL_ID, "=", lifetimeChannelStatistics.getChannelID())
                     .set(LifetimeChannelStatistics.CHANNEL_NAME, lifetimeChannelStatistics.getChannelName())
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, String.valueOf(lifetimeChannelStatistics.getPercentageOfTotalMessagesSent()))
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, String.valueOf(lifetimeChannelStatistics.getPercentageOfMessagesContainImages()))
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, lifetimeChannelStatistics.getPercentageOfTotalMessagesSent())
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, lifetimeChannelStatistics.getPercentageOfMessagesContainImages())
                     .execute();
         }
 
+        private void updateLifetimeChannelStatistics(Guild guild, List<LifetimeChannelStatistics> lifetimeChannelStatisticsList) throws SQLException {
+            Table lifetimeStatisticsTable = getLifetimeStatisticsTableInGuild(guild);
+            UpdateBuilder updates = lifetimeStatisticsTable.update();
+
+            for (LifetimeChannelStatistics lifetimeChannelStatistics : lifetimeChannelStatisticsList) {
+                updates.set(LifetimeChannelStatistics.CHANNEL_NAME, lifetimeChannelStatistics.getChannelName())
+                        .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, lifetimeChannelStatistics.getPercentageOfTotalMessagesSent())
+                        .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, lifetimeChannelStatistics.getPercentageOfMessagesContainImages())
+                        .where(LifetimeChannelStatistics.CHANNEL_ID, "=", lifetimeChannelStatistics.getChannelID())
+                        .addBatch();
+            }
+
+            updates.executeBatch();
+        }
+
         private void insertNewChannelIntoLifetimeStatisticsTable(TextChannel channel) throws SQLException{
             Table lifetimeStatisticsTable = getLifetimeStatisticsTableInGuild(channel.getGuild());
 
             lifetimeStatisticsTable.insert()
                     .set(LifetimeChannelStatistics.CHANNEL_ID, channel.getId())
                     .set(LifetimeChannelStatistics.CHANNEL_NAME, channel.getName())
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, "0")
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, "0")
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, 0.0)
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, 0.0)
                     .execute();
         }
 
@@ -120,27 +181,28 @@ public class StatisticsDatabaseHandler {
             lifetimeStatisticsTable.insert()
                     .set(LifetimeChannelStatistics.CHANNEL_ID, lifetimeChannelStatistics.getChannelID())
                     .set(LifetimeChannelStatistics.CHANNEL_NAME, lifetimeChannelStatistics.getChannelName())
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, String.valueOf(lifetimeChannelStatistics.getPercentageOfTotalMessagesSent()))
-                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, String.valueOf(lifetimeChannelStatistics.getPercentageOfMessagesContainImages()))
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, lifetimeChannelStatistics.getPercentageOfTotalMessagesSent())
+                    .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, lifetimeChannelStatistics.getPercentageOfMessagesContainImages())
                     .execute();
         }
 
-        private Table getLifetimeStatisticsTableInGuild(Guild guild) throws SQLException {
-            Table table = persistenceRef.getGuildTable(guild, persistentModuleRef);
-            Table lifetimeStatisticsTable = new Table(table, LIFETIME_STATISTICS_TABLE);
-
-            if (!lifetimeStatisticsTable.exists()) {
-                lifetimeStatisticsTable.create();
-
-                lifetimeStatisticsTable.alter().add()
-                        .pushValue(LifetimeChannelStatistics.CHANNEL_ID + " varchar")
-                        .pushValue(LifetimeChannelStatistics.CHANNEL_NAME + " varchar")
-                        .pushValue(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT + " float")
-                        .pushValue(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE + " float")
-                        .execute();
+        private void insertNewChannelStatisticsIntoLifetimeStatisticsTable(Guild guild, List<LifetimeChannelStatistics> lifetimeChannelStatisticsList) throws SQLException {
+            Table lifetimeStatisticsTable = getLifetimeStatisticsTableInGuild(guild);
+            InsertBuilder inserts = lifetimeStatisticsTable.insert();
+
+            for (LifetimeChannelStatistics lifetimeChannelStatistics : lifetimeChannelStatisticsList) {
+                inserts.set(LifetimeChannelStatistics.CHANNEL_ID, lifetimeChannelStatistics.getChannelID())
+                        .set(LifetimeChannelStatistics.CHANNEL_NAME, lifetimeChannelStatistics.getChannelName())
+                        .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_SENT, lifetimeChannelStatistics.getPercentageOfTotalMessagesSent())
+                        .set(LifetimeChannelStatistics.PERCENT_OF_MESSAGES_WITH_IMAGE, lifetimeChannelStatistics.getPercentageOfMessagesContainImages())
+                        .addBatch();
             }
 
-            return lifetimeStatisticsTable;
+            inserts.executeBatch();
+        }
+
+        private Table getLifetimeStatisticsTableInGuild(Guild guild) throws SQLException {
+            return persistenceRef.getGuildTable(guild, persistentModuleRef, LIFETIME_STATISTICS_TABLE);
         }
 
         private void deleteLifetimeStatisticsChannel(Guild guild, String channelID) throws SQLException {
@@ -159,33 +221,28 @@ public class StatisticsDatabaseHandler {
         ///endregion
 
         private List<WeeklyChannelStatistics> getWeeklyGuildStatistics(Guild guild) throws SQLException, ParseException {
-            ArrayList<WeeklyChannelStatistics> weeklyChannelStatisticsList = new ArrayList<>();
             Table weeklyStatisticsTable = getWeeklyStatisticsTableInGuild(guild);
 
-            ResultSet result = weeklyStatisticsTable.select().execute();
+            // Convert the date strings as a 'LocalDate' type.
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(Utils.GLOBAL_DATE_FORMAT_PATTERN);
 
-            while (result.next()){
-                String channelID = result.getString(WeeklyChannelStatistics.CHANNEL_ID);
-                String channelName = result.getString(WeeklyChannelStatistics.CHANNEL_NAME);
-                int noOfMessagesSent = result.getInt(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT);
-                int noOfMessagesSentWithImage = result.getInt(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE);
-                String trackedDateString = result.getString(WeeklyChannelStatistics.TRACKED_DATE);
+            return weeklyStatisticsTable.select().list((row) -> {
+                String channelID = row.getString(WeeklyChannelStatistics.CHANNEL_ID);
+                String channelName = row.getString(WeeklyChannelStatistics.CHANNEL_NAME);
+                int noOfMessagesSent = row.getInt(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT);
+                int noOfMessagesSentWithImage = row.getInt(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE);
+                LocalDate trackedDate = LocalDate.parse(row.getString(WeeklyChannelStatistics.TRACKED_DATE), formatter);
 
-                // Convert the date string as a 'LocalDate' type.
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern(Utils.GLOBAL_DATE_FORMAT_PATTERN);
-                LocalDate trackedDate = LocalDate.parse(trackedDateString, formatter);
-
-                WeeklyChannelStatistics weeklyChannelStatistics = new WeeklyChannelStatistics(channelID, channelName, noOfMessagesSent, noOfMessagesSentWithImage, trackedDate);
-                weeklyChannelStatisticsList.add(weeklyChannelStatistics);
-            }
-
-            return weeklyChannelStatisticsList;
+                return new WeeklyChannelStatistics(channelID, channelName, noOfMessagesSent, noOfMessagesSentWithImage, trackedDate);
+            });
         }
 
         private WeeklyChannelStatistics getWeeklyChannelStatistics(Guild guild, TextChannel channel) throws SQLException, ParseException {
             Table weeklyStatisticsTable = getWeeklyStatisticsTableInGuild(guild);
 
-            ResultSet result = weeklyStatisticsTable.select().where(WeeklyChannelStatistics.CHANNEL_ID, "=", channel.getId()).execute();
+            ResultSet result = weeklyStatisticsTable
+                    .compile("selectByChannel", (table) -> table.select().where(WeeklyChannelStatistics.CHANNEL_ID, "=", null))
+                    .bind(channel.getId()).execute();
 
             WeeklyChannelStatistics weeklyChannelStatistics;
 
@@ -202,61 +259,100 @@ public class StatisticsDatabaseHandler {
 
                 weeklyChannelStatistics = new WeeklyChannelStatistics(channelID, channelName, noOfMessagesSent, noOfMessagesSentWithImage, trackedDate);
             } else {
-                insertNewTextChannelIntoWeeklyStatisticsTable(guild, channel);
-
+                // Nothing stored yet; the row is made when these statistics are first saved.
                 weeklyChannelStatistics = new WeeklyChannelStatistics(channel.getId(), channel.getName());
             }
 
             return weeklyChannelStatistics;
         }
 
+        /**
+         * Count one more message in the channel. The counts are added to in the database, so messages counted on
+         * different executor threads at once are all kept.
+         */
+        private void addMessageToWeeklyChannelStatistics(Guild guild, TextChannel channel, boolean containsImage) throws SQLException {
+            Table weeklyStatisticsTable = getWeeklyStatisticsTableInGuild(guild);
+
+            int updated = weeklyStatisticsTable
+                    .compile("addMessageByChannel", (table) -> table.update()
+                            .set(WeeklyChannelStatistics.CHANNEL_NAME, (String) null)
+                            .increment(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, 0)
+                            .increment(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, 0)
+                            .where(WeeklyChannelStatistics.CHANNEL_ID, "=", (String) null))
+                    .bind(channel.getName(), 1, containsImage ? 1 : 0, channel.getId()).executeUpdate();
+
+            if (updated > 0) {
+                return;
+            }
+
+            // The channel's first message this week. If another thread adds its row first, the unique index turns
+            // this insert away, and the message is counted on that row instead.
+            WeeklyChannelStatistics newChannelStatistics = new WeeklyChannelStatistics(channel.getId(), channel.getName());
+            newChannelStatistics.incrementNoOfMessagesSent();
+            if (containsImage) {
+                newChannelStatistics.incrementNoOfMessagesSentWithImage();
+            }
+
+            try {
+                insertNewChannelIntoWeeklyStatisticsTable(weeklyStatisticsTable, newChannelStatistics);
+            } catch (SQLException e) {
+                if (!Persistence.isDuplicateKey(e)) {
+                    throw e;
+                }
+
+                addMessageToWeeklyChannelStatistics(guild, channel, containsImage);
+            }
+        }
+
+        private void insertNewChannelIntoWeeklyStatisticsTable(Table weeklyStatisticsTable, WeeklyChannelStatistics weeklyChannelStatistics) throws SQLException {
+            DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern(Utils.GLOBAL_DATE_FORMAT_PATTERN);
+
+            weeklyStatisticsTable.insert()
+                    .set(WeeklyChannelStatistics.CHANNEL_ID, weeklyChannelStatistics.getChannelID())
+                    .set(WeeklyChannelStatistics.CHANNEL_NAME, weeklyChannelStatistics.getChannelName())
+                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, weeklyChannelStatistics.getNoOfMessagesSent())
+                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, weeklyChannelStatistics.getNoOfMessagesWithImage())
+                    .set(WeeklyChannelStatistics.TRACKED_DATE, dateFormatter.format(weeklyChannelStatistics.getTrackedDate()))
+                    .execute();
+        }
+
         private void updateWeeklyChannelStatistics(Guild guild, WeeklyChannelStatistics weeklyChannelStatistics) throws SQLException {
             Table weeklyStatisticsTable = getWeeklyStatisticsTableInGuild(guild);
 
             DateTimeFormatter  dateFormatter = DateTimeFormatter .ofPattern(Utils.GLOBAL_DATE_FORMAT_PATTERN);
             String dateAsString = dateFormatter.format(weeklyChannelStatistics.getTrackedDate());
 
-            weeklyStatisticsTable.update()
-                    .where(WeeklyChannelStatistics.CHANNEL_ID, "=", weeklyChannelStatistics.getChannelID())
+            // Adds the channel's row if this is the first time its statistics are saved.
+            weeklyStatisticsTable.merge()
+                    .set(WeeklyChannelStatistics.CHANNEL_ID, weeklyChannelStatistics.getChannelID())
                     .set(WeeklyChannelStatistics.CHANNEL_NAME, weeklyChannelStatistics.getChannelName())
-                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, Integer.toString(weeklyChannelStatistics.getNoOfMessagesSent()))
-                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, Integer.toString(weeklyChannelStatistics.getNoOfMessagesWithImage()))
+                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, weeklyChannelStatistics.getNoOfMessagesSent())
+                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, weeklyChannelStatistics.getNoOfMessagesWithImage())
                     .set(WeeklyChannelStatistics.TRACKED_DATE, dateAsString)
+                    .key(WeeklyChannelStatistics.CHANNEL_ID)
                     .execute();
         }
 
-        private void insertNewTextChannelIntoWeeklyStatisticsTable(Guild guild, TextChannel channel) throws SQLException {
+        private void updateWeeklyChannelStatistics(Guild guild, List<WeeklyChannelStatistics> weeklyChannelStatisticsList) throws SQLException {
             Table weeklyStatisticsTable = getWeeklyStatisticsTableInGuild(guild);
+            UpdateBuilder updates = weeklyStatisticsTable.update();
 
-            Date currentDate = Calendar.getInstance().getTime();
-            DateFormat dateFormatter = new SimpleDateFormat(Utils.GLOBAL_DATE_FORMAT_PATTERN);
+            DateTimeFormatter  dateFormatter = DateTimeFormatter .ofPattern(Utils.GLOBAL_DATE_FORMAT_PATTERN);
 
-            weeklyStatisticsTable.insert()
-                    .set(WeeklyChannelStatistics.CHANNEL_ID, channel.getId())
-                    .set(WeeklyChannelStatistics.CHANNEL_NAME, channel.getName())
-                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, "0")
-                    .set(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, "0")
-                    .set(WeeklyChannelStatistics.TRACKED_DATE, dateFormatter.format(currentDate))
-                    .execute();
+            for (WeeklyChannelStatistics weeklyChannelStatistics : weeklyChannelStatisticsList) {
+                updates.set(WeeklyChannelStatistics.CHANNEL_NAME, weeklyChannelStatistics.getChannelName())
+                        .set(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT, weeklyChannelStatistics.getNoOfMessagesSent())
+                        .set(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE, weeklyChannelStatistics.getNoOfMessagesWithImage())
+                        .set(WeeklyChannelStatistics.TRACKED_DATE, dateFormatter.format(weeklyChannelStatistics.getTrackedDate()))
+                        .where(WeeklyChannelStatistics.CHANNEL_ID, "=", weeklyChannelStatistics.getChannelID())
+                        .addBatch();
+            }
+
+            updates.executeBatch();
         }
 
         private Table getWeeklyStatisticsTableInGuild(Guild guild) throws SQLException {
-            Table table = persistenceRef.getGuildTable(guild, persistentModuleRef);
-            Table weeklyStatisticsTable = new Table(table, WEEKLY_STATISTICS_TABLE);
-
-            if (!weeklyStatisticsTable.exists()) {
-                weeklyStatisticsTable.create();
-
-                weeklyStatisticsTable.alter().add()
-                        .pushValue(WeeklyChannelStatistics.CHANNEL_ID + " varchar")
-                        .pushValue(WeeklyChannelStatistics.CHANNEL_NAME + " varchar")
-                        .pushValue(WeeklyChannelStatistics.NO_OF_MESSAGES_SENT + " int")
-                        .pushValue(WeeklyChannelStatistics.NO_OF_MESSAGES_WITH_IMAGE + " int")
-                        .pushValue(WeeklyChannelStatistics.TRACKED_DATE + " varchar")
-                        .execute();
-            }
-
-            return weeklyStatisticsTable;
+            return persistenceRef.getGuildTable(guild, persistentModuleRef, WEEKLY_STATISTICS_TABLE);
         }
 
         private void deleteWeeklyStatisticsChannel(Guild guild, String channelID) throws SQLException {
@@ -276,10 +372,18 @@ public class StatisticsDatabaseHandler {
         return weeklyDatabaseHandler.getWeeklyChannelStatistics(guild, channel);
     }
 
+    public void addMessageToWeeklyChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter TextChannel channel, boolean containsImage) throws SQLException {
+        weeklyDatabaseHandler.addMessageToWeeklyChannelStatistics(guild, channel, containsImage);
+    }
+
     public void updateWeeklyChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter WeeklyChannelStatistics weeklyChannelStatistics) throws SQLException {
         weeklyDatabaseHandler.updateWeeklyChannelStatistics(guild, weeklyChannelStatistics);
     }
 
+    public void updateWeeklyChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter List<WeeklyChannelStatistics> weeklyChannelStatisticsList) throws SQLException {
+        weeklyDatabaseHandler.updateWeeklyChannelStatistics(guild, weeklyChannelStatisticsList);
+    }
+
     public void deleteWeeklyChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter String channelID) throws SQLException {
         weeklyDatabaseHandler.deleteWeeklyStatisticsChannel(guild, channelID);
     }
@@ -296,6 +400,10 @@ public class StatisticsDatabaseHandler {
         lifetimeDatabaseHandler.updateLifetimeChannelStatistics(guild, lifetimeChannelStatistics);
     }
 
+    public void updateLifetimeChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter List<LifetimeChannelStatistics> lifetimeChannelStatisticsList) throws SQLException {
+        lifetimeDatabaseHandler.updateLifetimeChannelStatistics(guild, lifetimeChannelStatisticsList);
+    }
+
     public void deleteLifetimeChannelStatistics(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter String channelID) throws SQLException {
         lifetimeDatabaseHandler.deleteLifetimeStatisticsChannel(guild, channelID);
     }
@@ -303,4 +411,8 @@ public class StatisticsDatabaseHandler {
     public void insertNewChannelStatisticsIntoLifetimeStatisticsTable(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter LifetimeChannelStatistics lifetimeChannelStatistics) throws SQLException {
         lifetimeDatabaseHandler.insertNewChannelStatisticsIntoLifetimeStatisticsTable(guild, lifetimeChannelStatistics);
     }
+
+    public void insertNewChannelStatisticsIntoLifetimeStatisticsTable(@Snippet.NonNullParameter Guild guild, @Snippet.NonNullParameter List<LifetimeChannelStatistics> lifetimeChannelStatisticsList) throws SQLException {
+        lifetimeDatabaseHandler.insertNewChannelStatisticsIntoLifetimeStatisticsTable(guild, lifetimeChannelStatisticsList);
+    }
 }
@@ -2,18 +2,16 @@ package net.artifactgaming.carlbot.modules.statistics;
 
 import net.artifactgaming.carlbot.Utils;
 import net.artifactgaming.carlbot.listeners.MessageReader;
-import net.artifactgaming.carlbot.modules.statistics.ChannelStatistic.WeeklyChannelStatistics;
+import net.artifactgaming.carlbot.modules.persistence.Persistence;
 import net.artifactgaming.carlbot.modules.statistics.DatabaseSQL.SettingsDatabaseHandler;
 import net.artifactgaming.carlbot.modules.statistics.DatabaseSQL.StatisticsDatabaseHandler;
 import net.dv8tion.jda.core.entities.Guild;
-import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
-import java.text.ParseException;
 
 public class MessageStatisticCollector implements MessageReader {
 
@@ -23,9 +21,12 @@ public class MessageStatisticCollector implements MessageReader {
 
     private StatisticsDatabaseHandler statisticsDatabaseHandler;
 
-    MessageStatisticCollector(SettingsDatabaseHandler _settingsDatabaseHandler, StatisticsDatabaseHandler _statisticsDatabaseHandler){
+    private Persistence persistence;
+
+    MessageStatisticCollector(SettingsDatabaseHandler _settingsDatabaseHandler, StatisticsDatabaseHandler _statisticsDatabaseHandler, Persistence _persistence){
         settingsDatabaseHandler = _settingsDatabaseHandler;
         statisticsDatabaseHandler = _statisticsDatabaseHandler;
+        persistence = _persistence;
     }
 
     @Override
@@ -34,29 +35,25 @@ public class MessageStatisticCollector implements MessageReader {
             return;
         }
 
-        if (guildHasStatisticsEnabled(event.getGuild())){
-            updateChannelStatisticsWithNewMessage(event.getTextChannel(), event.getMessage());
-        }
-    }
-
-    private void updateChannelStatisticsWithNewMessage(TextChannel channel, Message newMessage){
-        try {
-            WeeklyChannelStatistics thisChannelWeeklyStatistics = statisticsDatabaseHandler.getWeeklyChannelStatistics(channel.getGuild(), channel);
+        Guild guild = event.getGuild();
+        TextChannel channel = event.getTextChannel();
+        boolean messageContainsImage = Utils.messageContainsImage(event.getMessage());
 
-            thisChannelWeeklyStatistics.setChannelID(channel.getId());
-            thisChannelWeeklyStatistics.setChannelName(channel.getName());
-
-            thisChannelWeeklyStatistics.incrementNoOfMessagesSent();
-            if (Utils.messageContainsImage(newMessage)){
-                thisChannelWeeklyStatistics.incrementNoOfMessagesSentWithImage();
+        // Don't hold up the event thread on the database; queue the update instead.
+        persistence.submit(() -> {
+            if (guildHasStatisticsEnabled(guild)){
+                updateChannelStatisticsWithNewMessage(channel, messageContainsImage);
             }
+            return null;
+        });
+    }
 
-            statisticsDatabaseHandler.updateWeeklyChannelStatistics(channel.getGuild(), thisChannelWeeklyStatistics);
-
+    private void updateChannelStatisticsWithNewMessage(TextChannel channel, boolean messageContainsImage){
+        try {
+            // Counted in the database, so messages handled on different executor threads at once all count.
+            statisticsDatabaseHandler.addMessageToWeeklyChannelStatistics(channel.getGuild(), channel, messageContainsImage);
         } catch (SQLException e){
             logger.error("Error trying update data on a channel statistics :: " + e.getMessage());
-        } catch (ParseException e){
-            logger.error("Error trying to parse the date :: " + e.getMessage());
         }
     }
 
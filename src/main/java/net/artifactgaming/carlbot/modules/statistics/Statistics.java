@@ -7,6 +7,8 @@ import net.artifactgaming.carlbot.modules.authority.Authority;
 import net.artifactgaming.carlbot.modules.authority.AuthorityRequiring;
 import net.artifactgaming.carlbot.modules.persistence.Persistence;
 import net.artifactgaming.carlbot.modules.persistence.PersistentModule;
+import net.artifactgaming.carlbot.modules.persistence.SchemaStep;
+import net.artifactgaming.carlbot.modules.persistence.TableIndex;
 import net.artifactgaming.carlbot.modules.selfdocumentation.Documented;
 import net.artifactgaming.carlbot.modules.statistics.ChannelStatistic.LifetimeChannelStatistics;
 import net.artifactgaming.carlbot.modules.statistics.ChannelStatistic.WeeklyChannelStatistics;
@@ -54,6 +56,26 @@ public class Statistics implements Module, Documented, PersistentModule {
         return "Commands relating to collecting and displaying statistics on your server!";
     }
 
+    @Override
+    public TableIndex[] getTableIndexes() {
+        List<TableIndex> tableIndexes = new ArrayList<>();
+        tableIndexes.addAll(Arrays.asList(SettingsDatabaseHandler.getTableIndexes()));
+        tableIndexes.addAll(Arrays.asList(StatisticsDatabaseHandler.getTableIndexes()));
+
+        return tableIndexes.toArray(new TableIndex[0]);
+    }
+
+    @Override
+    public SchemaStep[] getSchemaSteps() {
+        return new SchemaStep[] {
+                // 1: The settings, lifetime statistics and weekly statistics tables.
+                (guildTable) -> {
+                    SettingsDatabaseHandler.createTables(guildTable);
+                    StatisticsDatabaseHandler.createTables(guildTable);
+                }
+        };
+    }
+
     @Override
     public String getDocumentationCallsign() {
         return "stats";
@@ -72,7 +94,7 @@ public class Statistics implements Module, Documented, PersistentModule {
         settingsDatabaseHandler = new SettingsDatabaseHandler(persistence, this);
         statisticsDatabaseHandler = new StatisticsDatabaseHandler(persistence, this);
 
-        messageStatisticCollector = new MessageStatisticCollector(settingsDatabaseHandler, statisticsDatabaseHandler);
+        messageStatisticCollector = new MessageStatisticCollector(settingsDatabaseHandler, statisticsDatabaseHandler, persistence);
 
         statisticListMessageReactionListener = new StatisticListMessageReactionListener();
         carlbot.addOnMessageReactionListener(statisticListMessageReactionListener);
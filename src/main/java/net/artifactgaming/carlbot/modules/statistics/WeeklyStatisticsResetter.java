@@ -69,6 +69,7 @@ public class WeeklyStatisticsResetter {
     private void tryMergeLifetimeChannelStatistics(Guild guild) {
         try {
             List<LifetimeChannelStatistics> lifetimeChannelStatisticsList = statisticsDatabaseHandler.getLifetimeGuildStatistics(guild);
+            List<LifetimeChannelStatistics> lifetimeChannelStatisticsToInsert = new ArrayList<>();
 
             // Merge the data with the actual
             for (LifetimeChannelStatistics toMerge: lifetimeChannelStatisticsToMergeList) {
@@ -89,20 +90,22 @@ public class WeeklyStatisticsResetter {
                 if (!hasActualRow){
                     // It will reach here if there was no row for a lifetime data
                     // for this channel; We need to create one.
-                    statisticsDatabaseHandler.insertNewChannelStatisticsIntoLifetimeStatisticsTable(guild, toMerge);
+                    lifetimeChannelStatisticsToInsert.add(toMerge);
                     lifetimeChannelStatisticsList.add(toMerge);
                 }
             }
 
+            statisticsDatabaseHandler.insertNewChannelStatisticsIntoLifetimeStatisticsTable(guild, lifetimeChannelStatisticsToInsert);
+
             double totalPercentageOfMessagesSent = getTotalPercentageOfMessagesSent(lifetimeChannelStatisticsList);
             // Recalculate the merged result
             for (LifetimeChannelStatistics mergedResult: lifetimeChannelStatisticsList) {
                 double finalPercentage = (mergedResult.getPercentageOfTotalMessagesSent() / totalPercentageOfMessagesSent) * 100;
                 mergedResult.setPercentageOfTotalMessagesSent(finalPercentage);
-
-                statisticsDatabaseHandler.updateLifetimeChannelStatistics(guild, mergedResult);
             }
 
+            statisticsDatabaseHandler.updateLifetimeChannelStatistics(guild, lifetimeChannelStatisticsList);
+
         } catch (SQLException e){
             logger.error("Failed to fetch one of the guilds lifetime channel statistics due to: " + e.getMessage());
         }
@@ -123,6 +126,7 @@ public class WeeklyStatisticsResetter {
             long totalMessagesSent = getTotalMessagesSent(weeklyChannelStatisticsList);
 
             LocalDate currentLocalDate = Calendar.getInstance().getTime().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+            List<WeeklyChannelStatistics> weeklyChannelStatisticsToReset = new ArrayList<>();
 
             for (WeeklyChannelStatistics weeklyChannelStatistics: weeklyChannelStatisticsList) {
                 LocalDate startedTrackingLocalDate = weeklyChannelStatistics.getTrackedDate();
@@ -130,9 +134,13 @@ public class WeeklyStatisticsResetter {
                 Period dateDifference = Period.between(startedTrackingLocalDate, currentLocalDate);
                 // If one week has passed since the date of tracking, reset
                 if (dateDifference.getDays() >= DAYS_TO_RESET){
-                    resetChannelWeeklyStatistics(guild, weeklyChannelStatistics, totalMessagesSent);
+                    resetChannelWeeklyStatistics(weeklyChannelStatistics, totalMessagesSent);
+                    weeklyChannelStatisticsToReset.add(weeklyChannelStatistics);
                 }
             }
+
+            // Write all the resets in one go.
+            statisticsDatabaseHandler.updateWeeklyChannelStatistics(guild, weeklyChannelStatisticsToReset);
         } catch (SQLException e){
             logger.error("Failed to fetch one of the guilds weekly channel statistics due to: " + e.getMessage());
         } catch (ParseException e){
@@ -140,7 +148,7 @@ public class WeeklyStatisticsResetter {
         }
     }
 
-    private void resetChannelWeeklyStatistics(Guild guild, WeeklyChannelStatistics weeklyChannelStatistics, long totalMessagesSent) throws SQLException{
+    private void resetChannelWeeklyStatistics(WeeklyChannelStatistics weeklyChannelStatistics, long totalMessagesSent) {
         // TODO: Maybe do something if the channel is now not-visible or deleted?
 
         // If no messages were sent onto this channel for this week, do nothing.
@@ -158,7 +166,6 @@ public class WeeklyStatisticsResetter {
         }
 
         weeklyChannelStatistics.reset();
-        statisticsDatabaseHandler.updateWeeklyChannelStatistics(guild, weeklyChannelStatistics);
 
         // DEBUG!!!
         logger.debug("Reset channel weekly statistics :: " + weeklyChannelStatistics.getChannelName());
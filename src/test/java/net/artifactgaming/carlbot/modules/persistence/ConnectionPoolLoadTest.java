@@ -0,0 +1,102 @@
+package net.artifactgaming.carlbot.modules.persistence;
+
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a million statements through the builders, from several threads at once, and checks the pool never opens
+ * more connections than it's allowed, gets every one of them back, and leaves no more sessions open in the database
+ * than it had connections to.
+ */
+public class ConnectionPoolLoadTest {
+
+    private static final int STATEMENTS = 1000000;
+
+    private static final int THREADS = 16;
+
+    @Test
+    public void sessionsStayBoundedUnderLoad() throws Exception {
+        Persistence persistence = new Persistence(PersistenceConfig.inMemory());
+        try {
+            runLoad(persistence);
+        } finally {
+            // Otherwise its threads and shutdown hook outlive the test.
+            persistence.shutdown();
+        }
+    }
+
+    private void runLoad(Persistence persistence) throws Exception {
+        ConnectionPool connectionPool = persistence.getConnectionPool();
+        int sessionsBefore = countSessions(persistence);
+        // Sessions the pool didn't open, if there are any.
+        long otherSessions = sessionsBefore - connectionPool.getConnectionsOpened();
+
+        Table table = new Table(persistence, "CONNECTION_POOL_LOAD_TEST");
+        table.create();
+        table.alter().add().pushValue("id varchar").pushColumn("hits", ColumnType.INT).execute();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> threads = new ArrayList<>();
+
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                String id = "thread-" + thread;
+
+                threads.add(executor.submit(() -> {
+                    table.insert().set("id", id).set("hits", 0).execute();
+
+                    // Four statements a round: a select, an update, and an insert and delete of a scratch row.
+                    for (int round = 0; round < STATEMENTS / THREADS / 4; round++) {
+                        // Never closed, as callers sometimes forget to.
+                        ResultSet forgotten = table.select().where("id", "=", id).execute();
+                        forgotten.next();
+
+                        table.update().set("hits", round + 1).where("id", "=", id).execute();
+                        table.insert().set("id", id + "-scratch").set("hits", round).execute();
+                        table.delete().where("id", "=", id + "-scratch").execute();
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> thread : threads) {
+                thread.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue("Opened " + connectionPool.getConnectionsOpened() + " connections, more than the "
+                        + connectionPool.getMaxConnections() + " allowed",
+                connectionPool.getConnectionsOpened() <= connectionPool.getMaxConnections());
+        assertEquals("Connections still borrowed", 0, connectionPool.getActiveConnections());
+        assertTrue(connectionPool.getAcquireCount() >= STATEMENTS);
+
+        List<Integer> hits = table.select().where("id", "=", "thread-0").list((row) -> row.getInt("hits"));
+        assertEquals(STATEMENTS / THREADS / 4, (int) hits.get(0));
+
+        int sessionsAfter = countSessions(persistence);
+        assertTrue("The database had " + sessionsBefore + " sessions before and " + sessionsAfter + " after",
+                sessionsAfter <= otherSessions + connectionPool.getMaxConnections());
+    }
+
+    private static int countSessions(Persistence persistence) throws Exception {
+        return persistence.withConnection(connection -> {
+            try (Statement statement = connection.createStatement();
+                 ResultSet sessions = statement.executeQuery("select count(*) from INFORMATION_SCHEMA.SESSIONS")) {
+                sessions.next();
+                return sessions.getInt(1);
+            }
+        });
+    }
+}